@@ -0,0 +1,484 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonParser;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Exports a run from the agent that built it, so that reducing, compressing and sending the console log costs agent
+ * resources instead of controller resources.
+ * The export runs on the queue workers: the controller collects the run metadata and copies the raw console log,
+ * which only the controller keeps, once to the agent. The agent masks the secrets, sends the payload to CloudAEye and
+ * only returns a summary of the export. Only agents matching the configured label are trusted with the CloudAEye
+ * credentials and the console log. When the agent cannot be reached before it started sending, or cannot reach
+ * CloudAEye itself, the run is exported by the controller instead. Logs staged on the agent and left behind by a
+ * dropped channel or a restart are deleted by the next export staged on that agent.
+ */
+final class AgentExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(AgentExporter.class.getName());
+
+    /** Base url the agents send the runs to, the one of the controller if null, lets tests point them elsewhere */
+    static String agentBaseUrl;
+
+    /** Suffix of a staged log the agent started sending */
+    private static final String SENDING_SUFFIX = ".sending";
+
+    /** Directory of the agent temporary directory the console logs are staged in */
+    private static final String STAGING_DIRECTORY = "cloudaeye";
+
+    /** Staged logs untouched for longer than this were left behind by an export that did not finish */
+    static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private AgentExporter() {}
+
+    /**
+     * @param workspace Workspace of the run
+     * @return Name of the agent owning the workspace, null if the workspace is on the controller
+     */
+    static String agentOf(FilePath workspace) {
+        if (!workspace.isRemote()) {
+            return null;
+        }
+        Computer computer = workspace.toComputer();
+        return computer == null ? null : computer.getName();
+    }
+
+    /**
+     * @param agent Name of the agent
+     * @return Channel to the agent, null if it is offline or not trusted with the CloudAEye credentials
+     */
+    static VirtualChannel channelOf(String agent) {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        String expression = Util.fixEmptyAndTrim(config.getAgentOffloadLabel());
+        if (!config.isAgentOffloadEnabled() || expression == null) {
+            return null;
+        }
+        Jenkins jenkins = Jenkins.get();
+        Node node = jenkins.getNode(agent);
+        Label label = jenkins.getLabel(expression);
+        if (node == null || label == null || !label.matches(node)) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "Agent {0} is not trusted with CloudAEye exports, exporting from the controller", agent));
+            }
+            return null;
+        }
+        Computer computer = node.toComputer();
+        return computer == null ? null : computer.getChannel();
+    }
+
+    /**
+     * Exports the run from the given agent
+     * @param run The run to export
+     * @param buildResult Result of the run at the time the export was requested
+     * @param endTime Time at which the export was requested
+     * @param agent Name of the agent that built the run
+     * @param reduced Whether the log is reduced to the smaller size exported over the rate limit
+     * @return Outcome of the export, null if the controller has to export the run
+     * @throws InterruptedException
+     */
+    static ExportAction.Outcome export(Run<?, ?> run, Result buildResult, long endTime, String agent, boolean reduced)
+            throws InterruptedException {
+        // The agent is looked up when the export runs, it may have gone offline while the task was queued
+        VirtualChannel channel = channelOf(agent);
+        if (channel == null) {
+            return null;
+        }
+        CircuitBreaker circuitBreaker = NotificationSender.getSharedCircuitBreaker();
+        if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            // Probes of a failing endpoint are left to the controller
+            return null;
+        }
+        long start = System.nanoTime();
+        BuildLogExporter payload;
+        String staged;
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        try {
+            payload = new RunExporter().prepare(run, buildResult, endTime, TaskListener.NULL, reduced);
+            // The console log is kept by the controller, which only copies its raw bytes to the agent
+            try (InputStream log = run.getLogInputStream()) {
+                staged = channel.call(
+                        new Stage(run.getNumber(), new RemoteInputStream(log, RemoteInputStream.Flag.GREEDY)));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Unable to export the run from the agent, exporting it from the controller : {1}",
+                    run.getNumber(), e.getMessage()));
+            return null;
+        }
+        ChunkIndex.Job chunkIndex = payload.getChunkIndex();
+        Summary summary;
+        try {
+            summary = channel.call(new Upload(
+                    run.getNumber(),
+                    payload.getJob().toString(),
+                    payload.getSource().toString(),
+                    payload.getReduction(),
+                    chunkIndex == null ? null : chunkIndex.getKeys(),
+                    chunkIndex == null ? 0 : chunkIndex.getCapacity(),
+                    staged,
+                    payload.getCharset().name(),
+                    payload.getRedaction(),
+                    (agentBaseUrl == null ? NotificationSender.baseUrl : agentBaseUrl)
+                            + NotificationSender.ENDPOINT_PATH,
+                    config.getTenantKey().getPlainText(),
+                    config.getToken().getPlainText(),
+                    config.getCompression(),
+                    config.getRetryPolicy(),
+                    config.getConnectTimeout(),
+                    config.getSocketTimeout()));
+        } catch (ChannelClosedException e) {
+            // The channel was closed before the upload was sent, the staged log is swept by a later export
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Agent went offline before sending the run, exporting it from the controller : {1}",
+                    run.getNumber(), e.getMessage()));
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (discard(agent, staged)) {
+                LOGGER.warning(MessageFormat.format(
+                        "[#{0}] Unable to export the run from the agent, exporting it from the controller : {1}",
+                        run.getNumber(), e.getMessage()));
+                return null;
+            }
+            // The agent may have sent the run before the failure, as for the controller it is not sent twice
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Agent failed while sending run details to CloudAEye, the run is not sent again : {1}",
+                    run.getNumber(), e.getMessage()));
+            BuildLogExporter.WriteStats unknown = null;
+            ExportMetrics.recordExport(run, unknown, System.nanoTime() - start, ExportAction.Outcome.FAILED);
+            return ExportAction.Outcome.FAILED;
+        }
+        if (summary.failure != null && summary.unsent) {
+            // Agents without network access are left out of the circuit breaker, the staged log was deleted by the
+            // upload and the controller sends the run
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Agent could not reach CloudAEye, exporting the run from the controller : {1}",
+                    run.getNumber(), summary.failure));
+            return null;
+        }
+        ExportMetrics.OFFLOADED.inc();
+        ExportLimiter.get().consumed(Math.max(0, summary.bytes));
+        if (summary.redactions > 0) {
+            ExportMetrics.REDACTIONS.inc(summary.redactions);
+        }
+        ExportAction.Outcome outcome;
+        if (summary.failure != null) {
+            circuitBreaker.recordFailure();
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error while trying to send run details to CloudAEye from the agent : {1}",
+                    run.getNumber(), summary.failure));
+            // As for the controller, a payload that may have been processed is not sent twice
+            outcome = ExportAction.Outcome.FAILED;
+        } else if (summary.statusCode == 200) {
+            circuitBreaker.recordSuccess();
+            if (chunkIndex != null && summary.chunks != null) {
+                chunkIndex.addAll(summary.chunks);
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Run exported from the agent : {1} bytes, {2} log lines",
+                        run.getNumber(), summary.bytes, summary.lines));
+            }
+            outcome = ExportAction.Outcome.SENT;
+        } else {
+            boolean endpointFailure = summary.statusCode >= 500 || RetryPolicy.isRetryable(summary.statusCode);
+            if (endpointFailure) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error response received from CloudAEye endpoint : {1}", run.getNumber(), summary.body));
+            // As for the controller, only a payload the endpoint turned down without processing it is spooled
+            outcome = RetryPolicy.isRetryable(summary.statusCode)
+                    ? RunExporter.spool(run, payload, ExportAction.Outcome.REJECTED)
+                    : ExportAction.Outcome.REJECTED;
+        }
+        ExportMetrics.recordExport(
+                run,
+                new BuildLogExporter.WriteStats(
+                        summary.bytes, summary.lines, summary.readNanos, summary.serializationNanos),
+                System.nanoTime() - start,
+                outcome);
+        return outcome;
+    }
+
+    /**
+     * Discards the log staged on the agent for an upload that failed, unless the agent started sending it
+     * @param agent Name of the agent
+     * @param staged Path of the log staged on the agent
+     * @return Whether the log was discarded, false if the agent may have sent the run or cannot be reached
+     * @throws InterruptedException
+     */
+    private static boolean discard(String agent, String staged) throws InterruptedException {
+        // The channel is looked up again, the agent may have reconnected after the failure
+        VirtualChannel channel = channelOf(agent);
+        if (channel == null) {
+            return false;
+        }
+        try {
+            return channel.call(new Discard(staged));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Directory the console logs are staged in on the agent running this
+     * @throws IOException
+     */
+    static Path stagingDirectory() throws IOException {
+        return Files.createDirectories(Paths.get(System.getProperty("java.io.tmpdir"), STAGING_DIRECTORY));
+    }
+
+    /**
+     * Deletes the staged logs, sending or not, that were left behind by exports that did not finish
+     * @param directory Staging directory
+     */
+    static void sweep(Path directory) {
+        long oldest = System.currentTimeMillis() - STALE_MILLIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < oldest) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine(MessageFormat.format(
+                                "Unable to delete staged log {0} : {1}", file, e.getMessage()));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "Unable to sweep staged logs in {0} : {1}", directory, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Outcome of an export sent by an agent
+     */
+    static final class Summary implements Serializable {
+
+        private static final long serialVersionUID = 3L;
+
+        final int statusCode;
+        final String body;
+        /** Failure of the request, null if the endpoint answered */
+        final String failure;
+        /** Whether the failed request certainly did not reach the endpoint */
+        final boolean unsent;
+        /** Keys of the chunks written to the payload, null if the log was sent as plain lines */
+        final long[] chunks;
+        final long bytes;
+        final long lines;
+        final long readNanos;
+        final long serializationNanos;
+        /** Number of secrets masked on the agent */
+        final long redactions;
+
+        Summary(int statusCode, String body, BuildLogExporter payload) {
+            this(statusCode, body, null, false, payload.getWrittenChunks(), payload);
+        }
+
+        Summary(IOException failure, BuildLogExporter payload) {
+            this(-1, null, failure.toString(), NotificationSender.isUnsent(failure), null, payload);
+        }
+
+        private Summary(
+                int statusCode,
+                String body,
+                String failure,
+                boolean unsent,
+                ChunkIndex.Job written,
+                BuildLogExporter payload) {
+            BuildLogExporter.WriteStats stats = payload.getLastWrite();
+            this.statusCode = statusCode;
+            this.body = body;
+            this.failure = failure;
+            this.unsent = unsent;
+            this.chunks = written == null ? null : written.getKeys();
+            this.bytes = stats == null ? -1 : stats.bytes;
+            this.lines = stats == null ? -1 : stats.lines;
+            this.readNanos = stats == null ? 0 : stats.readNanos;
+            this.serializationNanos = stats == null ? 0 : stats.serializationNanos;
+            this.redactions = payload.getLastRedactions();
+        }
+    }
+
+    /**
+     * Copies the raw console log from the controller to a file of the staging directory on the agent, so that retries
+     * do not stream it again
+     */
+    static final class Stage extends MasterToSlaveCallable<String, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int buildNumber;
+        private final RemoteInputStream log;
+
+        Stage(int buildNumber, RemoteInputStream log) {
+            this.buildNumber = buildNumber;
+            this.log = log;
+        }
+
+        @Override
+        public String call() throws IOException {
+            Path directory = stagingDirectory();
+            sweep(directory);
+            Path staged = Files.createTempFile(directory, "cloudaeye-" + buildNumber + "-", ".log");
+            try (InputStream in = log) {
+                Files.copy(in, staged, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(staged);
+                throw e;
+            }
+            return staged.toString();
+        }
+    }
+
+    /**
+     * Builds and sends the payload on the agent, masking the secrets of the staged log there
+     */
+    static final class Upload extends MasterToSlaveCallable<Summary, IOException> {
+
+        private static final long serialVersionUID = 3L;
+
+        private final int buildNumber;
+        private final String job;
+        private final String source;
+        private final LogReducer.Settings reduction;
+        private final long[] chunkKeys;
+        private final int chunkCapacity;
+        private final String staged;
+        private final String charset;
+        private final Redactor.Rules redaction;
+        private final String endpointTemplate;
+        private final String tenantKey;
+        private final String token;
+        private final CompressingEntity.Compression compression;
+        private final RetryPolicy retryPolicy;
+        private final int connectTimeout;
+        private final int socketTimeout;
+
+        Upload(
+                int buildNumber,
+                String job,
+                String source,
+                LogReducer.Settings reduction,
+                long[] chunkKeys,
+                int chunkCapacity,
+                String staged,
+                String charset,
+                Redactor.Rules redaction,
+                String endpointTemplate,
+                String tenantKey,
+                String token,
+                CompressingEntity.Compression compression,
+                RetryPolicy retryPolicy,
+                int connectTimeout,
+                int socketTimeout) {
+            this.buildNumber = buildNumber;
+            this.job = job;
+            this.source = source;
+            this.reduction = reduction;
+            this.chunkKeys = chunkKeys;
+            this.chunkCapacity = chunkCapacity;
+            this.staged = staged;
+            this.charset = charset;
+            this.redaction = redaction;
+            this.endpointTemplate = endpointTemplate;
+            this.tenantKey = tenantKey;
+            this.token = token;
+            this.compression = compression;
+            this.retryPolicy = retryPolicy;
+            this.connectTimeout = connectTimeout;
+            this.socketTimeout = socketTimeout;
+        }
+
+        @Override
+        public Summary call() throws IOException {
+            Path sending = Paths.get(staged + SENDING_SUFFIX);
+            sweep(sending.getParent());
+            ChunkIndex.Job chunkIndex = null;
+            if (chunkKeys != null) {
+                chunkIndex = new ChunkIndex.Job(chunkCapacity);
+                chunkIndex.addAll(chunkKeys);
+            }
+            BuildLogExporter payload = new BuildLogExporter(
+                    buildNumber,
+                    JsonParser.parseString(job).getAsJsonObject(),
+                    JsonParser.parseString(source).getAsJsonObject(),
+                    () -> Files.newInputStream(sending),
+                    Charset.forName(charset),
+                    new BuildLogExporter.Settings(reduction, chunkIndex, redaction));
+            // Moved away right before sending, a staged log still on the agent tells that the run was not sent
+            Files.move(Paths.get(staged), sending, StandardCopyOption.ATOMIC_MOVE);
+            // Not swept while it is sent
+            Files.setLastModifiedTime(sending, FileTime.fromMillis(System.currentTimeMillis()));
+            try (CloseableHttpClient client = NotificationSender.createClient(
+                    NotificationSender.createConnectionManager(1), connectTimeout, socketTimeout, socketTimeout)) {
+                NotificationSender.Response response;
+                try {
+                    response = new NotificationSender(client, endpointTemplate, compression, retryPolicy, null)
+                            .send(payload, tenantKey, token);
+                } catch (IOException e) {
+                    // Reported to the controller, which sends the run itself if the request was certainly not sent
+                    return new Summary(e, payload);
+                }
+                return new Summary(response.getStatusCode(), response.getBody(), payload);
+            } finally {
+                Files.deleteIfExists(sending);
+            }
+        }
+    }
+
+    /**
+     * Deletes a staged log whose upload failed, unless the agent started sending it
+     */
+    static final class Discard extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String staged;
+
+        Discard(String staged) {
+            this.staged = staged;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            return Files.deleteIfExists(Paths.get(staged));
+        }
+    }
+}
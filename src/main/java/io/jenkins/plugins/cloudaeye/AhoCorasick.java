@@ -0,0 +1,189 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Multi-pattern literal matcher over bytes.
+ * All patterns are compiled once into a deterministic automaton, so scanning a line costs a single table lookup per
+ * byte regardless of the number of patterns.
+ */
+final class AhoCorasick {
+
+    private static final int ALPHABET = 256;
+    private static final int[] NO_MATCH = new int[0];
+
+    /**
+     * Transition table, {@code transitions[state + byte]} is the next state.
+     * States are stored as offsets in the table, with the sign bit set when a pattern ends in them, so that scanning
+     * takes a single lookup per byte.
+     */
+    private final int[] transitions;
+
+    /** Indexes of the patterns ending in each state, from the longest to the shortest */
+    private final int[][] output;
+
+    /** Length in bytes of each pattern */
+    private final int[] lengths;
+
+    private AhoCorasick(int[] transitions, int[][] output, int[] lengths) {
+        this.transitions = transitions;
+        this.output = output;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Compiles the given literals, encoded as UTF-8
+     * @param patterns Literal patterns, empty patterns are ignored
+     * @return Compiled matcher
+     */
+    static AhoCorasick compile(List<String> patterns) {
+        List<int[]> gotos = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        gotos.add(newState());
+        outputs.add(new ArrayList<>());
+        int[] lengths = new int[patterns.size()];
+        for (int p = 0; p < patterns.size(); p++) {
+            byte[] pattern = patterns.get(p).getBytes(StandardCharsets.UTF_8);
+            lengths[p] = pattern.length;
+            if (pattern.length == 0) {
+                continue;
+            }
+            int state = 0;
+            for (byte b : pattern) {
+                int next = gotos.get(state)[b & 0xff];
+                if (next < 0) {
+                    next = gotos.size();
+                    gotos.add(newState());
+                    outputs.add(new ArrayList<>());
+                    gotos.get(state)[b & 0xff] = next;
+                }
+                state = next;
+            }
+            outputs.get(state).add(p);
+        }
+
+        // Breadth first construction of the failure links, folded directly into a complete transition table
+        int states = gotos.size();
+        int[] transitions = new int[states * ALPHABET];
+        int[][] output = new int[states][];
+        int[] failure = new int[states];
+        output[0] = NO_MATCH;
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = gotos.get(0)[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            // The failure state is shallower, its patterns are the shorter suffixes of the patterns ending here
+            int[] own = outputs.get(state).stream().mapToInt(Integer::intValue).toArray();
+            int[] suffixes = output[failure[state]];
+            if (own.length == 0) {
+                output[state] = suffixes;
+            } else {
+                output[state] = Arrays.copyOf(own, own.length + suffixes.length);
+                System.arraycopy(suffixes, 0, output[state], own.length, suffixes.length);
+            }
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = gotos.get(state)[c];
+                if (next < 0) {
+                    transitions[state * ALPHABET + c] = transitions[failure[state] * ALPHABET + c];
+                } else {
+                    transitions[state * ALPHABET + c] = next;
+                    failure[next] = transitions[failure[state] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+        for (int i = 0; i < transitions.length; i++) {
+            int next = transitions[i];
+            transitions[i] = next * ALPHABET | (output[next].length > 0 ? Integer.MIN_VALUE : 0);
+        }
+        return new AhoCorasick(transitions, output, lengths);
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * @return Number of compiled patterns
+     */
+    int getPatternCount() {
+        return lengths.length;
+    }
+
+    /**
+     * Scans the text until a pattern ends
+     * @param bytes Text to scan
+     * @param from Position at which scanning starts
+     * @param end End of the text
+     * @param state State reached before {@code from}, 0 at the start of the text
+     * @return The position after the pattern found and the state reached, packed by {@link #position(long)} and
+     *     {@link #state(long)}, or -1 if no pattern ends before {@code end}
+     */
+    long next(byte[] bytes, int from, int end, int state) {
+        for (int i = from; i < end; i++) {
+            state = transitions[state + (bytes[i] & 0xff)];
+            if (state < 0) {
+                return ((long) (i + 1) << 32) | (state & Integer.MAX_VALUE);
+            }
+        }
+        return -1;
+    }
+
+    static int position(long found) {
+        return (int) (found >>> 32);
+    }
+
+    static int state(long found) {
+        return (int) found;
+    }
+
+    /**
+     * @param state State returned by {@link #next(byte[], int, int, int)}
+     * @return Indexes of the patterns ending in this state, from the longest to the shortest, not to be modified
+     */
+    int[] matches(int state) {
+        return output[state / ALPHABET];
+    }
+
+    /**
+     * @param pattern Index of a pattern
+     * @return Length of the pattern in bytes
+     */
+    int length(int pattern) {
+        return lengths[pattern];
+    }
+
+    /**
+     * Checks whether any pattern occurs in the given range
+     * @param bytes Text to scan
+     * @param offset Start of the range
+     * @param length Length of the range
+     * @return true if at least one pattern occurs
+     */
+    boolean find(byte[] bytes, int offset, int length) {
+        int state = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            state = transitions[state + (bytes[i] & 0xff)];
+            if (state < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
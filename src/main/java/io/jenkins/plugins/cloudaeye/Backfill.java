@@ -0,0 +1,347 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import jenkins.model.Jenkins;
+
+/**
+ * Export of the past builds of a set of jobs, over a build range and a time window.
+ * Builds are handed out to the backfill workers one at a time, in turn across jobs, and only looked up when they are
+ * about to be exported. The next build to export of each job is checkpointed, so that a backfill resumes where it
+ * stopped after a restart. Builds in flight when Jenkins stopped are exported again.
+ */
+public class Backfill {
+
+    /**
+     * State of a backfill
+     */
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        CANCELLED
+    }
+
+    /**
+     * A build handed out to a worker
+     */
+    static final class Claim {
+        private final Cursor cursor;
+        private final Run<?, ?> run;
+
+        Claim(Cursor cursor, Run<?, ?> run) {
+            this.cursor = cursor;
+            this.run = run;
+        }
+
+        Run<?, ?> getRun() {
+            return run;
+        }
+    }
+
+    /**
+     * Position of the backfill in the builds of a job
+     */
+    private static final class Cursor {
+        private final String jobName;
+        /** Number from which the next build is looked up, 0 until the first one is looked up */
+        private int next;
+        /** Numbers of the builds being exported */
+        private final TreeSet<Integer> inFlight = new TreeSet<>();
+
+        Cursor(String jobName, int next) {
+            this.jobName = jobName;
+            this.next = next;
+        }
+
+        /**
+         * @return Number of the first build not known to be exported
+         */
+        int getCheckpoint() {
+            return inFlight.isEmpty() ? next : inFlight.first();
+        }
+    }
+
+    private final String id;
+    private final List<String> jobs;
+    private final int fromBuild;
+    private final int toBuild;
+    private final long since;
+    private final long until;
+    private final long createdAt;
+    private State state = State.RUNNING;
+    /** Next build to export of each job, builds before it are exported */
+    private final Map<String, Integer> checkpoints = new LinkedHashMap<>();
+    private long exported;
+    private long skipped;
+    private long failed;
+    private long payloadBytes;
+    /** Time spent running before the last resume */
+    private long activeMillis;
+
+    private transient List<Cursor> cursors;
+    private transient List<Cursor> active;
+    private transient int turn;
+    private transient long resumedAt;
+    private transient long checkpointedAt;
+
+    /**
+     * @param id Unique id of the backfill
+     * @param jobs Full names of the jobs
+     * @param fromBuild First build number exported, 0 for no lower bound
+     * @param toBuild Last build number exported, 0 for no upper bound
+     * @param since Time from which builds are exported, 0 for no lower bound
+     * @param until Time before which builds are exported, 0 for no upper bound
+     */
+    Backfill(String id, List<String> jobs, int fromBuild, int toBuild, long since, long until) {
+        this.id = id;
+        this.jobs = new ArrayList<>(jobs);
+        this.fromBuild = fromBuild;
+        this.toBuild = toBuild;
+        this.since = since;
+        this.until = until;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getJobs() {
+        return Collections.unmodifiableList(jobs);
+    }
+
+    public int getFromBuild() {
+        return fromBuild;
+    }
+
+    public int getToBuild() {
+        return toBuild;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getExported() {
+        return exported;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Next build to export of each job, jobs that did not start yet are missing
+     */
+    public synchronized Map<String, Integer> getCheckpoints() {
+        return new LinkedHashMap<>(checkpoints);
+    }
+
+    /**
+     * @return Builds exported per minute while the backfill was running
+     */
+    public synchronized double getBuildsPerMinute() {
+        long millis = getActiveMillis();
+        return millis == 0 ? 0 : exported * 60_000.0 / millis;
+    }
+
+    /**
+     * @return Payload bytes sent per second while the backfill was running
+     */
+    public synchronized double getBytesPerSecond() {
+        long millis = getActiveMillis();
+        return millis == 0 ? 0 : payloadBytes * 1000.0 / millis;
+    }
+
+    /**
+     * @return Progress of the backfill for display
+     */
+    public synchronized String getProgress() {
+        return String.format(
+                "%,d exported, %,d skipped, %,d failed, %,.1f builds/min, %,.1f KB/s",
+                exported, skipped, failed, getBuildsPerMinute(), getBytesPerSecond() / 1024);
+    }
+
+    private long getActiveMillis() {
+        return activeMillis + (state == State.RUNNING && resumedAt > 0 ? System.currentTimeMillis() - resumedAt : 0);
+    }
+
+    /**
+     * Starts measuring the running time, when the backfill starts or resumes after a restart
+     */
+    synchronized void resume() {
+        resumedAt = System.currentTimeMillis();
+        checkpointedAt = resumedAt;
+    }
+
+    synchronized boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    /**
+     * Stops handing out builds, the builds being exported complete
+     */
+    synchronized void cancel() {
+        if (state == State.RUNNING) {
+            activeMillis = getActiveMillis();
+            state = State.CANCELLED;
+        }
+    }
+
+    /**
+     * Hands out the next build to export, in turn across jobs
+     * @return The next build, or null if there is none left
+     */
+    synchronized Claim next() {
+        if (state != State.RUNNING) {
+            return null;
+        }
+        if (cursors == null) {
+            cursors = new ArrayList<>();
+            for (String job : jobs) {
+                cursors.add(new Cursor(job, checkpoints.getOrDefault(job, 0)));
+            }
+            active = new ArrayList<>(cursors);
+        }
+        while (!active.isEmpty()) {
+            turn = turn % active.size();
+            Cursor cursor = active.get(turn);
+            Run<?, ?> run = advance(cursor);
+            if (run != null) {
+                cursor.inFlight.add(run.getNumber());
+                turn++;
+                return new Claim(cursor, run);
+            }
+            active.remove(turn);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the next build of a job in the range, loading only that build
+     * @return The next build, or null if the job has no build left in the range
+     */
+    private Run<?, ?> advance(Cursor cursor) {
+        Job<?, ?> job = Jenkins.get().getItemByFullName(cursor.jobName, Job.class);
+        if (job == null) {
+            return null;
+        }
+        if (cursor.next == 0) {
+            cursor.next = Math.max(1, fromBuild);
+            if (since > 0) {
+                cursor.next = Math.max(cursor.next, firstBuildSince(job, since));
+            }
+            checkpoints.put(cursor.jobName, cursor.next);
+        }
+        Run<?, ?> run = job.getNearestBuild(cursor.next);
+        if (run == null
+                || toBuild > 0 && run.getNumber() > toBuild
+                || until > 0 && run.getStartTimeInMillis() >= until
+                || run.isBuilding()) {
+            // Builds still running are exported when they complete
+            return null;
+        }
+        cursor.next = run.getNumber() + 1;
+        return run;
+    }
+
+    /**
+     * Finds the first build started at or after the given time by a binary search over the build numbers, so that
+     * only a few builds are loaded
+     * @param job The job
+     * @param since Start of the time window
+     * @return Number from which builds in the time window are looked up
+     */
+    static int firstBuildSince(Job<?, ?> job, long since) {
+        Run<?, ?> first = job.getFirstBuild();
+        Run<?, ?> last = job.getLastBuild();
+        if (first == null || last == null) {
+            return 1;
+        }
+        int low = first.getNumber();
+        int high = last.getNumber() + 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Run<?, ?> run = job.getNearestBuild(middle);
+            if (run == null || run.getStartTimeInMillis() >= since) {
+                high = middle;
+            } else {
+                low = run.getNumber() + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Records the export of a build handed out by {@link #next()} and moves the checkpoint of its job
+     * @param claim The exported build
+     * @param outcome Outcome of the export, null if the build was skipped
+     * @param bytes Size of the payload sent
+     */
+    synchronized void complete(Claim claim, ExportAction.Outcome outcome, long bytes) {
+        Cursor cursor = claim.cursor;
+        cursor.inFlight.remove(claim.run.getNumber());
+        if (outcome == null) {
+            skipped++;
+        } else if (outcome == ExportAction.Outcome.SENT) {
+            exported++;
+            payloadBytes += Math.max(0, bytes);
+        } else {
+            failed++;
+        }
+        checkpoints.put(cursor.jobName, cursor.getCheckpoint());
+    }
+
+    /**
+     * @param intervalMillis Minimum time between two checkpoints
+     * @return Whether the checkpoints should be saved, the next one is then due after the interval
+     */
+    synchronized boolean isCheckpointDue(long intervalMillis) {
+        long now = System.currentTimeMillis();
+        if (now - checkpointedAt < intervalMillis) {
+            return false;
+        }
+        checkpointedAt = now;
+        return true;
+    }
+
+    /**
+     * Marks the backfill completed once every build has been handed out and exported
+     * @return Whether the backfill just completed
+     */
+    synchronized boolean finishIfDone() {
+        if (state != State.RUNNING || active == null || !active.isEmpty()) {
+            return false;
+        }
+        for (Cursor cursor : cursors) {
+            if (!cursor.inFlight.isEmpty()) {
+                return false;
+            }
+        }
+        activeMillis = getActiveMillis();
+        state = State.COMPLETED;
+        return true;
+    }
+}
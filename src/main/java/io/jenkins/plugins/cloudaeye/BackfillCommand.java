@@ -0,0 +1,74 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Locale;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Starts a backfill of past builds from the CLI, optionally waiting for it to complete
+ */
+@Extension
+public class BackfillCommand extends CLICommand {
+
+    /** Interval at which the progress of a backfill is printed while waiting for it */
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+
+    @Argument(metaVar = "JOB", usage = "Full names of the jobs to backfill", required = true, multiValued = true)
+    public List<String> jobs;
+
+    @Option(name = "-from", metaVar = "BUILD", usage = "First build number to export")
+    public String fromBuild;
+
+    @Option(name = "-to", metaVar = "BUILD", usage = "Last build number to export")
+    public String toBuild;
+
+    @Option(name = "-since", metaVar = "DAY", usage = "Export builds started on or after this day, yyyy-MM-dd")
+    public String since;
+
+    @Option(name = "-until", metaVar = "DAY", usage = "Export builds started on or before this day, yyyy-MM-dd")
+    public String until;
+
+    @Option(name = "-wait", usage = "Wait for the backfill to complete, printing its progress")
+    public boolean waitForCompletion;
+
+    @Override
+    public String getName() {
+        return "cloudaeye-backfill";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Exports the past builds of the given jobs to CloudAEye";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Backfill backfill = BackfillManager.get()
+                .start(
+                        jobs,
+                        BackfillManager.parseBuild(fromBuild),
+                        BackfillManager.parseBuild(toBuild),
+                        BackfillManager.parseDay(since, false),
+                        BackfillManager.parseDay(until, true));
+        stdout.println("Started backfill " + backfill.getId());
+        if (!waitForCompletion) {
+            return 0;
+        }
+        while (backfill.isRunning()) {
+            Thread.sleep(PROGRESS_INTERVAL_MILLIS);
+            stdout.println(backfill.getProgress());
+        }
+        stdout.println(MessageFormat.format(
+                "Backfill {0} {1} : {2}",
+                backfill.getId(),
+                backfill.getState().name().toLowerCase(Locale.ROOT),
+                backfill.getProgress()));
+        return backfill.getState() == Backfill.State.COMPLETED ? 0 : 1;
+    }
+}
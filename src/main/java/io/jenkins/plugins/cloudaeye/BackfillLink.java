@@ -0,0 +1,130 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Page from which administrators start and follow the backfills of past builds.
+ * The same operations are available over REST: POST {@code start} and {@code cancel}, GET {@code status}.
+ */
+@Extension
+public class BackfillLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-reload";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "CloudAEye Backfill";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Export the past builds of selected jobs to CloudAEye";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cloudaeye-backfill";
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.TOOLS;
+    }
+
+    public List<Backfill> getBackfills() {
+        return BackfillManager.get().getBackfills();
+    }
+
+    /**
+     * Starts a backfill
+     * @param jobs Full names of the jobs, separated by commas or line breaks
+     * @param fromBuild First build number, may be empty
+     * @param toBuild Last build number, may be empty
+     * @param since First day, yyyy-MM-dd, may be empty
+     * @param until Last day, yyyy-MM-dd, may be empty
+     * @return Redirection to the backfill list
+     */
+    @POST
+    public HttpResponse doStart(
+            @QueryParameter String jobs,
+            @QueryParameter String fromBuild,
+            @QueryParameter String toBuild,
+            @QueryParameter String since,
+            @QueryParameter String until) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        try {
+            BackfillManager.get()
+                    .start(
+                            BackfillManager.parseJobs(jobs),
+                            BackfillManager.parseBuild(fromBuild),
+                            BackfillManager.parseBuild(toBuild),
+                            BackfillManager.parseDay(since, false),
+                            BackfillManager.parseDay(until, true));
+        } catch (IllegalArgumentException e) {
+            return HttpResponses.errorWithoutStack(400, e.getMessage());
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Cancels a running backfill
+     * @param id Id of the backfill
+     * @return Redirection to the backfill list
+     */
+    @POST
+    public HttpResponse doCancel(@QueryParameter String id) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (!BackfillManager.get().cancel(id)) {
+            return HttpResponses.notFound();
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Writes the state and progress of the backfills as JSON, the most recent first
+     * @param rsp Response
+     * @throws IOException
+     */
+    public void doStatus(StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        JsonArray status = new JsonArray();
+        for (Backfill backfill : getBackfills()) {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", backfill.getId());
+            json.addProperty("state", backfill.getState().name());
+            JsonArray jobs = new JsonArray();
+            backfill.getJobs().forEach(jobs::add);
+            json.add("jobs", jobs);
+            json.addProperty("exported", backfill.getExported());
+            json.addProperty("skipped", backfill.getSkipped());
+            json.addProperty("failed", backfill.getFailed());
+            json.addProperty("buildsPerMinute", backfill.getBuildsPerMinute());
+            json.addProperty("bytesPerSecond", backfill.getBytesPerSecond());
+            JsonObject checkpoints = new JsonObject();
+            for (Map.Entry<String, Integer> checkpoint : backfill.getCheckpoints().entrySet()) {
+                checkpoints.addProperty(checkpoint.getKey(), checkpoint.getValue());
+            }
+            json.add("nextBuilds", checkpoints);
+            status.add(json);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(status.toString());
+    }
+}
@@ -0,0 +1,407 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Runs the backfills of past builds on a bounded pool of low priority workers.
+ * Each backfill gets every worker of the pool, further backfills wait for the previous ones. Workers share a rate
+ * limit and step aside while live exports are waiting in the {@link ExportQueue} or the endpoint is failing, so that
+ * a backfill never delays the export of the builds that just completed. Backfills are saved under JENKINS_HOME with
+ * their checkpoints and resumed after a restart.
+ */
+@Extension
+public class BackfillManager {
+
+    private static final Logger LOGGER = Logger.getLogger(BackfillManager.class.getName());
+
+    /** Minimum time between two saves of the checkpoints of a running backfill */
+    static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
+    /** Time a worker waits before checking again whether live exports are still waiting */
+    static final long LIVE_EXPORT_BACKOFF_MILLIS = 1000;
+    /** Number of finished backfills kept for display */
+    static final int MAX_FINISHED = 20;
+
+    /** @return the singleton instance */
+    public static BackfillManager get() {
+        return ExtensionList.lookupSingleton(BackfillManager.class);
+    }
+
+    private final Map<String, Backfill> backfills = new LinkedHashMap<>();
+    private ThreadPoolExecutor workers;
+    private TokenBucket rate;
+
+    /**
+     * Starts exporting the past builds of the given jobs
+     * @param jobs Full names of the jobs
+     * @param fromBuild First build number exported, 0 for no lower bound
+     * @param toBuild Last build number exported, 0 for no upper bound
+     * @param since Time from which builds are exported, 0 for no lower bound
+     * @param until Time before which builds are exported, 0 for no upper bound
+     * @return The started backfill
+     * @throws IllegalArgumentException If a job does not exist or the range is empty
+     */
+    public Backfill start(List<String> jobs, int fromBuild, int toBuild, long since, long until) {
+        if (jobs.isEmpty()) {
+            throw new IllegalArgumentException("No job to backfill");
+        }
+        for (String job : jobs) {
+            if (Jenkins.get().getItemByFullName(job, Job.class) == null) {
+                throw new IllegalArgumentException("No such job : " + job);
+            }
+        }
+        if (toBuild > 0 && fromBuild > toBuild || until > 0 && since >= until) {
+            throw new IllegalArgumentException("The backfill range is empty");
+        }
+        Backfill backfill;
+        synchronized (this) {
+            String id = String.valueOf(System.currentTimeMillis());
+            while (backfills.containsKey(id)) {
+                id = String.valueOf(Long.parseLong(id) + 1);
+            }
+            backfill = new Backfill(id, jobs, fromBuild, toBuild, since, until);
+            backfills.put(id, backfill);
+            prune();
+        }
+        LOGGER.info(MessageFormat.format("Starting CloudAEye backfill {0} of {1}", backfill.getId(), jobs));
+        save(backfill);
+        launch(backfill);
+        return backfill;
+    }
+
+    /**
+     * @return Backfills, the most recent first
+     */
+    public synchronized List<Backfill> getBackfills() {
+        List<Backfill> list = new ArrayList<>(backfills.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * @param id Id of a backfill
+     * @return The backfill, null if there is none with this id
+     */
+    public synchronized Backfill getBackfill(String id) {
+        return backfills.get(id);
+    }
+
+    /**
+     * Cancels a running backfill, builds being exported complete
+     * @param id Id of the backfill
+     * @return Whether the backfill exists
+     */
+    public boolean cancel(String id) {
+        Backfill backfill = getBackfill(id);
+        if (backfill == null) {
+            return false;
+        }
+        backfill.cancel();
+        save(backfill);
+        return true;
+    }
+
+    /**
+     * Applies the configured number of workers to the running pool
+     * @param count Number of workers
+     */
+    synchronized void resize(int count) {
+        if (workers == null) {
+            return;
+        }
+        if (count > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(count);
+            workers.setCorePoolSize(count);
+        } else {
+            workers.setCorePoolSize(count);
+            workers.setMaximumPoolSize(count);
+        }
+    }
+
+    /**
+     * @return Rate limit shared by the workers of all backfills
+     */
+    synchronized TokenBucket getRate() {
+        double buildsPerSecond = CloudAEyeGlobalKeyConfiguration.get().getBackfillBuildsPerSecond();
+        if (rate == null) {
+            rate = new TokenBucket(buildsPerSecond);
+        } else if (rate.getRate() != buildsPerSecond) {
+            rate.setRate(buildsPerSecond);
+        }
+        return rate;
+    }
+
+    private synchronized ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            int count = CloudAEyeGlobalKeyConfiguration.get().getBackfillThreads();
+            ThreadFactory factory = new NamingThreadFactory(new DaemonThreadFactory(), "CloudAEye backfill worker");
+            workers = new ThreadPoolExecutor(
+                    count, count, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = factory.newThread(runnable);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private void launch(Backfill backfill) {
+        backfill.resume();
+        ThreadPoolExecutor pool = getWorkers();
+        for (int i = 0; i < pool.getMaximumPoolSize(); i++) {
+            pool.execute(() -> process(backfill));
+        }
+    }
+
+    /**
+     * Exports builds of the given backfill until none is left
+     */
+    private void process(Backfill backfill) {
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            while (backfill.isRunning()) {
+                waitForLiveExports();
+                getRate().acquire();
+                Backfill.Claim claim = backfill.next();
+                if (claim == null) {
+                    break;
+                }
+                Run<?, ?> run = claim.getRun();
+                ExportAction.Outcome outcome = export(run);
+                ExportAction action = run.getAction(ExportAction.class);
+                backfill.complete(claim, outcome, action == null ? 0 : action.getPayloadBytes());
+                if (backfill.isCheckpointDue(CHECKPOINT_INTERVAL_MILLIS)) {
+                    save(backfill);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, the backfill resumes from its last checkpoint after the restart
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (backfill.finishIfDone()) {
+            LOGGER.info(MessageFormat.format(
+                    "CloudAEye backfill {0} completed : {1}", backfill.getId(), backfill.getProgress()));
+            save(backfill);
+        }
+    }
+
+    /**
+     * Waits while live exports are queued or the circuit breaker keeps requests from being sent
+     */
+    private static void waitForLiveExports() throws InterruptedException {
+        while (true) {
+            long openMillis = NotificationSender.getSharedCircuitBreaker().getRemainingOpenMillis();
+            if (openMillis == 0 && ExportQueue.get().getDepth() == 0) {
+                return;
+            }
+            Thread.sleep(Math.max(openMillis, LIVE_EXPORT_BACKOFF_MILLIS));
+        }
+    }
+
+    /**
+     * Exports a past build, unless it was already exported or, as for live exports, did not succeed or fail
+     * @param run The build
+     * @return Outcome of the export, null if the build was skipped
+     */
+    private static ExportAction.Outcome export(Run<?, ?> run) throws InterruptedException {
+        Result buildResult = run.getResult();
+        if (!(buildResult == Result.SUCCESS || buildResult == Result.FAILURE)) {
+            return null;
+        }
+        ExportAction previous = run.getAction(ExportAction.class);
+        if (previous != null && previous.getOutcome() == ExportAction.Outcome.SENT) {
+            return null;
+        }
+        try {
+            // Backfills wait for the rate limit rather than skipping builds, their own rate already keeps them slow
+            ExportLimiter.Admission admission = ExportLimiter.get()
+                    .admit(
+                            ExportLimiter.Priority.of(run, buildResult),
+                            true,
+                            ExportLimiter.OverLimitPolicy.DELAY);
+            return new RunExporter()
+                    .export(
+                            run,
+                            buildResult,
+                            run.getStartTimeInMillis() + run.getDuration(),
+                            TaskListener.NULL,
+                            admission);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    MessageFormat.format("[{0}] Error while backfilling run to CloudAEye", run.getExternalizableId()),
+                    e);
+            return ExportAction.Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Forgets the oldest finished backfills beyond {@link #MAX_FINISHED}
+     */
+    private void prune() {
+        int finished = 0;
+        for (Backfill backfill : getBackfills()) {
+            if (backfill.getState() != Backfill.State.RUNNING && ++finished > MAX_FINISHED) {
+                backfills.remove(backfill.getId());
+                File file = getFile(backfill.getId());
+                if (file.exists() && !file.delete()) {
+                    LOGGER.warning(MessageFormat.format("Unable to delete backfill {0}", file));
+                }
+            }
+        }
+    }
+
+    private void save(Backfill backfill) {
+        File directory = getDirectory();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            synchronized (backfill) {
+                new XmlFile(Jenkins.XSTREAM2, getFile(backfill.getId())).write(backfill);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("Unable to save backfill {0}", backfill.getId()), e);
+        }
+    }
+
+    private File getFile(String id) {
+        return new File(getDirectory(), id + ".xml");
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "cloudaeye/backfill");
+    }
+
+    /**
+     * @param value Build number, may be empty
+     * @return The build number, 0 if empty
+     * @throws IllegalArgumentException If the value is not a build number
+     */
+    static int parseBuild(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid build number : " + value, e);
+        }
+    }
+
+    /**
+     * @param value Day in the yyyy-MM-dd format, in the time zone of the controller, may be empty
+     * @param end Whether the day ends the time window, which then includes the whole day
+     * @return Start of the day, or of the next day for the end of a window, 0 if empty
+     * @throws IllegalArgumentException If the value is not a day
+     */
+    static long parseDay(String value, boolean end) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            LocalDate day = LocalDate.parse(value.trim());
+            return (end ? day.plusDays(1) : day)
+                    .atStartOfDay(ZoneId.systemDefault())
+                    .toInstant()
+                    .toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid day, expected yyyy-MM-dd : " + value, e);
+        }
+    }
+
+    /**
+     * @param value Full names of jobs, separated by commas or line breaks
+     * @return The job names
+     */
+    static List<String> parseJobs(String value) {
+        List<String> jobs = new ArrayList<>();
+        if (value != null) {
+            for (String job : value.split("[,\\n\\r]+")) {
+                if (!job.isBlank()) {
+                    jobs.add(job.trim());
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Resumes the backfills that were running when Jenkins stopped
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void restore() {
+        BackfillManager manager = get();
+        File[] files = manager.getDirectory().listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                Backfill backfill = (Backfill) new XmlFile(Jenkins.XSTREAM2, file).read();
+                synchronized (manager) {
+                    manager.backfills.put(backfill.getId(), backfill);
+                }
+                if (backfill.isRunning()) {
+                    LOGGER.info(MessageFormat.format(
+                            "Resuming CloudAEye backfill {0} from {1}", backfill.getId(), backfill.getCheckpoints()));
+                    manager.launch(backfill);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, MessageFormat.format("Discarding unreadable backfill {0}", file), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and saves the checkpoints of the running backfills
+     */
+    @Terminator
+    public static void shutdown() {
+        BackfillManager manager = get();
+        synchronized (manager) {
+            if (manager.workers != null) {
+                manager.workers.shutdownNow();
+                manager.workers = null;
+            }
+        }
+        for (Backfill backfill : manager.getBackfills()) {
+            if (backfill.isRunning()) {
+                manager.save(backfill);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Streams the run payload to CloudAEye.
+ * The console log is read incrementally while the request body is written, so the log is never held in memory.
+ */
+public class BuildLogExporter extends AbstractHttpEntity {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildLogExporter.class.getName());
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+    /**
+     * Opens a fresh stream over the raw console log
+     */
+    public interface LogSource {
+        InputStream open() throws IOException;
+    }
+
+    private final int buildNumber;
+    private final JsonObject job;
+    private final JsonObject source;
+    private final LogSource log;
+    private final Charset charset;
+    private final Settings settings;
+    private volatile WriteStats lastWrite;
+    private volatile ChunkIndex.Job writtenChunks;
+    private volatile long lastRedactions;
+
+    /**
+     * Measurements of a write of the payload
+     */
+    static final class WriteStats {
+        /** Size of the payload */
+        final long bytes;
+        /** Number of lines read from the console log */
+        final long lines;
+        /** Time spent reading the console log */
+        final long readNanos;
+        /** Time spent writing the JSON, without reading the log or passing on the written bytes */
+        final long serializationNanos;
+
+        WriteStats(long bytes, long lines, long readNanos, long serializationNanos) {
+            this.bytes = bytes;
+            this.lines = lines;
+            this.readNanos = readNanos;
+            this.serializationNanos = serializationNanos;
+        }
+    }
+
+    /**
+     * Optional processing of the console log while it is streamed
+     */
+    static final class Settings {
+
+        /** Settings sending the whole log as plain lines, as is */
+        static final Settings NONE = new Settings(null, null, null);
+
+        final LogReducer.Settings reduction;
+        final ChunkIndex.Job chunkIndex;
+        final Redactor.Rules redaction;
+
+        /**
+         * @param reduction Log reduction applied while streaming, null to send the whole log
+         * @param chunkIndex Chunks already received for the job, null to send the log as plain lines
+         * @param redaction Rules masking secrets in the log, null to send the log as is
+         */
+        Settings(LogReducer.Settings reduction, ChunkIndex.Job chunkIndex, Redactor.Rules redaction) {
+            this.reduction = reduction;
+            this.chunkIndex = chunkIndex;
+            this.redaction = redaction;
+        }
+    }
+
+    /**
+     * @param buildNumber Build number, used for logging
+     * @param job Job metadata, the logs are added as the last property of this object
+     * @param source Source metadata
+     * @param log Source of the raw console log
+     * @param charset Charset of the console log
+     */
+    public BuildLogExporter(int buildNumber, JsonObject job, JsonObject source, LogSource log, Charset charset) {
+        this(buildNumber, job, source, log, charset, Settings.NONE);
+    }
+
+    /**
+     * @param buildNumber Build number, used for logging
+     * @param job Job metadata, the logs are added as the last property of this object
+     * @param source Source metadata
+     * @param log Source of the raw console log
+     * @param charset Charset of the console log
+     * @param settings Reduction, chunking and redaction of the log
+     */
+    BuildLogExporter(
+            int buildNumber, JsonObject job, JsonObject source, LogSource log, Charset charset, Settings settings) {
+        this.buildNumber = buildNumber;
+        this.job = job;
+        this.source = source;
+        this.log = log;
+        this.charset = charset;
+        this.settings = settings;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    /**
+     * Creates the exporter for the console log of the given run
+     * @param run The run to export
+     * @param job Job metadata
+     * @param source Source metadata
+     * @return The streaming payload
+     */
+    public static BuildLogExporter forRun(Run<?, ?> run, JsonObject job, JsonObject source) {
+        return forRun(run, job, source, false);
+    }
+
+    /**
+     * Creates the exporter for the console log of the given run
+     * @param run The run to export
+     * @param job Job metadata
+     * @param source Source metadata
+     * @param reduced Whether the log is reduced to the smaller size exported over the rate limit
+     * @return The streaming payload
+     */
+    static BuildLogExporter forRun(Run<?, ?> run, JsonObject job, JsonObject source, boolean reduced) {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        return new BuildLogExporter(
+                run.getNumber(),
+                job,
+                source,
+                run::getLogInputStream,
+                run.getCharset(),
+                new Settings(
+                        reduced ? config.getDegradedLogReduction() : config.getLogReduction(),
+                        config.isDeltaLogsEnabled() ? ChunkIndex.get().forJob(run.getParent().getFullName()) : null,
+                        config.getCompiledRedactionRules()));
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * The payload is produced by writing it, prefer {@link #writeTo} which does not start a writer thread
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return PipedContent.open(this);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    JsonObject getJob() {
+        return job;
+    }
+
+    JsonObject getSource() {
+        return source;
+    }
+
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return Log reduction applied while streaming, null if the whole log is sent
+     */
+    LogReducer.Settings getReduction() {
+        return settings.reduction;
+    }
+
+    /**
+     * @return Rules masking secrets in the log, null if the log is sent as is
+     */
+    Redactor.Rules getRedaction() {
+        return settings.redaction;
+    }
+
+    /**
+     * @return Chunks already received for the job, null if the log is sent as plain lines
+     */
+    ChunkIndex.Job getChunkIndex() {
+        return settings.chunkIndex;
+    }
+
+    /**
+     * @return Chunks of the last write, null if it was never written or the log is sent as plain lines
+     */
+    ChunkIndex.Job getWrittenChunks() {
+        return writtenChunks;
+    }
+
+    /**
+     * @return Number of secrets masked by the last write of the payload
+     */
+    long getLastRedactions() {
+        return lastRedactions;
+    }
+
+    /**
+     * @return Measurements of the last write of the payload, null if it was never written
+     */
+    WriteStats getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Records the chunks of the last write as received by CloudAEye, once the endpoint accepted the payload
+     */
+    void commitChunks() {
+        ChunkIndex.Job written = writtenChunks;
+        if (settings.chunkIndex != null && written != null) {
+            settings.chunkIndex.addAll(written);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        ExportMetrics.TimedOutputStream timedOut = new ExportMetrics.TimedOutputStream(out);
+        Writer writer = new OutputStreamWriter(timedOut, StandardCharsets.UTF_8);
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("job").beginObject();
+        for (Map.Entry<String, JsonElement> property : job.entrySet()) {
+            json.name(property.getKey());
+            GSON.toJson(property.getValue(), json);
+        }
+        LogChunker chunker = null;
+        LogReducer.Sink sink = json::value;
+        if (settings.chunkIndex != null) {
+            json.name("logChunks").beginArray();
+            chunker = new LogChunker(json, settings.chunkIndex);
+            sink = chunker;
+        } else {
+            json.name("logs").beginArray();
+        }
+        LogReducer reducer = settings.reduction == null ? null : new LogReducer(settings.reduction, sink);
+        ExportMetrics.TimedInputStream logStream = new ExportMetrics.TimedInputStream(log.open());
+        long lines = writeLogs(sink, reducer, logStream);
+        if (chunker != null) {
+            chunker.finish();
+            writtenChunks = chunker.getWritten();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Log chunks : {1} new out of {2}",
+                        buildNumber, chunker.getNewChunks(), chunker.getChunks()));
+            }
+        }
+        json.endArray();
+        if (reducer != null) {
+            writeReductionSummary(json, reducer);
+        }
+        json.endObject();
+        json.name("source");
+        GSON.toJson(source, json);
+        json.endObject();
+        json.flush();
+        long readNanos = logStream.getNanos();
+        lastWrite = new WriteStats(
+                timedOut.getBytes(), lines, readNanos, System.nanoTime() - start - readNanos - timedOut.getNanos());
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format("[#{0}] Total log lines captured : {1}", buildNumber, lines));
+        }
+    }
+
+    /**
+     * Copies the console log line by line into the given sink
+     * @param sink Sink writing the lines to the payload
+     * @param reducer Reducer selecting the lines to write, null to write every line
+     * @param logStream Stream over the raw console log, closed once read
+     * @return Number of lines read from the console log
+     */
+    private long writeLogs(LogReducer.Sink sink, LogReducer reducer, InputStream logStream) throws IOException {
+        try (LogLineReader reader = new LogLineReader(logStream, charset, settings)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (reducer == null) {
+                    sink.line(line);
+                } else {
+                    reducer.accept(line, reader.getLastLineBytes(), reader.isLastLineMatched());
+                }
+            }
+            if (reducer != null) {
+                reducer.finish();
+            }
+            lastRedactions = reader.getRedactions();
+            if (reader.getRedactions() > 0) {
+                ExportMetrics.REDACTIONS.inc(reader.getRedactions());
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Secrets masked in the log : {1}", buildNumber, reader.getRedactions()));
+                }
+            }
+            return reader.getLineCount();
+        }
+    }
+
+    /**
+     * Describes which lines of the console log were left out of the payload
+     * @param json Writer positioned inside the job object
+     * @param reducer Reducer that processed the log
+     */
+    private void writeReductionSummary(JsonWriter json, LogReducer reducer) throws IOException {
+        json.name("logReduction").beginObject();
+        json.name("totalLines").value(reducer.getTotalLines());
+        json.name("keptLines").value(reducer.getKeptLines());
+        json.name("droppedLines").beginArray();
+        for (long[] range : reducer.getDroppedRanges()) {
+            json.beginArray().value(range[0]).value(range[1]).endArray();
+        }
+        json.endArray();
+        if (reducer.isDroppedRangesTruncated()) {
+            json.name("droppedLinesTruncated").value(true);
+        }
+        json.endObject();
+    }
+}
@@ -0,0 +1,233 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.scm.ChangeLogSet;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+/**
+ * Caches the serialized change log entries of runs, keyed by job and build number.
+ * The entries of a job are discarded when it is renamed, moved or deleted, so that another job taking its name does
+ * not reuse them.
+ * A failing run only collects the change logs of its own changeset, the change logs of the rest of the failure streak
+ * are looked up in the cache instead of loading and parsing every previous run again.
+ */
+class ChangeLogCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ChangeLogCache.class.getName());
+
+    private static ChangeLogCache shared;
+
+    /**
+     * Change logs of a single run, treated as immutable once cached
+     */
+    static final class Node {
+        final JsonArray changeLogs;
+        final boolean success;
+        final int previousNumber;
+
+        Node(JsonArray changeLogs, boolean success, int previousNumber) {
+            this.changeLogs = changeLogs;
+            this.success = success;
+            this.previousNumber = previousNumber;
+        }
+    }
+
+    private final Cache<String, Node> cache;
+    private final int maxBuilds;
+
+    /**
+     * @param maximumSize Maximum number of runs cached
+     * @param expireAfterAccessMinutes Minutes after which an unused entry is evicted
+     * @param maxBuilds Maximum number of runs collected for a failure streak, 0 for no limit
+     */
+    ChangeLogCache(long maximumSize, long expireAfterAccessMinutes, int maxBuilds) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+                .build();
+        this.maxBuilds = maxBuilds;
+    }
+
+    /**
+     * @return The cache configured in the global configuration
+     */
+    static synchronized ChangeLogCache get() {
+        if (shared == null) {
+            CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+            shared = new ChangeLogCache(
+                    config.getChangeLogCacheSize(), config.getChangeLogCacheMinutes(), config.getMaxChangeLogBuilds());
+        }
+        return shared;
+    }
+
+    /**
+     * Discards the shared cache, the next export creates a new one from the current configuration
+     */
+    static synchronized void reset() {
+        shared = null;
+    }
+
+    /**
+     * Discards the entries of the given job from the shared cache, if any
+     * @param fullName Full name the job had when its entries were cached
+     */
+    static synchronized void invalidateShared(String fullName) {
+        if (shared != null) {
+            shared.invalidate(fullName);
+        }
+    }
+
+    /**
+     * Discards the entries of the given job
+     * @param fullName Full name the job had when its entries were cached
+     */
+    void invalidate(String fullName) {
+        String prefix = fullName + '#';
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Collects the change logs to export for the given run.
+     * A success only reports its own change logs, a failure reports the change logs of every run since the last
+     * successful one, that one included.
+     * @param run The exported run
+     * @param buildResult Result of the exported run
+     * @return JSONArray of the change logs
+     */
+    JsonArray collect(Run<?, ?> run, Result buildResult) {
+        boolean success = buildResult == Result.SUCCESS;
+        String key = key(run.getParent(), run.getNumber());
+        Node node = cache.getIfPresent(key);
+        if (node == null || node.success != success) {
+            Run<?, ?> previous = run.getPreviousBuild();
+            node = new Node(extract(run.getNumber(), run), success, previous == null ? -1 : previous.getNumber());
+            cache.put(key, node);
+        }
+        if (success) {
+            return node.changeLogs;
+        }
+
+        JsonArray changeLogs = new JsonArray();
+        Job<?, ?> job = run.getParent();
+        int builds = 1;
+        changeLogs.addAll(node.changeLogs);
+        while (!node.success) {
+            if (maxBuilds > 0 && builds >= maxBuilds) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Change logs limited to the last {1} builds", run.getNumber(), maxBuilds));
+                }
+                return changeLogs;
+            }
+            node = node.previousNumber < 0 ? null : lookup(run.getNumber(), job, node.previousNumber);
+            if (node == null) {
+                // No previous successful build, as before no change logs are reported
+                return new JsonArray();
+            }
+            changeLogs.addAll(node.changeLogs);
+            builds++;
+        }
+        return changeLogs;
+    }
+
+    private Node lookup(int buildNumber, Job<?, ?> job, int number) {
+        String key = key(job, number);
+        Node node = cache.getIfPresent(key);
+        if (node != null) {
+            return node;
+        }
+        Run<?, ?> run = job.getBuildByNumber(number);
+        if (run == null) {
+            return null;
+        }
+        Run<?, ?> previous = run.getPreviousBuild();
+        boolean building = run.isBuilding();
+        node = new Node(
+                extract(buildNumber, run),
+                !building && run.getResult() == Result.SUCCESS,
+                previous == null ? -1 : previous.getNumber());
+        if (!building) {
+            cache.put(key, node);
+        }
+        return node;
+    }
+
+    private static String key(Job<?, ?> job, int number) {
+        return job.getFullName() + '#' + number;
+    }
+
+    /**
+     * Discards the cached change logs of jobs whose full name no longer designates them
+     */
+    @Extension
+    public static class Invalidator extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                invalidateShared(oldFullName);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                invalidateShared(item.getFullName());
+            }
+        }
+    }
+
+    /**
+     * Extract the change log sets for the given jenkins run
+     * @param run The run to extract change log details
+     * @return JSONArray of the change logs
+     */
+    private static JsonArray extract(int buildNumber, Run<?, ?> run) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format(
+                    "[#{0}] Collecting change log set for run : {1}", buildNumber, run.getNumber()));
+        }
+        List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeLogSets;
+        if (run instanceof WorkflowRun) {
+            changeLogSets = ((WorkflowRun) run).getChangeSets();
+        } else {
+            changeLogSets = ((AbstractBuild<?, ?>) run).getChangeSets();
+        }
+        /*
+           Collect file changes
+        */
+        JsonArray changeLogs = new JsonArray();
+        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeLogSet : changeLogSets) {
+            for (ChangeLogSet.Entry entry : changeLogSet) {
+                JsonObject changeLog = new JsonObject();
+                // Collect change log messages
+                changeLog.addProperty("message", entry.getMsg());
+                changeLog.addProperty("commitId", entry.getCommitId());
+                changeLog.addProperty("author", entry.getAuthor().getId());
+                changeLog.addProperty("timestamp", entry.getTimestamp());
+                // Collect file path of changed files
+                JsonArray filePaths = new JsonArray();
+                for (String filePath : entry.getAffectedPaths()) {
+                    filePaths.add(filePath);
+                }
+                changeLog.add("filePaths", filePaths);
+                changeLogs.add(changeLog);
+            }
+        }
+        return changeLogs;
+    }
+}
@@ -0,0 +1,126 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for each job, the console log chunks that CloudAEye already received, so that the next builds of the
+ * job only reference them. Chunks are keyed by the first 64 bits of their id, both the number of jobs and the number
+ * of chunks per job are bounded and the least recently used entries are evicted first.
+ */
+class ChunkIndex {
+
+    /** Maximum number of jobs indexed */
+    static final int MAX_JOBS = 256;
+
+    private static ChunkIndex shared;
+
+    private final Cache<String, Job> jobs;
+    private final int chunksPerJob;
+
+    /**
+     * Chunks received by CloudAEye for a single job
+     */
+    static final class Job {
+
+        private final int capacity;
+        private final Map<Long, Boolean> chunks;
+
+        /**
+         * @param capacity Maximum number of chunks remembered
+         */
+        Job(int capacity) {
+            this.capacity = capacity;
+            this.chunks = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        /**
+         * @param key Key of the chunk
+         * @return Whether CloudAEye already received the chunk
+         */
+        synchronized boolean contains(long key) {
+            return chunks.get(key) != null;
+        }
+
+        /**
+         * Records a chunk received by CloudAEye
+         * @param key Key of the chunk
+         */
+        synchronized void add(long key) {
+            chunks.put(key, Boolean.TRUE);
+        }
+
+        /**
+         * Records the chunks of a payload once CloudAEye received it
+         * @param payload Chunks of the payload, in log order
+         */
+        void addAll(Job payload) {
+            addAll(payload.getKeys());
+        }
+
+        /**
+         * Records the chunks of a payload once CloudAEye received it
+         * @param keys Keys of the chunks, in log order
+         */
+        synchronized void addAll(long[] keys) {
+            for (long key : keys) {
+                chunks.put(key, Boolean.TRUE);
+            }
+        }
+
+        /**
+         * @return Keys of the remembered chunks, from the least to the most recently used
+         */
+        synchronized long[] getKeys() {
+            return chunks.keySet().stream().mapToLong(Long::longValue).toArray();
+        }
+
+        int getCapacity() {
+            return capacity;
+        }
+
+        synchronized int size() {
+            return chunks.size();
+        }
+    }
+
+    /**
+     * @param chunksPerJob Maximum number of chunks remembered per job
+     */
+    ChunkIndex(int chunksPerJob) {
+        this.jobs = CacheBuilder.newBuilder().maximumSize(MAX_JOBS).build();
+        this.chunksPerJob = chunksPerJob;
+    }
+
+    /**
+     * @return The index configured in the global configuration
+     */
+    static synchronized ChunkIndex get() {
+        if (shared == null) {
+            shared = new ChunkIndex(CloudAEyeGlobalKeyConfiguration.get().getChunkIndexSize());
+        }
+        return shared;
+    }
+
+    /**
+     * Discards the shared index, the next export sends every chunk again
+     */
+    static synchronized void reset() {
+        shared = null;
+    }
+
+    /**
+     * @param fullName Full name of the job
+     * @return Chunks received for the job, created if needed
+     */
+    Job forJob(String fullName) {
+        return jobs.asMap().computeIfAbsent(fullName, name -> new Job(chunksPerJob));
+    }
+}
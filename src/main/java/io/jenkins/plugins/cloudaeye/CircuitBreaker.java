@@ -0,0 +1,84 @@
+package io.jenkins.plugins.cloudaeye;
+
+/**
+ * Stops sending exports to an endpoint that keeps failing.
+ * The circuit opens after a number of consecutive failures, requests are then refused right away. Once the open period
+ * has passed, a single probe request is let through: its success closes the circuit, its failure opens it again.
+ */
+final class CircuitBreaker {
+
+    /**
+     * State of the circuit
+     */
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold Number of consecutive failures that open the circuit, 0 never opens it
+     * @param openMillis Time the circuit stays open before a probe is let through
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * @return Whether a request may be sent now
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // A probe is already in flight
+                return false;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Time in milliseconds until a probe is let through, 0 unless the circuit is open
+     */
+    synchronized long getRemainingOpenMillis() {
+        return state == State.OPEN ? Math.max(0, openedAt + openMillis - System.currentTimeMillis()) : 0;
+    }
+}
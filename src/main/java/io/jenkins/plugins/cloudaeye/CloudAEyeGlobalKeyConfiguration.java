@@ -3,19 +3,28 @@ package io.jenkins.plugins.cloudaeye;
 import com.google.gson.JsonObject;
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
+import hudson.model.Job;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.servlet.ServletException;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
+import jenkins.model.labels.LabelExpression;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.util.EntityUtils;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.verb.POST;
 
 /**
@@ -32,10 +41,73 @@ public class CloudAEyeGlobalKeyConfiguration extends GlobalConfiguration {
 
     private Secret tenantKey;
     private Secret token;
+    private int workerThreads = 2;
+    private int queueCapacity = 1000;
+    private int backfillThreads = 2;
+    private int backfillBuildsPerSecond = 2;
+    private ExportQueue.OverflowPolicy overflowPolicy = ExportQueue.OverflowPolicy.SPILL;
+    private boolean rateLimitEnabled;
+    private int maxRequestsPerSecond = 10;
+    private int maxKilobytesPerSecond = 5120;
+    private ExportLimiter.OverLimitPolicy overLimitPolicy = ExportLimiter.OverLimitPolicy.DELAY;
+    private int degradedLogKilobytes = 256;
+    private String releaseBranchPattern = ExportLimiter.DEFAULT_RELEASE_BRANCHES;
+    private transient volatile Pattern compiledReleaseBranchPattern;
+    private boolean spoolEnabled = true;
+    private int spoolMaxMegabytes = 1024;
+    private int spoolRetentionHours = 72;
+    private int connectTimeout = 10;
+    private int socketTimeout = 60;
+    private int connectionRequestTimeout = 30;
+    private int maxConnectionsPerRoute = 4;
+    private CompressingEntity.Compression compression = CompressingEntity.Compression.NONE;
+    private int maxRetries = 3;
+    private int retryInitialDelayMillis = 1000;
+    private int retryMaxDelaySeconds = 30;
+    private int circuitBreakerThreshold = 5;
+    private int circuitBreakerOpenSeconds = 60;
+    private boolean logReductionEnabled;
+    private int logHeadLines = 200;
+    private int logTailLines = 500;
+    private int logContextLines = 20;
+    private int logRepeatThreshold = 3;
+    private int maxLogKilobytes = 10240;
+    private String logErrorPatterns = LogReducer.Settings.DEFAULT_PATTERNS;
+    private transient volatile LogReducer.Settings logReduction;
+    private transient volatile LogReducer.Settings degradedLogReduction;
+    private boolean redactionEnabled;
+    private String redactionRules = Redactor.DEFAULT_RULES;
+    private transient volatile Redactor.Rules compiledRedactionRules;
+    private int maxTestFailures = 100;
+    private boolean deltaLogsEnabled;
+    private int chunkIndexSize = 2048;
+    private int changeLogCacheSize = 1000;
+    private int changeLogCacheMinutes = 60;
+    private int maxChangeLogBuilds;
+    private boolean pipelineTrackingEnabled;
+    private String pipelineTrackingJobs;
+    private transient volatile Pattern compiledPipelineTrackingJobs;
+    private int batchSize = 1;
+    private int batchKilobytes = 4096;
+    private int batchLingerMillis = 2000;
+    private boolean debugPayloads;
+    private boolean agentOffloadEnabled;
+    private String agentOffloadLabel;
 
     public CloudAEyeGlobalKeyConfiguration() {
         // When Jenkins loads the plugin, load any saved configurations
         load();
+        applyDebugPayloads();
+    }
+
+    /**
+     * Binds the submitted form, then applies the connection settings once rather than from each setter
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        boolean configured = super.configure(req, json);
+        NotificationSender.reconfigure();
+        return configured;
     }
 
     // Getters and setters for keys
@@ -45,8 +117,13 @@ public class CloudAEyeGlobalKeyConfiguration extends GlobalConfiguration {
 
     @DataBoundSetter
     public void setTenantKey(Secret tenantKey) {
+        boolean changed = !Objects.equals(tenantKey, this.tenantKey);
         this.tenantKey = tenantKey;
         save();
+        // Saving the form calls every setter, batches are only tried again when the endpoint or batches change
+        if (changed) {
+            ExportBatch.resetRejection();
+        }
     }
 
     public Secret getToken() {
@@ -55,8 +132,731 @@ public class CloudAEyeGlobalKeyConfiguration extends GlobalConfiguration {
 
     @DataBoundSetter
     public void setToken(Secret token) {
+        boolean changed = !Objects.equals(token, this.token);
         this.token = token;
         save();
+        if (changed) {
+            ExportBatch.resetRejection();
+        }
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    @DataBoundSetter
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
+        save();
+        ExportQueue.get().resize(this.workerThreads);
+    }
+
+    public int getBackfillThreads() {
+        return backfillThreads;
+    }
+
+    @DataBoundSetter
+    public void setBackfillThreads(int backfillThreads) {
+        this.backfillThreads = Math.max(1, backfillThreads);
+        save();
+        BackfillManager.get().resize(this.backfillThreads);
+    }
+
+    public int getBackfillBuildsPerSecond() {
+        return backfillBuildsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setBackfillBuildsPerSecond(int backfillBuildsPerSecond) {
+        this.backfillBuildsPerSecond = Math.max(1, backfillBuildsPerSecond);
+        save();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @DataBoundSetter
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        save();
+    }
+
+    public ExportQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy == null ? ExportQueue.OverflowPolicy.SPILL : overflowPolicy;
+    }
+
+    @DataBoundSetter
+    public void setOverflowPolicy(ExportQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        save();
+    }
+
+    public boolean isRateLimitEnabled() {
+        return rateLimitEnabled;
+    }
+
+    @DataBoundSetter
+    public void setRateLimitEnabled(boolean rateLimitEnabled) {
+        this.rateLimitEnabled = rateLimitEnabled;
+        save();
+    }
+
+    public int getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = Math.max(1, maxRequestsPerSecond);
+        save();
+    }
+
+    public int getMaxKilobytesPerSecond() {
+        return maxKilobytesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setMaxKilobytesPerSecond(int maxKilobytesPerSecond) {
+        this.maxKilobytesPerSecond = Math.max(1, maxKilobytesPerSecond);
+        save();
+    }
+
+    public ExportLimiter.OverLimitPolicy getOverLimitPolicy() {
+        return overLimitPolicy == null ? ExportLimiter.OverLimitPolicy.DELAY : overLimitPolicy;
+    }
+
+    @DataBoundSetter
+    public void setOverLimitPolicy(ExportLimiter.OverLimitPolicy overLimitPolicy) {
+        this.overLimitPolicy = overLimitPolicy;
+        save();
+    }
+
+    public int getDegradedLogKilobytes() {
+        return degradedLogKilobytes;
+    }
+
+    @DataBoundSetter
+    public void setDegradedLogKilobytes(int degradedLogKilobytes) {
+        this.degradedLogKilobytes = Math.max(1, degradedLogKilobytes);
+        logReductionChanged();
+    }
+
+    public String getReleaseBranchPattern() {
+        return releaseBranchPattern == null ? ExportLimiter.DEFAULT_RELEASE_BRANCHES : releaseBranchPattern;
+    }
+
+    @DataBoundSetter
+    public void setReleaseBranchPattern(String releaseBranchPattern) {
+        this.releaseBranchPattern = releaseBranchPattern;
+        compiledReleaseBranchPattern = null;
+        save();
+    }
+
+    /**
+     * Returns the compiled release branch pattern, the default pattern is used if the configured one is invalid
+     * @return The pattern
+     */
+    Pattern getCompiledReleaseBranchPattern() {
+        Pattern pattern = compiledReleaseBranchPattern;
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(getReleaseBranchPattern());
+            } catch (PatternSyntaxException e) {
+                LOGGER.warning("Invalid CloudAEye release branch pattern, the default one is used : " + e.getMessage());
+                pattern = Pattern.compile(ExportLimiter.DEFAULT_RELEASE_BRANCHES);
+            }
+            compiledReleaseBranchPattern = pattern;
+        }
+        return pattern;
+    }
+
+    /**
+     * Describes the current token levels of the rate limiter (shown on the configuration page)
+     * @return Human readable rate limit state
+     */
+    public String getRateLimitStatus() {
+        if (!rateLimitEnabled) {
+            return "Disabled";
+        }
+        ExportLimiter limiter = ExportLimiter.get();
+        return MessageFormat.format(
+                "{0,number,0.#} of {1} requests and {2,number,0} of {3} KB available, "
+                        + "{4} exports delayed, {5} reduced, {6} skipped",
+                limiter.getAvailableRequests(),
+                maxRequestsPerSecond,
+                limiter.getAvailableBytes() / 1024,
+                maxKilobytesPerSecond,
+                limiter.getDelayed(),
+                limiter.getDegraded(),
+                limiter.getSkipped());
+    }
+
+    public boolean isSpoolEnabled() {
+        return spoolEnabled;
+    }
+
+    @DataBoundSetter
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        this.spoolEnabled = spoolEnabled;
+        save();
+    }
+
+    public int getSpoolMaxMegabytes() {
+        return spoolMaxMegabytes;
+    }
+
+    @DataBoundSetter
+    public void setSpoolMaxMegabytes(int spoolMaxMegabytes) {
+        this.spoolMaxMegabytes = Math.max(1, spoolMaxMegabytes);
+        save();
+    }
+
+    public int getSpoolRetentionHours() {
+        return spoolRetentionHours;
+    }
+
+    @DataBoundSetter
+    public void setSpoolRetentionHours(int spoolRetentionHours) {
+        this.spoolRetentionHours = Math.max(1, spoolRetentionHours);
+        save();
+    }
+
+    /**
+     * Describes the exports waiting in the spool (shown on the configuration page)
+     * @return Human readable spool state
+     */
+    public String getSpoolStatus() {
+        ExportSpool spool = ExportSpool.get();
+        return MessageFormat.format(
+                "{0} exports ({1,number,0} KB) waiting on disk, {2} sent later, {3} dropped",
+                spool.getPendingRecords(),
+                spool.getPendingBytes() / 1024,
+                spool.getReplayed(),
+                spool.getDropped());
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+        save();
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    @DataBoundSetter
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = Math.max(0, socketTimeout);
+        save();
+    }
+
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = Math.max(0, connectionRequestTimeout);
+        save();
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = Math.max(1, maxConnectionsPerRoute);
+        save();
+    }
+
+    public CompressingEntity.Compression getCompression() {
+        return compression == null ? CompressingEntity.Compression.NONE : compression;
+    }
+
+    @DataBoundSetter
+    public void setCompression(CompressingEntity.Compression compression) {
+        this.compression = compression;
+        save();
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        save();
+    }
+
+    public int getRetryInitialDelayMillis() {
+        return retryInitialDelayMillis;
+    }
+
+    @DataBoundSetter
+    public void setRetryInitialDelayMillis(int retryInitialDelayMillis) {
+        this.retryInitialDelayMillis = Math.max(0, retryInitialDelayMillis);
+        save();
+    }
+
+    public int getRetryMaxDelaySeconds() {
+        return retryMaxDelaySeconds;
+    }
+
+    @DataBoundSetter
+    public void setRetryMaxDelaySeconds(int retryMaxDelaySeconds) {
+        this.retryMaxDelaySeconds = Math.max(0, retryMaxDelaySeconds);
+        save();
+    }
+
+    /**
+     * @return Retry policy built from the current settings
+     */
+    RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(maxRetries, retryInitialDelayMillis, TimeUnit.SECONDS.toMillis(retryMaxDelaySeconds));
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = Math.max(0, circuitBreakerThreshold);
+        save();
+    }
+
+    public int getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerOpenSeconds(int circuitBreakerOpenSeconds) {
+        this.circuitBreakerOpenSeconds = Math.max(1, circuitBreakerOpenSeconds);
+        save();
+    }
+
+    /**
+     * Describes the state of the circuit breaker guarding the CloudAEye endpoint
+     * @return Human readable circuit state
+     */
+    public String getCircuitStatus() {
+        CircuitBreaker circuitBreaker = NotificationSender.getSharedCircuitBreaker();
+        switch (circuitBreaker.getState()) {
+            case OPEN:
+                return MessageFormat.format(
+                        "Open, exports are skipped for {0}",
+                        Util.getTimeSpanString(circuitBreaker.getRemainingOpenMillis()));
+            case HALF_OPEN:
+                return "Half open, probing the endpoint";
+            default:
+                return "Closed";
+        }
+    }
+
+    public boolean isLogReductionEnabled() {
+        return logReductionEnabled;
+    }
+
+    @DataBoundSetter
+    public void setLogReductionEnabled(boolean logReductionEnabled) {
+        this.logReductionEnabled = logReductionEnabled;
+        logReductionChanged();
+    }
+
+    public int getLogHeadLines() {
+        return logHeadLines;
+    }
+
+    @DataBoundSetter
+    public void setLogHeadLines(int logHeadLines) {
+        this.logHeadLines = Math.max(0, logHeadLines);
+        logReductionChanged();
+    }
+
+    public int getLogTailLines() {
+        return logTailLines;
+    }
+
+    @DataBoundSetter
+    public void setLogTailLines(int logTailLines) {
+        this.logTailLines = Math.max(0, logTailLines);
+        logReductionChanged();
+    }
+
+    public int getLogContextLines() {
+        return logContextLines;
+    }
+
+    @DataBoundSetter
+    public void setLogContextLines(int logContextLines) {
+        this.logContextLines = Math.max(0, logContextLines);
+        logReductionChanged();
+    }
+
+    public int getLogRepeatThreshold() {
+        return logRepeatThreshold;
+    }
+
+    @DataBoundSetter
+    public void setLogRepeatThreshold(int logRepeatThreshold) {
+        this.logRepeatThreshold = Math.max(0, logRepeatThreshold);
+        logReductionChanged();
+    }
+
+    public int getMaxLogKilobytes() {
+        return maxLogKilobytes;
+    }
+
+    @DataBoundSetter
+    public void setMaxLogKilobytes(int maxLogKilobytes) {
+        this.maxLogKilobytes = Math.max(0, maxLogKilobytes);
+        logReductionChanged();
+    }
+
+    public String getLogErrorPatterns() {
+        return logErrorPatterns;
+    }
+
+    @DataBoundSetter
+    public void setLogErrorPatterns(String logErrorPatterns) {
+        this.logErrorPatterns = logErrorPatterns;
+        logReductionChanged();
+    }
+
+    private void logReductionChanged() {
+        logReduction = null;
+        degradedLogReduction = null;
+        save();
+    }
+
+    /**
+     * Returns the compiled log reduction settings
+     * @return The settings, or null if the whole log is exported
+     */
+    public LogReducer.Settings getLogReduction() {
+        if (!logReductionEnabled) {
+            return null;
+        }
+        LogReducer.Settings settings = logReduction;
+        if (settings == null) {
+            settings = new LogReducer.Settings(
+                    logHeadLines,
+                    logTailLines,
+                    logContextLines,
+                    logRepeatThreshold,
+                    maxLogKilobytes * 1024L,
+                    logErrorPatterns);
+            logReduction = settings;
+        }
+        return settings;
+    }
+
+    /**
+     * Returns the log reduction of exports degraded by the rate limiter: the configured reduction, applied even if
+     * disabled, with the smaller size of {@link #getDegradedLogKilobytes()}
+     * @return The settings
+     */
+    LogReducer.Settings getDegradedLogReduction() {
+        LogReducer.Settings settings = degradedLogReduction;
+        if (settings == null) {
+            settings = new LogReducer.Settings(
+                    logHeadLines,
+                    logTailLines,
+                    logContextLines,
+                    logRepeatThreshold,
+                    degradedLogKilobytes * 1024L,
+                    logErrorPatterns);
+            degradedLogReduction = settings;
+        }
+        return settings;
+    }
+
+    public boolean isRedactionEnabled() {
+        return redactionEnabled;
+    }
+
+    @DataBoundSetter
+    public void setRedactionEnabled(boolean redactionEnabled) {
+        this.redactionEnabled = redactionEnabled;
+        save();
+    }
+
+    public String getRedactionRules() {
+        return redactionRules == null ? Redactor.DEFAULT_RULES : redactionRules;
+    }
+
+    @DataBoundSetter
+    public void setRedactionRules(String redactionRules) {
+        this.redactionRules = redactionRules;
+        compiledRedactionRules = null;
+        save();
+    }
+
+    /**
+     * Returns the compiled redaction rules. Invalid rules are replaced by the default ones, so that secrets are never
+     * sent because of a configuration mistake.
+     * @return The rules, or null if the log is exported as is
+     */
+    Redactor.Rules getCompiledRedactionRules() {
+        if (!redactionEnabled) {
+            return null;
+        }
+        Redactor.Rules rules = compiledRedactionRules;
+        if (rules == null) {
+            try {
+                rules = new Redactor.Rules(getRedactionRules());
+            } catch (PatternSyntaxException e) {
+                LOGGER.warning("Invalid CloudAEye redaction rules, the default rules are used : " + e.getMessage());
+                rules = new Redactor.Rules(Redactor.DEFAULT_RULES);
+            }
+            compiledRedactionRules = rules;
+        }
+        return rules;
+    }
+
+    public int getMaxTestFailures() {
+        return maxTestFailures;
+    }
+
+    @DataBoundSetter
+    public void setMaxTestFailures(int maxTestFailures) {
+        this.maxTestFailures = Math.max(0, maxTestFailures);
+        save();
+    }
+
+    public boolean isDeltaLogsEnabled() {
+        return deltaLogsEnabled;
+    }
+
+    @DataBoundSetter
+    public void setDeltaLogsEnabled(boolean deltaLogsEnabled) {
+        this.deltaLogsEnabled = deltaLogsEnabled;
+        save();
+    }
+
+    public int getChunkIndexSize() {
+        return chunkIndexSize;
+    }
+
+    @DataBoundSetter
+    public void setChunkIndexSize(int chunkIndexSize) {
+        int size = Math.max(1, chunkIndexSize);
+        boolean changed = size != this.chunkIndexSize;
+        this.chunkIndexSize = size;
+        save();
+        // Saving the form calls every setter, the index is only rebuilt when its size changes
+        if (changed) {
+            ChunkIndex.reset();
+        }
+    }
+
+    public int getChangeLogCacheSize() {
+        return changeLogCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setChangeLogCacheSize(int changeLogCacheSize) {
+        int value = Math.max(0, changeLogCacheSize);
+        boolean changed = value != this.changeLogCacheSize;
+        this.changeLogCacheSize = value;
+        save();
+        if (changed) {
+            ChangeLogCache.reset();
+        }
+    }
+
+    public int getChangeLogCacheMinutes() {
+        return changeLogCacheMinutes;
+    }
+
+    @DataBoundSetter
+    public void setChangeLogCacheMinutes(int changeLogCacheMinutes) {
+        int value = Math.max(1, changeLogCacheMinutes);
+        boolean changed = value != this.changeLogCacheMinutes;
+        this.changeLogCacheMinutes = value;
+        save();
+        if (changed) {
+            ChangeLogCache.reset();
+        }
+    }
+
+    public int getMaxChangeLogBuilds() {
+        return maxChangeLogBuilds;
+    }
+
+    @DataBoundSetter
+    public void setMaxChangeLogBuilds(int maxChangeLogBuilds) {
+        int value = Math.max(0, maxChangeLogBuilds);
+        boolean changed = value != this.maxChangeLogBuilds;
+        this.maxChangeLogBuilds = value;
+        save();
+        if (changed) {
+            ChangeLogCache.reset();
+        }
+    }
+
+    public boolean isPipelineTrackingEnabled() {
+        return pipelineTrackingEnabled;
+    }
+
+    @DataBoundSetter
+    public void setPipelineTrackingEnabled(boolean pipelineTrackingEnabled) {
+        this.pipelineTrackingEnabled = pipelineTrackingEnabled;
+        save();
+    }
+
+    public String getPipelineTrackingJobs() {
+        return pipelineTrackingJobs;
+    }
+
+    @DataBoundSetter
+    public void setPipelineTrackingJobs(String pipelineTrackingJobs) {
+        this.pipelineTrackingJobs = Util.fixEmptyAndTrim(pipelineTrackingJobs);
+        compiledPipelineTrackingJobs = null;
+        save();
+    }
+
+    /**
+     * Tells whether a pipeline is exported by pipeline tracking, only the jobs matching the configured pattern opt in
+     * @param job A pipeline job
+     * @return true if pipeline tracking is enabled and the full name of the job matches the pattern
+     */
+    boolean isPipelineTracked(Job<?, ?> job) {
+        if (!pipelineTrackingEnabled || pipelineTrackingJobs == null) {
+            return false;
+        }
+        Pattern pattern = compiledPipelineTrackingJobs;
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(pipelineTrackingJobs);
+            } catch (PatternSyntaxException e) {
+                LOGGER.warning(
+                        "Invalid CloudAEye tracked pipelines pattern, no pipeline is tracked : " + e.getMessage());
+                return false;
+            }
+            compiledPipelineTrackingJobs = pattern;
+        }
+        return pattern.matcher(job.getFullName()).matches();
+    }
+
+    public boolean isAgentOffloadEnabled() {
+        return agentOffloadEnabled;
+    }
+
+    @DataBoundSetter
+    public void setAgentOffloadEnabled(boolean agentOffloadEnabled) {
+        this.agentOffloadEnabled = agentOffloadEnabled;
+        save();
+    }
+
+    public String getAgentOffloadLabel() {
+        return agentOffloadLabel;
+    }
+
+    @DataBoundSetter
+    public void setAgentOffloadLabel(String agentOffloadLabel) {
+        this.agentOffloadLabel = Util.fixEmptyAndTrim(agentOffloadLabel);
+        save();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @DataBoundSetter
+    public void setBatchSize(int batchSize) {
+        int value = Math.max(1, batchSize);
+        boolean changed = value != this.batchSize;
+        this.batchSize = value;
+        save();
+        if (changed) {
+            ExportBatch.resetRejection();
+        }
+    }
+
+    public int getBatchKilobytes() {
+        return batchKilobytes;
+    }
+
+    @DataBoundSetter
+    public void setBatchKilobytes(int batchKilobytes) {
+        int value = Math.max(1, batchKilobytes);
+        boolean changed = value != this.batchKilobytes;
+        this.batchKilobytes = value;
+        save();
+        if (changed) {
+            ExportBatch.resetRejection();
+        }
+    }
+
+    public int getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    @DataBoundSetter
+    public void setBatchLingerMillis(int batchLingerMillis) {
+        int value = Math.max(0, batchLingerMillis);
+        boolean changed = value != this.batchLingerMillis;
+        this.batchLingerMillis = value;
+        save();
+        if (changed) {
+            ExportBatch.resetRejection();
+        }
+    }
+
+    public boolean isDebugPayloads() {
+        return debugPayloads;
+    }
+
+    @DataBoundSetter
+    public void setDebugPayloads(boolean debugPayloads) {
+        this.debugPayloads = debugPayloads;
+        save();
+        applyDebugPayloads();
+    }
+
+    private void applyDebugPayloads() {
+        PayloadLog.configure(
+                debugPayloads ? new File(Jenkins.get().getRootDir(), "logs/cloudaeye") : null,
+                PayloadLog.MAX_FILE_BYTES);
+    }
+
+    /**
+     * Summarizes the current state of the export queue (shown on the configuration page)
+     * @return Queue depth, in-flight exports and age of the oldest pending export
+     */
+    public String getQueueStatus() {
+        ExportQueue queue = ExportQueue.get();
+        return MessageFormat.format(
+                "{0} pending ({1} spilled to disk), {2} in flight, {3} dropped, oldest pending for {4}",
+                queue.getDepth(),
+                queue.getSpilled(),
+                queue.getInFlight(),
+                queue.getDropped(),
+                Util.getTimeSpanString(queue.getOldestAge()));
+    }
+
+    /**
+     * Summarizes the batches sent so far
+     * @return Human readable batch statistics
+     */
+    public String getBatchStatus() {
+        ExportQueue queue = ExportQueue.get();
+        return MessageFormat.format(
+                "{0} batches sent, {1,number,percent} filled on average, flushed by size {2}, bytes {3}, linger {4}",
+                queue.getBatchesSent(),
+                queue.getBatchFillRatio(),
+                queue.getFlushCount(ExportBatch.FlushReason.SIZE),
+                queue.getFlushCount(ExportBatch.FlushReason.BYTES),
+                queue.getFlushCount(ExportBatch.FlushReason.LINGER));
     }
 
     /**
@@ -81,6 +881,44 @@ public class CloudAEyeGlobalKeyConfiguration extends GlobalConfiguration {
         return FormValidation.ok();
     }
 
+    public FormValidation doCheckRedactionRules(@QueryParameter String redactionRules) {
+        try {
+            new Redactor.Rules(redactionRules);
+        } catch (PatternSyntaxException e) {
+            return FormValidation.error("Invalid regex : " + e.getDescription() + " in " + e.getPattern());
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckAgentOffloadLabel(@QueryParameter String agentOffloadLabel) {
+        if (StringUtils.isBlank(agentOffloadLabel)) {
+            return FormValidation.warning(
+                    "No agent is trusted with the credentials, builds are exported by the controller");
+        }
+        return LabelExpression.validate(agentOffloadLabel);
+    }
+
+    public FormValidation doCheckPipelineTrackingJobs(@QueryParameter String pipelineTrackingJobs) {
+        if (StringUtils.isBlank(pipelineTrackingJobs)) {
+            return FormValidation.warning("No pipeline is tracked");
+        }
+        try {
+            Pattern.compile(pipelineTrackingJobs);
+        } catch (PatternSyntaxException e) {
+            return FormValidation.error("Invalid regex : " + e.getDescription());
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckReleaseBranchPattern(@QueryParameter String releaseBranchPattern) {
+        try {
+            Pattern.compile(releaseBranchPattern);
+        } catch (PatternSyntaxException e) {
+            return FormValidation.error("Invalid regex : " + e.getDescription());
+        }
+        return FormValidation.ok();
+    }
+
     /**
      * Makes a dynamic ping to test the connectivity with the CloudAEye webhook
      * @param tenantKey Unique key assigned to the tenant
@@ -97,21 +935,30 @@ public class CloudAEyeGlobalKeyConfiguration extends GlobalConfiguration {
             // Convert the details to string
             JsonObject ping = new JsonObject();
             ping.addProperty("ping", true);
-            LOGGER.fine(MessageFormat.format("[#{0}] Ping payload : {1}", tenantKey, ping.toString()));
-            NotificationSender notificationSender = new NotificationSender();
-            HttpResponse response = notificationSender.sendDetailsToCloudAEye(ping.toString(), tenantKey, token);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                LOGGER.fine(MessageFormat.format("[#{0}] Ping successful", tenantKey));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format("[#{0}] Ping payload : {1}", tenantKey, ping.toString()));
+            }
+            // Sent even while the circuit breaker is open, which is when the connection needs testing
+            NotificationSender.Response response = NotificationSender.forConnectionTest()
+                    .sendDetailsToCloudAEye(ping.toString(), tenantKey, token);
+            if (response.getStatusCode() == 200) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format("[#{0}] Ping successful", tenantKey));
+                }
                 return FormValidation.ok("Connection successful!");
             } else {
-                LOGGER.fine(MessageFormat.format(
-                        "[#{0}] Ping failed : {1}", tenantKey, EntityUtils.toString(response.getEntity())));
-                return FormValidation.error(
-                        "Connection failed! Got response: " + EntityUtils.toString(response.getEntity()));
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format("[#{0}] Ping failed : {1}", tenantKey, response.getBody()));
+                }
+                return FormValidation.error("Connection failed! Got response: " + response.getBody());
             }
         } catch (IOException e) {
-            LOGGER.fine(MessageFormat.format(
-                    "[#{0}] Error while trying to ping CloudAEye webhook endpoint : {1}", tenantKey, e.getMessage()));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Error while trying to ping CloudAEye webhook endpoint : {1}",
+                        tenantKey,
+                        e.getMessage()));
+            }
             return FormValidation.error("Error while trying to ping CloudAEye webhook endpoint : " + e.getMessage());
         }
     }
@@ -1,23 +1,19 @@
 package io.jenkins.plugins.cloudaeye;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.codahale.metrics.Timer;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
-import hudson.scm.ChangeLogSet;
 import hudson.tasks.*;
 import hudson.util.Secret;
 import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.tasks.SimpleBuildStep;
-import org.apache.http.HttpResponse;
-import org.apache.http.util.EntityUtils;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -73,238 +69,39 @@ public class CloudAEyeNotifications extends Recorder implements SimpleBuildStep
             @NonNull TaskListener listener)
             throws InterruptedException, IOException {
 
-        // Collect the entire run payload to be sent to CloudAEye
-        JsonObject buildDetails = new JsonObject();
-        LOGGER.fine("Received run notification for run : " + run.getNumber());
-        if (!this.getEnableExport()) {
-            LOGGER.fine(MessageFormat.format(
-                    "[#{0}] Exporting to CloudAEye is not enabled. Skipping export", run.getNumber()));
-            return;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Received run notification for run : " + run.getNumber());
         }
-        /*
-         JSON Structure:
-           {
-              "job": {
-                  "name":"rca-traces-api",
-                  "id":"job/rca-traces-api/",
-                  "buildNumber":17,
-                  "duration":0,
-                  "startTime": 1725957396354,
-                  "endTime": 1725957486343
-                  "url":"job/rca-traces-api/17/",
-                  "logs": [],
-                  "status: "failed"
-              },
-              "source": {
-                  "branch":"origin/dev",
-                  "commit":"b25947ba1290735eac9d34701fe85b2f5ca6d045",
-                  "url":"https://github.com/CloudAEye/rca-traces-api",
-                  "prId": "",
-                  "prTarget": "",
-                  "changeLog": {
-                      "message": "",
-                      "annotatedMessage": "",
-                      "filePaths": []
-                  }
-              }
-           }
-        */
-        // If run is not failed then skip further processing
-        Result buildResult = run.getResult();
-        if (!(buildResult == Result.SUCCESS || buildResult == Result.FAILURE)) {
-            LOGGER.fine(MessageFormat.format(
-                    "[#{0}] Build status is neither success nor failure. Further processing skipped", run.getNumber()));
+        if (!this.getEnableExport()) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Exporting to CloudAEye is not enabled. Skipping export", run.getNumber()));
+            }
             return;
         }
-        try {
-            /*
-             * Collect job metadata and logs
-             */
-            JsonObject job = new JsonObject();
-            EnvVars envVars = run.getEnvironment(listener);
-            job.addProperty("startTime", run.getStartTimeInMillis());
-            long currentTime = System.currentTimeMillis();
-            long duration = (long) (Math.ceil(currentTime - run.getStartTimeInMillis()) / 1000.0);
-            job.addProperty("endTime", currentTime);
-            job.addProperty("name", run.getParent().getFullName());
-            job.addProperty("id", run.getParent().getUrl());
-            job.addProperty("buildNumber", run.getNumber());
-            job.addProperty("duration", duration);
-            job.addProperty("url", run.getUrl());
-            job.addProperty("status", buildResult == Result.SUCCESS ? "success" : "failure");
-
-            /*
-            Collect logs as list of strings
-            */
-            LOGGER.fine(MessageFormat.format("[#{0}] Extracting run logs", run.getNumber()));
-            job.add("logs", extractRunLogs(run.getNumber(), run));
-
-            buildDetails.add("job", job);
-
-            /*
-               Collect git source details
-            */
-            JsonObject source = new JsonObject();
-            source.addProperty("url", envVars.get("GIT_URL"));
-            /*
-            Collect PR details (if event is PR)
-            */
-            if (envVars.containsKey("CHANGE_ID") || envVars.containsKey("ghprbPullId")) {
-                LOGGER.fine(MessageFormat.format(
-                        "[#{0}] Identified git event: PR. Extracting details of the PR", run.getNumber()));
-                source.addProperty("eventType", "PR");
-                if (envVars.containsKey("CHANGE_ID")) {
-                    source.addProperty("prId", envVars.get("CHANGE_ID"));
-                    source.addProperty("prSourceBranch", envVars.get("CHANGE_BRANCH"));
-                    source.addProperty("prTargetBranch", envVars.get("CHANGE_TARGET"));
-                    source.addProperty("prLink", envVars.get("CHANGE_URL"));
-                } else {
-                    source.addProperty("prId", envVars.get("ghprbPullId"));
-                    source.addProperty("prSourceBranch", envVars.get("ghprbSourceBranch"));
-                    source.addProperty("prTargetBranch", envVars.get("ghprbTargetBranch"));
-                    source.addProperty("prLink", envVars.get("ghprbPullLink"));
-                }
-            } else if (envVars.containsKey("GIT_BRANCH")) {
+        if (run instanceof WorkflowRun && config.isPipelineTracked(run.getParent())) {
+            if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine(MessageFormat.format(
-                        "[#{0}] Identified git event: PUSH. Extracting details of the PR", run.getNumber()));
-                source.addProperty("eventType", "PUSH");
-                /*
-                Collect git commit and branch details (if git event is push)
-                 */
-                source.addProperty("branch", envVars.get("GIT_BRANCH"));
-                source.addProperty("commit", envVars.get("GIT_COMMIT"));
-                source.addProperty("prevCommit", envVars.get("GIT_PREVIOUS_COMMIT"));
-            } else {
-                LOGGER.fine(MessageFormat.format("[#{0}] Unidentified git event", run.getNumber()));
-                source.addProperty("eventType", "OTHER");
+                        "[#{0}] Pipeline is tracked, the run is exported once it completes", run.getNumber()));
             }
-
-            /*
-               Collect file log changes
-            */
-            if (run instanceof WorkflowRun || run instanceof AbstractBuild<?, ?>) {
-                // Extract change log for current build
-                JsonArray cumulativeChangeLogs = new JsonArray();
-                // If current build is a failure
-                if (buildResult == Result.FAILURE) {
-                    LOGGER.fine(MessageFormat.format(
-                            "[#{0}] Current build is a failure, collect all change logs till last successful build",
-                            run.getNumber()));
-                    // Get details of last build that succeeded
-                    Run<?, ?> previousSuccessfulRun = run.getPreviousSuccessfulBuild();
-                    if (previousSuccessfulRun != null) {
-                        LOGGER.fine(MessageFormat.format(
-                                "[#{0}] Previous successful build : {1}",
-                                run.getNumber(), previousSuccessfulRun.getNumber()));
-                        // Collect change logs for all runs between the current and last successful one
-                        Run<?, ?> r = run;
-                        while (r != null && (r.getNumber() >= previousSuccessfulRun.getNumber())) {
-                            JsonArray runChangeLogs = this.extractChangeLogsForRun(run.getNumber(), r);
-                            cumulativeChangeLogs.addAll(runChangeLogs);
-                            r = r.getPreviousBuild();
-                        }
-                    }
-                } else {
-                    LOGGER.fine(MessageFormat.format(
-                            "[#{0}] Current build is a success, collect change logs of current build",
-                            run.getNumber()));
-                    cumulativeChangeLogs = this.extractChangeLogsForRun(run.getNumber(), run);
-                }
-                // Add change log details to the parent object
-                source.add("changeLog", cumulativeChangeLogs);
-            }
-
-            // Add source to build details
-            buildDetails.add("source", source);
-            LOGGER.fine(MessageFormat.format(
-                    "[#{0}] Build details successfully captured : {1}", run.getNumber(), buildDetails));
-
-            // Export the extracted details to CloudAEye
-            sendDetailsToCloudAEye(run.getNumber(), buildDetails.toString(), this.getTenantKey(), this.getToken());
-
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+            return;
         }
-    }
-
-    /**
-     * Exports the run metadata and logs to CloudAEye
-     *
-     * @param details   Build details
-     * @param tenantKey Tenant key provided by CloudAEye
-     * @param token     Secret token provided by CloudAEye
-     */
-    private void sendDetailsToCloudAEye(int buildNumber, String details, Secret tenantKey, Secret token) {
-        try {
-            NotificationSender notificationSender = new NotificationSender();
-            HttpResponse response = notificationSender.sendDetailsToCloudAEye(details, tenantKey, token);
-            if (response.getStatusLine().getStatusCode() == 200) {
+        // If run is not failed then skip further processing
+        Result buildResult = run.getResult();
+        if (!(buildResult == Result.SUCCESS || buildResult == Result.FAILURE)) {
+            if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine(MessageFormat.format(
-                        "[#{0}] Success response received from CloudAEye endpoint : {1}",
-                        buildNumber, EntityUtils.toString(response.getEntity())));
-            } else {
-                LOGGER.warning(MessageFormat.format(
-                        "[#{0}] Error response received from CloudAEye endpoint : {1}",
-                        buildNumber, EntityUtils.toString(response.getEntity())));
+                        "[#{0}] Build status is neither success nor failure. Further processing skipped",
+                        run.getNumber()));
             }
-        } catch (IOException e) {
-            LOGGER.warning(MessageFormat.format(
-                    "[#{0}] Error while trying to send run details to CloudAEye : {1}", buildNumber, e.getMessage()));
-        }
-    }
-
-    /**
-     * Extract run logs as list of string
-     * @param run The current run
-     * @return Json array of log strings
-     */
-    private JsonArray extractRunLogs(int buildNumber, Run<?, ?> run) throws IOException {
-        List<String> lines = run.getLog(Integer.MAX_VALUE);
-        // Return the logs as json array of strings
-        JsonArray buildLogs = new JsonArray();
-        for (String log : lines) {
-            buildLogs.add(log);
-        }
-        LOGGER.fine(MessageFormat.format("[#{0}] Total log lines captured : {1}", buildNumber, buildLogs.size()));
-        return buildLogs;
-    }
-
-    /**
-     * Extract the change log sets for the given jenkins run
-     * @param run The run to extract change log details
-     * @return JSONArray of the change logs
-     */
-    private JsonArray extractChangeLogsForRun(int buildNumber, Run<?, ?> run) {
-        LOGGER.fine(
-                MessageFormat.format("[#{0}] Collecting change log set for run : {1}", buildNumber, run.getNumber()));
-        List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeLogSets;
-        if (run instanceof WorkflowRun) {
-            changeLogSets = ((WorkflowRun) run).getChangeSets();
-        } else {
-            changeLogSets = ((AbstractBuild<?, ?>) run).getChangeSets();
+            return;
         }
-        /*
-           Collect file changes
-        */
-        JsonArray changeLogs = new JsonArray();
-        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeLogSet : changeLogSets) {
-            for (ChangeLogSet.Entry entry : changeLogSet) {
-                JsonObject changeLog = new JsonObject();
-                // Collect change log messages
-                changeLog.addProperty("message", entry.getMsg());
-                changeLog.addProperty("commitId", entry.getCommitId());
-                changeLog.addProperty("author", entry.getAuthor().getId());
-                changeLog.addProperty("timestamp", entry.getTimestamp());
-                // Collect file path of changed files
-                JsonArray filePaths = new JsonArray();
-                for (String filePath : entry.getAffectedPaths()) {
-                    filePaths.add(filePath);
-                }
-                changeLog.add("filePaths", filePaths);
-                changeLogs.add(changeLog);
-            }
+        try (Timer.Context ignored = ExportMetrics.POST_BUILD.time()) {
+            // Only a reference to the run is captured here, the export itself runs on the background workers,
+            // from the agent that built the run when agent offload is enabled
+            String agent = config.isAgentOffloadEnabled() ? AgentExporter.agentOf(workspace) : null;
+            ExportQueue.get().submit(new ExportTask(run, buildResult, System.currentTimeMillis(), agent));
         }
-        return changeLogs;
     }
 
     /**
@@ -0,0 +1,114 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Compresses the wrapped payload while it is written to the request body
+ */
+public class CompressingEntity extends HttpEntityWrapper {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Payload compression applied to exports
+     */
+    public enum Compression {
+        NONE("None", Deflater.NO_COMPRESSION),
+        GZIP("gzip", Deflater.DEFAULT_COMPRESSION),
+        GZIP_FAST("gzip (fastest)", Deflater.BEST_SPEED);
+
+        private final String displayName;
+        private final int level;
+
+        Compression(String displayName, int level) {
+            this.displayName = displayName;
+            this.level = level;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        int getLevel() {
+            return level;
+        }
+    }
+
+    private final Compression compression;
+
+    /**
+     * @param wrapped Payload to compress
+     * @param compression Codec, must not be {@link Compression#NONE}
+     */
+    public CompressingEntity(HttpEntity wrapped, Compression compression) {
+        super(wrapped);
+        this.compression = compression;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", "gzip");
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    /**
+     * The compressed payload is produced by writing it, prefer {@link #writeTo} which does not start a writer thread
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return PipedContent.open(this);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ExportMetrics.TimedOutputStream compressed = new ExportMetrics.TimedOutputStream(out);
+        LeveledGzipOutputStream gzip = new LeveledGzipOutputStream(compressed, compression.getLevel());
+        ExportMetrics.TimedOutputStream uncompressed = new ExportMetrics.TimedOutputStream(gzip);
+        try {
+            wrappedEntity.writeTo(uncompressed);
+            // Only finish the gzip stream, the underlying request stream is closed by the client
+            long start = System.nanoTime();
+            gzip.finish();
+            long finishNanos = System.nanoTime() - start;
+            // Time spent in the gzip stream, less the time its output took to be sent
+            ExportMetrics.COMPRESSION.update(
+                    uncompressed.getNanos() + finishNanos - compressed.getNanos(), TimeUnit.NANOSECONDS);
+            ExportMetrics.COMPRESSED_BYTES.update(compressed.getBytes());
+        } finally {
+            gzip.release();
+        }
+    }
+
+    /**
+     * Gzip stream with a configurable compression level whose deflater can be released without closing the
+     * underlying stream
+     */
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        void release() {
+            def.end();
+        }
+    }
+}
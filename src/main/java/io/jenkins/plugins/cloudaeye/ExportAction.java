@@ -0,0 +1,104 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Functions;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * Summary of the export of a run to CloudAEye, shown on the run page.
+ * Only the last export of the run is kept.
+ */
+public class ExportAction implements RunAction2 {
+
+    /**
+     * Outcome of an export
+     */
+    public enum Outcome {
+        /** The endpoint accepted the export */
+        SENT,
+        /** The endpoint answered with an error */
+        REJECTED,
+        /** The endpoint could not be reached */
+        FAILED,
+        /** The endpoint could not take the export, it is kept on disk and sent once the endpoint is back */
+        SPOOLED
+    }
+
+    private final long payloadBytes;
+    private final long logLines;
+    private final long durationMillis;
+    private final Outcome outcome;
+    private final long timestamp;
+    private transient Run<?, ?> run;
+
+    /**
+     * @param payloadBytes Size of the uncompressed payload, -1 if unknown
+     * @param logLines Number of console log lines read, -1 if unknown
+     * @param durationMillis Duration of the export, retries included
+     * @param outcome Outcome of the export
+     */
+    ExportAction(long payloadBytes, long logLines, long durationMillis, Outcome outcome) {
+        this.payloadBytes = payloadBytes;
+        this.logLines = logLines;
+        this.durationMillis = durationMillis;
+        this.outcome = outcome;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public String getPayloadSize() {
+        return payloadBytes < 0 ? "unknown" : Functions.humanReadableByteSize(payloadBytes);
+    }
+
+    public long getLogLines() {
+        return logLines;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return Time at which the export finished
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        // Only shown as a summary on the run page
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "CloudAEye Export";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,277 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Several build exports sent as a single NDJSON request, one payload per line.
+ * If the endpoint rejects the batch or does not take it, every build is sent on its own instead. If it is failing or
+ * throttling, the builds are spooled rather than sent again one by one.
+ */
+class ExportBatch {
+
+    private static final Logger LOGGER = Logger.getLogger(ExportBatch.class.getName());
+
+    /**
+     * Why a batch was sent
+     */
+    enum FlushReason {
+        /** The batch reached the maximum number of builds */
+        SIZE,
+        /** The estimated size of the batch reached the byte limit */
+        BYTES,
+        /** No more builds arrived before the linger time elapsed */
+        LINGER
+    }
+
+    /** Batch endpoint that refused a batch, builds sent to it are then sent one by one */
+    private static volatile String rejectedEndpoint;
+
+    private final int maxBuilds;
+    private final long maxBytes;
+    private final List<ExportTask> tasks = new ArrayList<>();
+    private final List<Run<?, ?>> runs = new ArrayList<>();
+    private final List<BuildLogExporter> payloads = new ArrayList<>();
+    private long estimatedBytes;
+
+    /**
+     * @param maxBuilds Maximum number of builds in the batch
+     * @param maxBytes Maximum estimated size of the batch in bytes
+     */
+    ExportBatch(int maxBuilds, long maxBytes) {
+        this.maxBuilds = maxBuilds;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return Whether the configured batch endpoint refused a batch since the last configuration change
+     */
+    static boolean isRejected() {
+        String endpoint = rejectedEndpoint;
+        return endpoint != null
+                && endpoint.equals(NotificationSender.getBatchEndpoint(
+                        CloudAEyeGlobalKeyConfiguration.get().getTenantKey()));
+    }
+
+    /**
+     * Tries batches again, called when the configuration of the endpoint, the credentials or the batches changes
+     */
+    static void resetRejection() {
+        rejectedEndpoint = null;
+    }
+
+    /**
+     * Prepares the payload of the given task and adds it to the batch
+     * @param task Task to add, it is part of the batch even if its payload cannot be prepared
+     * @throws InterruptedException
+     */
+    void add(ExportTask task) throws InterruptedException {
+        tasks.add(task);
+        Run<?, ?> run = task.loadRun();
+        if (run == null) {
+            return;
+        }
+        // The batch is a single request, only its first build takes a request permit
+        ExportLimiter.Admission admission = ExportLimiter.get().admit(task.getPriority(), payloads.isEmpty());
+        if (admission == ExportLimiter.Admission.SKIPPED) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[{0}] Exports are over the rate limit. Skipping export", task.getRunId()));
+            }
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            payloads.add(new RunExporter()
+                    .prepare(
+                            run,
+                            task.getResult(),
+                            task.getEndTime(),
+                            TaskListener.NULL,
+                            admission == ExportLimiter.Admission.REDUCED));
+            ExportMetrics.PREPARE.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            runs.add(run);
+            estimatedBytes += estimateBytes(run, payloads.get(payloads.size() - 1));
+        } catch (IOException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    MessageFormat.format("[{0}] Error while exporting run to CloudAEye", task.getRunId()),
+                    e);
+        }
+    }
+
+    /**
+     * Estimates the size of a payload from its log, before it is written.
+     * The estimate is an upper bound: the log is capped by the reduction size but neither reduced nor compressed.
+     * @param run Exported run
+     * @param payload Payload of the run
+     * @return Estimated size in bytes
+     */
+    private static long estimateBytes(Run<?, ?> run, BuildLogExporter payload) {
+        long bytes = run.getLogText().length();
+        LogReducer.Settings reduction = payload.getReduction();
+        return reduction == null || reduction.maxBytes == 0 ? bytes : Math.min(bytes, reduction.maxBytes);
+    }
+
+    /**
+     * @return Tasks of the batch
+     */
+    List<ExportTask> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return The reason to send the batch now, or null if it still has room
+     */
+    FlushReason getFullReason() {
+        if (tasks.size() >= maxBuilds) {
+            return FlushReason.SIZE;
+        }
+        if (estimatedBytes >= maxBytes) {
+            return FlushReason.BYTES;
+        }
+        return null;
+    }
+
+    /**
+     * Sends the batch, falling back to one request per build if the endpoint rejects it
+     * @param reason Why the batch is sent
+     */
+    void send(FlushReason reason) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        RunExporter exporter = new RunExporter();
+        if (payloads.size() == 1) {
+            exporter.send(runs.get(0), payloads.get(0));
+            return;
+        }
+        for (int i = 0; i < payloads.size(); i++) {
+            PayloadLog.record("batched build", runs.get(i).getNumber(), payloads.get(i));
+        }
+        List<Integer> buildNumbers = new ArrayList<>();
+        runs.forEach(run -> buildNumbers.add(run.getNumber()));
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        long start = System.nanoTime();
+        try {
+            NotificationSender.Response response;
+            try {
+                response = NotificationSender.forBatches()
+                        .sendDetailsToCloudAEye(new NdjsonEntity(payloads), config.getTenantKey(), config.getToken());
+            } finally {
+                payloads.forEach(ExportLimiter.get()::consumed);
+                for (int i = 0; i < payloads.size(); i++) {
+                    PayloadLog.sent(LOGGER, "batched build", runs.get(i).getNumber(), payloads.get(i));
+                }
+            }
+            int status = response.getStatusCode();
+            if (status >= 200 && status < 300) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "Batch of builds {0} sent to CloudAEye ({1})", buildNumbers, reason));
+                }
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < payloads.size(); i++) {
+                    payloads.get(i).commitChunks();
+                    ExportMetrics.recordExport(runs.get(i), payloads.get(i), nanos, ExportAction.Outcome.SENT);
+                }
+                return;
+            }
+            if (status >= 500 || RetryPolicy.isRetryable(status)) {
+                LOGGER.warning(MessageFormat.format(
+                        "Error response received from CloudAEye batch endpoint for builds {0} : {1}",
+                        buildNumbers, response.getBody()));
+                // Sending every build again would multiply the load on a failing or throttling endpoint, and only a
+                // batch the endpoint turned down without processing it is spooled
+                boolean spool = RetryPolicy.isRetryable(status);
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < payloads.size(); i++) {
+                    ExportAction.Outcome outcome = spool
+                            ? RunExporter.spool(runs.get(i), payloads.get(i), ExportAction.Outcome.REJECTED)
+                            : ExportAction.Outcome.REJECTED;
+                    ExportMetrics.recordExport(runs.get(i), payloads.get(i), nanos, outcome);
+                }
+                return;
+            }
+            // Any other status, a redirect included, tells that the endpoint does not take batches
+            rejectedEndpoint = NotificationSender.getBatchEndpoint(config.getTenantKey());
+            LOGGER.warning(MessageFormat.format(
+                    "CloudAEye endpoint rejected the batch of builds {0} : {1}. Sending the builds one by one",
+                    buildNumbers, response.getBody()));
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "Error while trying to send the batch of builds {0} to CloudAEye : {1}",
+                    buildNumbers, e.getMessage()));
+            long nanos = System.nanoTime() - start;
+            for (int i = 0; i < payloads.size(); i++) {
+                // Spooled one by one, they are replayed to the single build endpoint
+                ExportAction.Outcome outcome = NotificationSender.isUnsent(e)
+                        ? RunExporter.spool(runs.get(i), payloads.get(i), ExportAction.Outcome.FAILED)
+                        : ExportAction.Outcome.FAILED;
+                ExportMetrics.recordExport(runs.get(i), payloads.get(i), nanos, outcome);
+            }
+            return;
+        }
+        for (int i = 0; i < payloads.size(); i++) {
+            exporter.send(runs.get(i), payloads.get(i));
+        }
+    }
+
+    /**
+     * Writes the payloads one after the other, separated by new lines
+     */
+    static final class NdjsonEntity extends AbstractHttpEntity {
+
+        private final List<? extends HttpEntity> payloads;
+
+        NdjsonEntity(List<? extends HttpEntity> payloads) {
+            this.payloads = payloads;
+            setContentType("application/x-ndjson");
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return payloads.stream().allMatch(HttpEntity::isRepeatable);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        /**
+         * The batch is produced by writing it, prefer {@link #writeTo} which does not start a writer thread
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            return PipedContent.open(this);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            for (HttpEntity payload : payloads) {
+                // Serialized JSON never contains a raw new line, so each payload stays on its own line
+                payload.writeTo(out);
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return payloads.stream().anyMatch(HttpEntity::isStreaming);
+        }
+    }
+}
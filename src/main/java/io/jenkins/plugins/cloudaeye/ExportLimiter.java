@@ -0,0 +1,234 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.scm.api.SCMHead;
+
+/**
+ * Limits the rate of requests and uploaded bytes of every export path: the export queue, batches, agents, stages
+ * and backfills share the same limits.
+ * Bytes are only known once a payload is streamed, they are counted afterwards and a large payload makes the
+ * following exports wait. Exports over the limit are delayed, reduced or skipped depending on the
+ * {@link OverLimitPolicy}, failures are never skipped.
+ */
+@Extension
+public class ExportLimiter {
+
+    /** Branches whose builds go before the builds of other branches, matched against the whole branch name */
+    static final String DEFAULT_RELEASE_BRANCHES = "(.*/)?(main|master|release[/-].+)";
+
+    /**
+     * What happens to an export when the rate limit is reached
+     */
+    public enum OverLimitPolicy {
+        DELAY("Wait until the export fits in the limit"),
+        DEGRADE("Send a reduced log"),
+        SKIP("Skip the export, except for failures");
+
+        private final String displayName;
+
+        OverLimitPolicy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Order in which pending exports are sent, failures first, then release branches before other branches and
+     * pull requests
+     */
+    public enum Priority {
+        RELEASE_FAILURE,
+        BRANCH_FAILURE,
+        CHANGE_REQUEST_FAILURE,
+        RELEASE_SUCCESS,
+        BRANCH_SUCCESS,
+        CHANGE_REQUEST_SUCCESS;
+
+        boolean isFailure() {
+            return compareTo(RELEASE_SUCCESS) < 0;
+        }
+
+        /**
+         * Classifies a run from its result and the source metadata recorded in its actions
+         * @param run The exported run
+         * @param result Result of the run, or of the stage, when the export was requested
+         * @return Priority of the export
+         */
+        static Priority of(Run<?, ?> run, Result result) {
+            boolean failure = result != null && result.isWorseThan(Result.SUCCESS);
+            Map<String, String> metadata = SourceMetadataResolver.resolveFromActions(run);
+            if (metadata.containsKey("CHANGE_ID") || metadata.containsKey("ghprbPullId")) {
+                return failure ? CHANGE_REQUEST_FAILURE : CHANGE_REQUEST_SUCCESS;
+            }
+            // Branches of multibranch jobs are named after their head, other jobs after the branch checked out
+            SCMHead head = SCMHead.HeadByItem.findHead(run.getParent());
+            String branch = head != null ? head.getName() : metadata.get("GIT_BRANCH");
+            boolean release = branch != null
+                    && CloudAEyeGlobalKeyConfiguration.get()
+                            .getCompiledReleaseBranchPattern()
+                            .matcher(branch)
+                            .matches();
+            if (release) {
+                return failure ? RELEASE_FAILURE : RELEASE_SUCCESS;
+            }
+            return failure ? BRANCH_FAILURE : BRANCH_SUCCESS;
+        }
+    }
+
+    /**
+     * Decision taken for an export
+     */
+    enum Admission {
+        /** The export is sent as configured */
+        FULL,
+        /** The export is sent with a reduced log */
+        REDUCED,
+        /** The export is not sent */
+        SKIPPED
+    }
+
+    /** @return the singleton instance */
+    public static ExportLimiter get() {
+        return ExtensionList.lookupSingleton(ExportLimiter.class);
+    }
+
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong degraded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private TokenBucket requests;
+    private TokenBucket bytes;
+
+    /**
+     * Admits an export with the configured policy, waiting for the limit if needed
+     * @param priority Priority of the export
+     * @param newRequest Whether the export is sent in a request of its own, rather than joining a batch
+     * @return How the export is sent
+     * @throws InterruptedException If interrupted while waiting
+     */
+    Admission admit(Priority priority, boolean newRequest) throws InterruptedException {
+        return admit(priority, newRequest, CloudAEyeGlobalKeyConfiguration.get().getOverLimitPolicy());
+    }
+
+    /**
+     * Admits an export, waiting for the limit if needed
+     * @param priority Priority of the export
+     * @param newRequest Whether the export is sent in a request of its own, rather than joining a batch
+     * @param policy What to do if the export is over the limit
+     * @return How the export is sent
+     * @throws InterruptedException If interrupted while waiting
+     */
+    Admission admit(Priority priority, boolean newRequest, OverLimitPolicy policy) throws InterruptedException {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        if (!config.isRateLimitEnabled()) {
+            return Admission.FULL;
+        }
+        TokenBucket requests = getRequests(config);
+        TokenBucket bytes = getBytes(config);
+        // The byte budget is checked first, so that a request permit is not used by an export that is not sent
+        if (bytes.getAvailable() > 0 && (!newRequest || requests.tryAcquire())) {
+            return Admission.FULL;
+        }
+        if (policy == OverLimitPolicy.SKIP && !priority.isFailure()) {
+            skipped.incrementAndGet();
+            ExportMetrics.SKIPPED.inc();
+            return Admission.SKIPPED;
+        }
+        if (newRequest) {
+            requests.acquire();
+        }
+        if (policy == OverLimitPolicy.DEGRADE && bytes.getAvailable() <= 0) {
+            degraded.incrementAndGet();
+            ExportMetrics.DEGRADED.inc();
+            return Admission.REDUCED;
+        }
+        bytes.acquire();
+        delayed.incrementAndGet();
+        ExportMetrics.DELAYED.inc();
+        return Admission.FULL;
+    }
+
+    /**
+     * Counts the bytes of a payload once it was written
+     * @param payload Payload of a run, not counted if it was never written
+     */
+    void consumed(BuildLogExporter payload) {
+        BuildLogExporter.WriteStats stats = payload.getLastWrite();
+        if (stats != null) {
+            consumed(stats.bytes);
+        }
+    }
+
+    /**
+     * Counts bytes uploaded to the endpoint
+     * @param count Number of bytes
+     */
+    void consumed(long count) {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        if (config.isRateLimitEnabled() && count > 0) {
+            getBytes(config).consume(count);
+        }
+    }
+
+    /**
+     * @return Requests that can be sent right now
+     */
+    public double getAvailableRequests() {
+        return getRequests(CloudAEyeGlobalKeyConfiguration.get()).getAvailable();
+    }
+
+    /**
+     * @return Bytes that can be sent right now, negative while large payloads are being paid back
+     */
+    public double getAvailableBytes() {
+        return getBytes(CloudAEyeGlobalKeyConfiguration.get()).getAvailable();
+    }
+
+    /**
+     * @return Number of exports that waited for the limit
+     */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    /**
+     * @return Number of exports sent with a reduced log because of the limit
+     */
+    public long getDegraded() {
+        return degraded.get();
+    }
+
+    /**
+     * @return Number of exports skipped because of the limit
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private synchronized TokenBucket getRequests(CloudAEyeGlobalKeyConfiguration config) {
+        int perSecond = config.getMaxRequestsPerSecond();
+        if (requests == null) {
+            requests = new TokenBucket(perSecond);
+        } else if (requests.getRate() != perSecond) {
+            requests.setRate(perSecond);
+        }
+        return requests;
+    }
+
+    private synchronized TokenBucket getBytes(CloudAEyeGlobalKeyConfiguration config) {
+        long perSecond = config.getMaxKilobytesPerSecond() * 1024L;
+        if (bytes == null) {
+            bytes = new TokenBucket(perSecond);
+        } else if (bytes.getRate() != perSecond) {
+            bytes.setRate(perSecond);
+        }
+        return bytes;
+    }
+}
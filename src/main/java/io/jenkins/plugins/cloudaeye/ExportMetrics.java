@@ -0,0 +1,219 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import hudson.Extension;
+import hudson.model.Run;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Metrics of the export path, published through the Metrics plugin and shown on the CloudAEye status page.
+ * The registry is owned by the plugin so that metrics are also recorded where Jenkins is not running.
+ */
+public final class ExportMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(ExportMetrics.class.getName());
+
+    static final MetricRegistry REGISTRY = new MetricRegistry();
+
+    /** Time spent in the post-build step, which only queues the export */
+    static final Timer POST_BUILD = REGISTRY.timer(name("post-build"));
+    /** Collection of the run metadata and change logs */
+    static final Timer PREPARE = REGISTRY.timer(name("export", "prepare"));
+    /** Reading the console log while the payload is written */
+    static final Timer LOG_READ = REGISTRY.timer(name("export", "log-read"));
+    /** Writing the payload as JSON, without the time spent reading the log or sending the bytes */
+    static final Timer SERIALIZATION = REGISTRY.timer(name("export", "serialization"));
+    /** Compressing the payload, without the time spent sending the compressed bytes */
+    static final Timer COMPRESSION = REGISTRY.timer(name("export", "compression"));
+    /** A single request to the endpoint, including the streaming of the payload */
+    static final Timer HTTP = REGISTRY.timer(name("export", "http"));
+    /** A whole export, retries included */
+    static final Timer DURATION = REGISTRY.timer(name("export", "duration"));
+
+    static final Counter RETRIES = REGISTRY.counter(name("export", "retries"));
+    /** Secrets masked in the exported logs */
+    static final Counter REDACTIONS = REGISTRY.counter(name("export", "redactions"));
+    static final Histogram PAYLOAD_BYTES = REGISTRY.histogram(name("export", "payload-bytes"));
+    static final Histogram COMPRESSED_BYTES = REGISTRY.histogram(name("export", "compressed-bytes"));
+    static final Histogram LOG_LINES = REGISTRY.histogram(name("export", "log-lines"));
+
+    static final Counter SUCCEEDED = REGISTRY.counter(name("exports", "succeeded"));
+    static final Counter FAILED = REGISTRY.counter(name("exports", "failed"));
+    static final Counter DROPPED = REGISTRY.counter(name("exports", "dropped"));
+    static final Counter DELAYED = REGISTRY.counter(name("exports", "delayed"));
+    static final Counter DEGRADED = REGISTRY.counter(name("exports", "degraded"));
+    static final Counter SKIPPED = REGISTRY.counter(name("exports", "skipped"));
+    static final Counter SPOOLED = REGISTRY.counter(name("exports", "spooled"));
+    static final Counter REPLAYED = REGISTRY.counter(name("exports", "replayed"));
+    /** Exports sent by the agent that built the run */
+    static final Counter OFFLOADED = REGISTRY.counter(name("exports", "offloaded"));
+
+    private ExportMetrics() {}
+
+    static String name(String... names) {
+        return MetricRegistry.name("cloudaeye", names);
+    }
+
+    /**
+     * Records the outcome of a build export and attaches its summary to the run
+     * @param run The exported run
+     * @param payload Payload of the run, already written
+     * @param nanos Duration of the export
+     * @param outcome Outcome of the export
+     */
+    static void recordExport(Run<?, ?> run, BuildLogExporter payload, long nanos, ExportAction.Outcome outcome) {
+        recordExport(run, payload.getLastWrite(), nanos, outcome);
+    }
+
+    /**
+     * Records the outcome of a build export and attaches its summary to the run.
+     * The run is only saved when the outcome changes, other updates of the summary are written with the next save.
+     * @param run The exported run
+     * @param stats Measurements of the payload write, null if the payload was never written
+     * @param nanos Duration of the export
+     * @param outcome Outcome of the export
+     */
+    static void recordExport(
+            Run<?, ?> run, BuildLogExporter.WriteStats stats, long nanos, ExportAction.Outcome outcome) {
+        DURATION.update(nanos, TimeUnit.NANOSECONDS);
+        switch (outcome) {
+            case SENT:
+                SUCCEEDED.inc();
+                break;
+            case SPOOLED:
+                // Counted by the spool, the export is sent once the endpoint is back
+                break;
+            default:
+                FAILED.inc();
+        }
+        if (stats != null) {
+            LOG_READ.update(stats.readNanos, TimeUnit.NANOSECONDS);
+            SERIALIZATION.update(stats.serializationNanos, TimeUnit.NANOSECONDS);
+            PAYLOAD_BYTES.update(stats.bytes);
+            LOG_LINES.update(stats.lines);
+        }
+        ExportAction previous = run.getAction(ExportAction.class);
+        run.addOrReplaceAction(new ExportAction(
+                stats == null ? -1 : stats.bytes,
+                stats == null ? -1 : stats.lines,
+                TimeUnit.NANOSECONDS.toMillis(nanos),
+                outcome));
+        if (previous != null && previous.getOutcome() == outcome) {
+            return;
+        }
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Unable to save the CloudAEye export summary : {1}", run.getNumber(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Publishes the export metrics through the Metrics plugin
+     */
+    @Extension
+    public static class Provider extends MetricProvider {
+        @Override
+        public MetricSet getMetricSet() {
+            return REGISTRY;
+        }
+    }
+
+    /**
+     * Measures the time spent reading from the wrapped stream
+     */
+    static final class TimedInputStream extends FilterInputStream {
+
+        private long nanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Measures the time spent writing to the wrapped stream and counts the bytes written
+     */
+    static final class TimedOutputStream extends FilterOutputStream {
+
+        private long nanos;
+        private long bytes;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() {
+            // The wrapped stream belongs to the caller
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Bounded queue of pending exports drained by a pool of background workers.
+ * Every task is written to JENKINS_HOME before it is queued and removed once processed, so pending exports survive
+ * a restart. When the in-memory queue is full the configured {@link OverflowPolicy} decides whether new tasks are
+ * dropped or only kept on disk until there is room again.
+ * Workers take the pending task with the highest {@link ExportLimiter.Priority} first.
+ */
+@Extension
+public class ExportQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(ExportQueue.class.getName());
+
+    /**
+     * What to do with a new export when the queue is full
+     */
+    public enum OverflowPolicy {
+        DROP("Drop the export"),
+        SPILL("Keep the export on disk until the queue has room");
+
+        private final String displayName;
+
+        OverflowPolicy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /** Interval at which a worker checks for more builds while a batch lingers */
+    private static final long BATCH_POLL_INTERVAL = 20;
+
+    /** Time given to the interrupted exports to end when Jenkins stops */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    /** Attained once the workers stopped, the shared http client is only closed afterwards */
+    static final String STOPPED = "cloudaeye.export-queue-stopped";
+
+    /** @return the singleton instance */
+    public static ExportQueue get() {
+        return ExtensionList.lookupSingleton(ExportQueue.class);
+    }
+
+    // Higher priorities first, then in the order the tasks were submitted
+    private final Queue<ExportTask> pending = new PriorityBlockingQueue<>(
+            64, Comparator.comparing(ExportTask::getPriority).thenComparing(ExportTask::getFileName));
+    private final Set<String> queuedFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger spilled = new AtomicInteger();
+    /** Time at which the oldest export spilled to disk was queued, 0 if there is none */
+    private volatile long oldestSpilledAt;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong batchedExports = new AtomicLong();
+    private final AtomicLong batchSlots = new AtomicLong();
+    private final Map<ExportBatch.FlushReason, AtomicLong> flushReasons = new EnumMap<>(ExportBatch.FlushReason.class);
+    private ThreadPoolExecutor workers;
+    /** Creates and submits the tasks handed over by threads that must not wait for the queue */
+    private ExecutorService submitter;
+    /** Set while Jenkins stops, exports failing meanwhile stay on disk */
+    private volatile boolean stopping;
+
+    public ExportQueue() {
+        for (ExportBatch.FlushReason reason : ExportBatch.FlushReason.values()) {
+            flushReasons.put(reason, new AtomicLong());
+        }
+    }
+
+    /**
+     * Queues the given task for export
+     * @param task Task to export
+     */
+    public void submit(ExportTask task) {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        task.setFileName(String.format(
+                "%013d-%06d.xml", task.getEnqueuedAt(), sequence.incrementAndGet() % 1_000_000));
+        // Decided, written and queued under the lock of refill, so that refill neither misses a spilled task nor
+        // loads a queued one
+        synchronized (this) {
+            if (pending.size() + inFlight.get() >= config.getQueueCapacity() || spilled.get() > 0) {
+                if (config.getOverflowPolicy() == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    ExportMetrics.DROPPED.inc();
+                    LOGGER.warning(MessageFormat.format(
+                            "[{0}] Export queue is full. Dropping export", task.getRunId()));
+                    return;
+                }
+                if (persist(task)) {
+                    spilled.incrementAndGet();
+                    if (oldestSpilledAt == 0 || task.getEnqueuedAt() < oldestSpilledAt) {
+                        oldestSpilledAt = task.getEnqueuedAt();
+                    }
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine(MessageFormat.format(
+                                "[{0}] Export queue is full. Export spilled to disk", task.getRunId()));
+                    }
+                    // The workers may have drained the queue since their last refill
+                    if (pending.size() + inFlight.get() < config.getQueueCapacity()) {
+                        refill();
+                    }
+                    return;
+                }
+                // The task could not be written to disk, keep it in memory rather than losing it
+            } else {
+                persist(task);
+            }
+            enqueue(task);
+        }
+    }
+
+    /**
+     * Creates and queues a task on a background thread, in the order the tasks are handed over.
+     * Classifying the export and writing it to disk are left to that thread, so that the caller, such as the thread
+     * running a pipeline, neither waits for the disk nor for the lock of the queue.
+     * @param task Creates the task to export
+     */
+    void submitLater(Supplier<? extends ExportTask> task) {
+        getSubmitter().execute(() -> {
+            try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                submit(task.get());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Unable to queue an export to CloudAEye", e);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getSubmitter() {
+        if (submitter == null) {
+            submitter = Executors.newSingleThreadExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "CloudAEye export submitter"));
+        }
+        return submitter;
+    }
+
+    /**
+     * @return Number of exports waiting to be processed, including the ones spilled to disk
+     */
+    public int getDepth() {
+        return pending.size() + spilled.get();
+    }
+
+    /**
+     * @return Number of exports spilled to disk because the queue was full
+     */
+    public int getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * @return Number of exports currently being processed
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Number of exports dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Age in milliseconds of the oldest export waiting in memory or spilled to disk, 0 if there is none
+     */
+    public long getOldestAge() {
+        // The queue is ordered by priority, the oldest task may be anywhere
+        long oldest = pending.stream().mapToLong(ExportTask::getEnqueuedAt).min().orElse(0);
+        long spilledAt = oldestSpilledAt;
+        if (spilledAt != 0 && (oldest == 0 || spilledAt < oldest)) {
+            oldest = spilledAt;
+        }
+        return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * Applies the configured number of workers to the running pool
+     * @param count Number of workers
+     */
+    synchronized void resize(int count) {
+        if (workers == null) {
+            return;
+        }
+        if (count > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(count);
+            workers.setCorePoolSize(count);
+        } else {
+            workers.setCorePoolSize(count);
+            workers.setMaximumPoolSize(count);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            int count = CloudAEyeGlobalKeyConfiguration.get().getWorkerThreads();
+            workers = new ThreadPoolExecutor(
+                    count,
+                    count,
+                    60,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "CloudAEye export worker"));
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private void enqueue(ExportTask task) {
+        if (stopping) {
+            // Already on disk, reloaded after the restart
+            return;
+        }
+        queuedFiles.add(task.getFileName());
+        pending.add(task);
+        getWorkers().execute(this::processNext);
+    }
+
+    private void processNext() {
+        ExportTask task = pending.poll();
+        if (task == null) {
+            return;
+        }
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        if (config.getBatchSize() > 1 && task.isBatchable() && !ExportBatch.isRejected()) {
+            processBatch(task, config);
+            return;
+        }
+        inFlight.incrementAndGet();
+        boolean kept = false;
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            task.execute();
+        } catch (InterruptedException e) {
+            // Shutting down, the task stays on disk and is picked up again after the restart
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException | RuntimeException e) {
+            if (keep(e)) {
+                kept = true;
+            } else {
+                LOGGER.log(
+                        Level.WARNING,
+                        MessageFormat.format("[{0}] Error while exporting run to CloudAEye", task.getRunId()),
+                        e);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        if (kept) {
+            requeue(task);
+            return;
+        }
+        delete(task);
+        refill();
+    }
+
+    /**
+     * @param e Failure of an export
+     * @return Whether the export failed because Jenkins is stopping or the http client was closed under it, rather
+     * than because of the export itself
+     */
+    private boolean keep(Exception e) {
+        return stopping || NotificationSender.isClientClosed(e);
+    }
+
+    /**
+     * Leaves a task that could not be processed on disk, it is reloaded by the next refill or after the restart
+     * @param task Task to process again
+     */
+    private synchronized void requeue(ExportTask task) {
+        queuedFiles.remove(task.getFileName());
+        if (stopping) {
+            return;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format("[{0}] Export interrupted. Trying again later", task.getRunId()));
+        }
+        spilled.incrementAndGet();
+        refill();
+    }
+
+    /**
+     * Collects the following pending builds into a batch with the given one and sends it
+     * @param first Task that starts the batch
+     * @param config Batch limits
+     */
+    private void processBatch(ExportTask first, CloudAEyeGlobalKeyConfiguration config) {
+        ExportBatch batch = new ExportBatch(config.getBatchSize(), config.getBatchKilobytes() * 1024L);
+        long lingerUntil = first.getEnqueuedAt() + config.getBatchLingerMillis();
+        boolean kept = false;
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            ExportTask task = first;
+            ExportBatch.FlushReason reason;
+            while (true) {
+                inFlight.incrementAndGet();
+                batch.add(task);
+                reason = batch.getFullReason();
+                if (reason != null) {
+                    break;
+                }
+                task = pollBatchable(lingerUntil);
+                if (task == null) {
+                    reason = ExportBatch.FlushReason.LINGER;
+                    break;
+                }
+            }
+            batch.send(reason);
+            batchesSent.incrementAndGet();
+            batchedExports.addAndGet(batch.getTasks().size());
+            batchSlots.addAndGet(config.getBatchSize());
+            flushReasons.get(reason).incrementAndGet();
+        } catch (InterruptedException e) {
+            // Shutting down, the tasks stay on disk and are picked up again after the restart
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            if (keep(e)) {
+                kept = true;
+            } else {
+                LOGGER.log(Level.WARNING, "Error while exporting a batch of runs to CloudAEye", e);
+            }
+        } finally {
+            inFlight.addAndGet(-batch.getTasks().size());
+        }
+        if (kept) {
+            batch.getTasks().forEach(this::requeue);
+            return;
+        }
+        for (ExportTask task : batch.getTasks()) {
+            delete(task);
+        }
+        refill();
+    }
+
+    /**
+     * Takes the next pending build that can join a batch, waiting for one until the given time
+     * @param until Time after which the batch is sent without waiting for more builds
+     * @return The next task, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    private ExportTask pollBatchable(long until) throws InterruptedException {
+        while (true) {
+            ExportTask task = pending.poll();
+            if (task != null) {
+                if (task.isBatchable()) {
+                    return task;
+                }
+                // Not part of a batch, hand it back to another worker
+                pending.add(task);
+                getWorkers().execute(this::processNext);
+                return null;
+            }
+            long remaining = until - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(remaining, BATCH_POLL_INTERVAL));
+        }
+    }
+
+    /**
+     * @return Number of batches sent
+     */
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    /**
+     * @return Average share of the batch size used by the batches sent, between 0 and 1
+     */
+    public double getBatchFillRatio() {
+        long slots = batchSlots.get();
+        return slots == 0 ? 0 : (double) batchedExports.get() / slots;
+    }
+
+    /**
+     * @param reason Flush reason
+     * @return Number of batches sent for the given reason
+     */
+    public long getFlushCount(ExportBatch.FlushReason reason) {
+        return flushReasons.get(reason).get();
+    }
+
+    /**
+     * Moves exports spilled to disk back into the queue while there is room
+     */
+    private synchronized void refill() {
+        if (spilled.get() == 0) {
+            return;
+        }
+        int capacity = CloudAEyeGlobalKeyConfiguration.get().getQueueCapacity();
+        String[] names = getDirectory().list((dir, name) -> name.endsWith(".xml") && !queuedFiles.contains(name));
+        if (names == null) {
+            spilled.set(0);
+            oldestSpilledAt = 0;
+            return;
+        }
+        Arrays.sort(names);
+        int loaded = 0;
+        for (String name : names) {
+            if (pending.size() + inFlight.get() >= capacity) {
+                break;
+            }
+            ExportTask task = read(name);
+            loaded++;
+            if (task != null) {
+                enqueue(task);
+            }
+        }
+        spilled.set(names.length - loaded);
+        // Files are named after the time their task was queued, the first one left is the oldest
+        oldestSpilledAt = loaded < names.length ? enqueuedAtOf(names[loaded]) : 0;
+    }
+
+    /**
+     * @param name Name of a task file
+     * @return Time at which the task was queued, 0 if the name does not tell
+     */
+    private static long enqueuedAtOf(String name) {
+        int separator = name.indexOf('-');
+        try {
+            return separator > 0 ? Long.parseLong(name.substring(0, separator)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private boolean persist(ExportTask task) {
+        File directory = getDirectory();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            new XmlFile(Jenkins.XSTREAM2, new File(directory, task.getFileName())).write(task);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    MessageFormat.format("[{0}] Unable to persist export task", task.getRunId()),
+                    e);
+            return false;
+        }
+    }
+
+    private ExportTask read(String name) {
+        File file = new File(getDirectory(), name);
+        try {
+            ExportTask task = (ExportTask) new XmlFile(Jenkins.XSTREAM2, file).read();
+            task.setFileName(name);
+            return task;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("Discarding unreadable export task {0}", file), e);
+            if (!file.delete()) {
+                LOGGER.warning(MessageFormat.format("Unable to delete export task {0}", file));
+            }
+            return null;
+        }
+    }
+
+    private void delete(ExportTask task) {
+        File file = new File(getDirectory(), task.getFileName());
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning(MessageFormat.format("Unable to delete export task {0}", file));
+        }
+        queuedFiles.remove(task.getFileName());
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "cloudaeye/queue");
+    }
+
+    /**
+     * Reloads the exports that were still pending when Jenkins stopped
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void restore() {
+        ExportQueue queue = get();
+        queue.stopping = false;
+        File[] files = queue.getDirectory().listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        LOGGER.info(MessageFormat.format("Restoring {0} pending CloudAEye exports", files.length));
+        synchronized (queue) {
+            queue.spilled.set(files.length);
+            queue.refill();
+        }
+    }
+
+    /**
+     * Stops the workers, unfinished exports stay on disk and are reloaded by {@link #restore()}.
+     * The running exports are interrupted and waited for, before the http client they use is closed.
+     */
+    @Terminator(attains = STOPPED)
+    public static void shutdown() {
+        ExportQueue queue = get();
+        ExecutorService submitter;
+        synchronized (queue) {
+            submitter = queue.submitter;
+            queue.submitter = null;
+        }
+        if (submitter != null) {
+            // The tasks handed over are still written to disk, to be exported after the restart
+            submitter.shutdown();
+            try {
+                if (!submitter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOGGER.warning("CloudAEye exports still being queued after the shutdown timeout");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ThreadPoolExecutor workers;
+        synchronized (queue) {
+            queue.stopping = true;
+            workers = queue.workers;
+            queue.workers = null;
+            queue.pending.clear();
+            queue.queuedFiles.clear();
+            queue.spilled.set(0);
+            queue.oldestSpilledAt = 0;
+        }
+        if (workers == null) {
+            return;
+        }
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warning("CloudAEye exports still running after the shutdown timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.http.HttpEntity;
+
+/**
+ * Keeps the exports the endpoint could not take in a {@link Spool} under JENKINS_HOME, and sends them again in the
+ * background once the endpoint is back.
+ * Replay goes through the rate limiter like every other export, waits while the circuit breaker is open and resumes
+ * from the last record sent after a restart.
+ */
+@Extension
+public class ExportSpool {
+
+    private static final Logger LOGGER = Logger.getLogger(ExportSpool.class.getName());
+
+    /** Size after which a new segment file is started */
+    static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /** Shortest wait between two attempts to send a spooled export */
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+
+    /** @return the singleton instance */
+    public static ExportSpool get() {
+        return ExtensionList.lookupSingleton(ExportSpool.class);
+    }
+
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private Spool spool;
+    private ExecutorService replayer;
+
+    /**
+     * Writes an export to the spool and starts replaying it
+     * @param kind Endpoint of the export
+     * @param runId Externalizable id of the exported run
+     * @param payload Payload, written once to the spool
+     * @return Whether the export was kept, false if the spool is disabled or cannot be written
+     */
+    boolean add(Spool.Kind kind, String runId, HttpEntity payload) {
+        if (!CloudAEyeGlobalKeyConfiguration.get().isSpoolEnabled()) {
+            return false;
+        }
+        try {
+            getSpool().append(kind, runId, payload);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("[{0}] Unable to spool the CloudAEye export", runId), e);
+            return false;
+        }
+        ExportMetrics.SPOOLED.inc();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format("[{0}] Export spooled until the endpoint is back", runId));
+        }
+        startReplay();
+        return true;
+    }
+
+    /**
+     * @return Number of exports waiting in the spool
+     */
+    public long getPendingRecords() {
+        try {
+            return getSpool().getPendingRecords();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Size of the exports waiting in the spool
+     */
+    public long getPendingBytes() {
+        try {
+            return getSpool().getPendingBytes();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Number of spooled exports sent since Jenkins started
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return Number of spooled exports dropped by retention, or refused or possibly processed by the
+     * endpoint, since Jenkins started
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private synchronized Spool getSpool() throws IOException {
+        if (spool == null) {
+            spool = new Spool(getDirectory(), SEGMENT_BYTES);
+        }
+        return spool;
+    }
+
+    private static File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "cloudaeye/spool");
+    }
+
+    private synchronized ExecutorService getReplayer() {
+        if (replayer == null) {
+            replayer = Executors.newSingleThreadExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "CloudAEye spool replay"));
+        }
+        return replayer;
+    }
+
+    /**
+     * Starts the replay of the spool unless it is already running
+     */
+    void startReplay() {
+        if (replaying.compareAndSet(false, true)) {
+            getReplayer().execute(this::replay);
+        }
+    }
+
+    /**
+     * Sends the spooled exports oldest first, until the spool is empty
+     */
+    private void replay() {
+        int attempt = 0;
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            while (true) {
+                CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+                try {
+                    Spool spool = getSpool();
+                    long lost = spool.applyRetention(
+                            config.getSpoolMaxMegabytes() * 1024L * 1024L,
+                            TimeUnit.HOURS.toMillis(config.getSpoolRetentionHours()));
+                    if (lost > 0) {
+                        dropped.addAndGet(lost);
+                        LOGGER.warning(MessageFormat.format(
+                                "Dropped {0} spooled CloudAEye exports beyond the spool size or age limits", lost));
+                    }
+                    Spool.Record record = spool.next();
+                    if (record == null) {
+                        replaying.set(false);
+                        // An export spooled while this worker was stopping would otherwise wait for the next one
+                        if (spool.getPendingBytes() == 0 || !replaying.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    long openMillis = NotificationSender.getSharedCircuitBreaker().getRemainingOpenMillis();
+                    if (openMillis > 0) {
+                        Thread.sleep(openMillis);
+                        continue;
+                    }
+                    if (!record.isIntact()) {
+                        LOGGER.warning(MessageFormat.format(
+                                "[{0}] Spooled CloudAEye export is corrupted. Dropping it", record.id));
+                        dropped.incrementAndGet();
+                        spool.commit(record);
+                        continue;
+                    }
+                    ExportLimiter.get()
+                            .admit(ExportLimiter.Priority.BRANCH_SUCCESS, true, ExportLimiter.OverLimitPolicy.DELAY);
+                    if (send(record, config)) {
+                        spool.commit(record);
+                        attempt = 0;
+                        continue;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The worker keeps going, nothing else would replay the spool on a quiet controller
+                    LOGGER.log(Level.WARNING, "Error while replaying the CloudAEye spool, trying again later", e);
+                }
+                Thread.sleep(Math.max(MIN_RETRY_DELAY_MILLIS, config.getRetryPolicy().getDelay(attempt++, -1)));
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, replay resumes from the last record sent after the restart
+            replaying.set(false);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a spooled export
+     * @param record The spooled export
+     * @param config Credentials
+     * @return Whether the export is done with: sent, refused for good or possibly processed by the endpoint
+     */
+    private boolean send(Spool.Record record, CloudAEyeGlobalKeyConfiguration config) {
+        if (config.getTenantKey() == null || config.getToken() == null) {
+            return false;
+        }
+        NotificationSender sender =
+                record.kind == Spool.Kind.STAGE ? NotificationSender.forStages() : new NotificationSender();
+        long start = System.nanoTime();
+        NotificationSender.Response response;
+        try {
+            response = sender.sendDetailsToCloudAEye(record.toEntity(), config.getTenantKey(), config.getToken());
+        } catch (IOException e) {
+            if (NotificationSender.isUnsent(e)) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[{0}] Spooled export could not be sent : {1}", record.id, e.getMessage()));
+                }
+                return false;
+            }
+            // The endpoint may have processed the export, it is not sent twice
+            LOGGER.warning(MessageFormat.format(
+                    "[{0}] Error while trying to send the spooled export, it is not sent again : {1}",
+                    record.id, e.getMessage()));
+            dropped.incrementAndGet();
+            return true;
+        } finally {
+            ExportLimiter.get().consumed(record.length);
+        }
+        int status = response.getStatusCode();
+        if (status == 200) {
+            replayed.incrementAndGet();
+            ExportMetrics.REPLAYED.inc();
+            if (record.kind == Spool.Kind.BUILD) {
+                markSent(record.id, System.nanoTime() - start);
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format("[{0}] Spooled export sent to CloudAEye", record.id));
+            }
+            return true;
+        }
+        // Kept only if the endpoint turned it down without processing it, a gateway error may come after it was
+        if (RetryPolicy.isRetryable(status)) {
+            return false;
+        }
+        LOGGER.warning(MessageFormat.format(
+                "[{0}] CloudAEye endpoint did not take the spooled export : {1}. Dropping it",
+                record.id, response.getBody()));
+        dropped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records on the run that its spooled export was sent
+     */
+    private static void markSent(String runId, long nanos) {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        ExportAction previous = run == null ? null : run.getAction(ExportAction.class);
+        if (previous == null || previous.getOutcome() != ExportAction.Outcome.SPOOLED) {
+            return;
+        }
+        run.addOrReplaceAction(new ExportAction(
+                previous.getPayloadBytes(),
+                previous.getLogLines(),
+                TimeUnit.NANOSECONDS.toMillis(nanos),
+                ExportAction.Outcome.SENT));
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[{0}] Unable to save the CloudAEye export summary : {1}", runId, e.getMessage()));
+        }
+    }
+
+    /**
+     * Resumes the replay of the exports spooled before Jenkins stopped
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void restore() {
+        ExportSpool spool = get();
+        if (!getDirectory().isDirectory() || spool.getPendingBytes() == 0) {
+            return;
+        }
+        LOGGER.info(MessageFormat.format("Replaying {0} spooled CloudAEye exports", spool.getPendingRecords()));
+        spool.startReplay();
+    }
+
+    /**
+     * Stops the replay, the spool is left as is for the next start
+     */
+    @Terminator
+    public static void shutdown() {
+        ExportSpool spool = get();
+        synchronized (spool) {
+            if (spool.replayer != null) {
+                spool.replayer.shutdownNow();
+                spool.replayer = null;
+            }
+            if (spool.spool != null) {
+                try {
+                    spool.spool.close();
+                } catch (IOException e) {
+                    LOGGER.warning("Unable to close the CloudAEye spool : " + e.getMessage());
+                }
+                spool.spool = null;
+            }
+        }
+    }
+}
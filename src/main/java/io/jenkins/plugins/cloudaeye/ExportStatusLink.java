@@ -0,0 +1,131 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status page of the export path, listing the export metrics next to the state of the queue and of the endpoint
+ */
+@Extension
+public class ExportStatusLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-analytics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "CloudAEye Export Status";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Latencies, sizes and outcomes of the exports to CloudAEye";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cloudaeye";
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public CloudAEyeGlobalKeyConfiguration getConfiguration() {
+        return CloudAEyeGlobalKeyConfiguration.get();
+    }
+
+    /**
+     * @return Latency of each step of the export path, in milliseconds
+     */
+    public List<Row> getTimers() {
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Timer> timer : ExportMetrics.REGISTRY.getTimers().entrySet()) {
+            Snapshot snapshot = timer.getValue().getSnapshot();
+            double millis = TimeUnit.MILLISECONDS.toNanos(1);
+            rows.add(new Row(
+                    timer.getKey(),
+                    timer.getValue().getCount(),
+                    snapshot.getMedian() / millis,
+                    snapshot.get99thPercentile() / millis,
+                    snapshot.getMax() / millis));
+        }
+        return rows;
+    }
+
+    /**
+     * @return Distribution of the payload sizes and line counts
+     */
+    public List<Row> getHistograms() {
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Histogram> histogram : ExportMetrics.REGISTRY.getHistograms().entrySet()) {
+            Snapshot snapshot = histogram.getValue().getSnapshot();
+            rows.add(new Row(
+                    histogram.getKey(),
+                    histogram.getValue().getCount(),
+                    snapshot.getMedian(),
+                    snapshot.get99thPercentile(),
+                    snapshot.getMax()));
+        }
+        return rows;
+    }
+
+    /**
+     * @return Totals of the export outcomes and retries
+     */
+    public Map<String, Counter> getCounters() {
+        return ExportMetrics.REGISTRY.getCounters();
+    }
+
+    /**
+     * A metric distribution summarized for display
+     */
+    public static final class Row {
+        private final String name;
+        private final long count;
+        private final double median;
+        private final double p99;
+        private final double max;
+
+        Row(String name, long count, double median, double p99, double max) {
+            this.name = name;
+            this.count = count;
+            this.median = median;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public String getMedian() {
+            return String.format("%,.1f", median);
+        }
+
+        public String getP99() {
+            return String.format("%,.1f", p99);
+        }
+
+        public String getMax() {
+            return String.format("%,.1f", max);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pending export of a completed run.
+ * Only a reference to the run is kept, so the task is cheap to persist under JENKINS_HOME while it waits in the
+ * {@link ExportQueue}.
+ */
+public class ExportTask {
+
+    private static final Logger LOGGER = Logger.getLogger(ExportTask.class.getName());
+
+    private final String runId;
+    private final Result result;
+    private final long endTime;
+    private final long enqueuedAt;
+    private final ExportLimiter.Priority priority;
+    private final String agent;
+    private transient String fileName;
+
+    /**
+     * @param run The run to export
+     * @param result Result of the run when the export was requested
+     * @param endTime Time at which the export was requested
+     */
+    public ExportTask(Run<?, ?> run, Result result, long endTime) {
+        this(run, result, endTime, null);
+    }
+
+    /**
+     * @param run The run to export
+     * @param result Result of the run when the export was requested
+     * @param endTime Time at which the export was requested
+     * @param agent Name of the agent that built the run, null to export the run from the controller
+     */
+    ExportTask(Run<?, ?> run, Result result, long endTime, String agent) {
+        this.agent = agent;
+        this.runId = run.getExternalizableId();
+        this.result = result;
+        this.endTime = endTime;
+        this.enqueuedAt = System.currentTimeMillis();
+        this.priority = ExportLimiter.Priority.of(run, result);
+    }
+
+    /**
+     * @return Externalizable id of the run
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @return Result of the run when the export was requested
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return Time at which the export was requested
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return Time at which the task was added to the queue
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * @return Priority of the export, tasks written by earlier versions are treated as successful branch builds
+     */
+    public ExportLimiter.Priority getPriority() {
+        return priority == null ? ExportLimiter.Priority.BRANCH_SUCCESS : priority;
+    }
+
+    /**
+     * @return Name of the agent that built the run, null if the run is exported from the controller
+     */
+    String getAgent() {
+        return agent;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * @return Whether the task can be sent as part of a batch of builds
+     */
+    boolean isBatchable() {
+        return agent == null;
+    }
+
+    /**
+     * Loads the referenced run and exports it
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void execute() throws IOException, InterruptedException {
+        Run<?, ?> run = loadRun();
+        if (run == null) {
+            return;
+        }
+        ExportLimiter.Admission admission = ExportLimiter.get().admit(getPriority(), true);
+        if (agent != null && admission != ExportLimiter.Admission.SKIPPED) {
+            boolean reduced = admission == ExportLimiter.Admission.REDUCED;
+            if (AgentExporter.export(run, result, endTime, agent, reduced) != null) {
+                return;
+            }
+        }
+        new RunExporter().export(run, result, endTime, TaskListener.NULL, admission);
+    }
+
+    /**
+     * @return The referenced run, or null if it no longer exists
+     */
+    Run<?, ?> loadRun() {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        if (run == null) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format("[{0}] Run no longer exists. Skipping export", runId));
+            }
+        }
+        return run;
+    }
+}
@@ -0,0 +1,148 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Splits the exported console lines into content-defined chunks and writes them as a manifest.
+ * Boundaries are found with a gear rolling hash over the bytes of the lines and moved to the next line end, so an
+ * inserted or removed line only changes the chunk around it and consecutive builds of a job share most of their chunks.
+ * Each chunk is written as {"id": ..., "lines": [...]}, or as {"id": ...} alone when CloudAEye already received it,
+ * the id being the first 128 bits of the SHA-256 of the chunk lines, each followed by a new line.
+ */
+class LogChunker implements LogReducer.Sink {
+
+    /** Chunks are never cut before this size */
+    static final int MIN_CHUNK_BYTES = 2 * 1024;
+    /** Chunks are always cut past this size, even without a boundary */
+    static final int MAX_CHUNK_BYTES = 64 * 1024;
+    /** A boundary is found every 8 KiB on average, from the top bits that depend on the last 64 bytes */
+    private static final long BOUNDARY_MASK = ((1L << 13) - 1) << (64 - 13);
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, the boundaries must not change between two runs of the controller
+        SplittableRandom random = new SplittableRandom(0x436c6f7564414579L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final JsonWriter json;
+    private final ChunkIndex.Job received;
+    private final ChunkIndex.Job written;
+    private final MessageDigest digest;
+    private final List<String> lines = new ArrayList<>();
+    private long hash;
+    private int chunkBytes;
+    private boolean boundary;
+    private long chunks;
+    private long newChunks;
+
+    /**
+     * @param json Writer positioned inside the chunk array
+     * @param received Chunks CloudAEye already received for the job
+     */
+    LogChunker(JsonWriter json, ChunkIndex.Job received) {
+        this.json = json;
+        this.received = received;
+        this.written = new ChunkIndex.Job(received.getCapacity());
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public void line(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            roll(b);
+        }
+        roll((byte) '\n');
+        digest.update(bytes);
+        digest.update((byte) '\n');
+        lines.add(line);
+        if (boundary || chunkBytes >= MAX_CHUNK_BYTES) {
+            writeChunk();
+        }
+    }
+
+    private void roll(byte b) {
+        hash = (hash << 1) + GEAR[b & 0xff];
+        chunkBytes++;
+        if (chunkBytes >= MIN_CHUNK_BYTES && (hash & BOUNDARY_MASK) == 0) {
+            boundary = true;
+        }
+    }
+
+    /**
+     * Writes the last chunk of the log
+     * @throws IOException If the chunk cannot be written
+     */
+    void finish() throws IOException {
+        if (!lines.isEmpty()) {
+            writeChunk();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        byte[] sha = digest.digest();
+        long key = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            key = (key << 8) | (sha[i] & 0xff);
+        }
+        json.beginObject();
+        json.name("id").value(hex(sha, 16));
+        // Chunks repeated within the log are only sent once as well
+        if (!received.contains(key) && !written.contains(key)) {
+            json.name("lines").beginArray();
+            for (String line : lines) {
+                json.value(line);
+            }
+            json.endArray();
+            newChunks++;
+        }
+        json.endObject();
+        written.add(key);
+        chunks++;
+        lines.clear();
+        hash = 0;
+        chunkBytes = 0;
+        boundary = false;
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return Chunks written to the payload, to record once CloudAEye received it
+     */
+    ChunkIndex.Job getWritten() {
+        return written;
+    }
+
+    long getChunks() {
+        return chunks;
+    }
+
+    long getNewChunks() {
+        return newChunks;
+    }
+}
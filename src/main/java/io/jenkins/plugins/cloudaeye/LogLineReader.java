@@ -0,0 +1,188 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.console.ConsoleNote;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads console lines from a raw log stream one at a time.
+ * Console notes are stripped in place, secrets are masked and overly long lines are truncated, so the memory held by
+ * the reader stays bounded regardless of the size of the log.
+ */
+class LogLineReader implements Closeable {
+
+    /** Maximum number of bytes kept for a single line, the remainder of the line is discarded */
+    static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private static final String TRUNCATED_SUFFIX = " [line truncated]";
+
+    private final InputStream in;
+    private final Charset charset;
+    private final AhoCorasick matcher;
+    private final Redactor redactor;
+    private final byte[] buffer = new byte[16 * 1024];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[512];
+    private int lineLength;
+    private boolean truncated;
+    private long lineCount;
+    private int lastLineBytes;
+    private boolean lastLineMatched;
+
+    LogLineReader(InputStream in, Charset charset) {
+        this(in, charset, BuildLogExporter.Settings.NONE);
+    }
+
+    /**
+     * @param in Raw console log
+     * @param charset Charset of the log
+     * @param settings Export settings: each line is masked with the redaction rules, then matched against the error
+     * patterns of the reduction before it is decoded
+     */
+    LogLineReader(InputStream in, Charset charset, BuildLogExporter.Settings settings) {
+        this.in = in;
+        this.charset = charset;
+        this.matcher = settings.reduction == null ? null : settings.reduction.matcher;
+        this.redactor = settings.redaction == null ? null : new Redactor(settings.redaction);
+    }
+
+    /**
+     * Reads the next line of the log
+     * @return The line without console notes and line terminator, or null at the end of the stream
+     * @throws IOException If the underlying stream cannot be read
+     */
+    String readLine() throws IOException {
+        boolean pending = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return pending ? completeLine() : null;
+                }
+            }
+            pending = true;
+            int end = position;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            append(buffer, position, end - position);
+            if (end < limit) {
+                position = end + 1;
+                return completeLine();
+            }
+            position = limit;
+        }
+    }
+
+    /**
+     * @return Number of lines read so far
+     */
+    long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return Size in bytes of the last line read, without console notes
+     */
+    int getLastLineBytes() {
+        return lastLineBytes;
+    }
+
+    /**
+     * @return Whether the last line read matches one of the patterns of the matcher
+     */
+    boolean isLastLineMatched() {
+        return lastLineMatched;
+    }
+
+    /**
+     * @return Number of secrets masked so far
+     */
+    long getRedactions() {
+        return redactor == null ? 0 : redactor.getRedactions();
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        int room = MAX_LINE_BYTES - lineLength;
+        if (length > room) {
+            truncated = true;
+            length = room;
+        }
+        if (length <= 0) {
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_BYTES, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(bytes, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private String completeLine() {
+        int length = lineLength;
+        if (!truncated && length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        length = removeNotes(line, length);
+        if (redactor != null) {
+            int redacted = redactor.redact(line, length);
+            if (redacted >= 0) {
+                line = redactor.swap(line);
+                length = redacted;
+            }
+        }
+        lastLineBytes = length;
+        lastLineMatched = matcher != null && matcher.find(line, 0, length);
+        String text = new String(line, 0, length, charset);
+        if (truncated) {
+            text = text + TRUNCATED_SUFFIX;
+        }
+        lineLength = 0;
+        truncated = false;
+        lineCount++;
+        return text;
+    }
+
+    /**
+     * Removes console notes from the given bytes by compacting the remaining content in place
+     * @param bytes Line content
+     * @param length Number of valid bytes
+     * @return The new number of valid bytes
+     */
+    static int removeNotes(byte[] bytes, int length) {
+        int next = ConsoleNote.findPreamble(bytes, 0, length);
+        if (next < 0) {
+            return length;
+        }
+        int read = 0;
+        int write = 0;
+        while (next >= 0) {
+            System.arraycopy(bytes, read, bytes, write, next - read);
+            write += next - read;
+            ByteArrayInputStream note = new ByteArrayInputStream(bytes, next, length - next);
+            try {
+                ConsoleNote.skip(new DataInputStream(note));
+            } catch (IOException e) {
+                // Incomplete note (e.g. the line was truncated), drop the rest of the line
+                return write;
+            }
+            read = length - note.available();
+            next = ConsoleNote.findPreamble(bytes, read, length - read);
+        }
+        System.arraycopy(bytes, read, bytes, write, length - read);
+        return write + length - read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,280 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Reduces a console log to the regions that matter for root cause analysis, in a single streaming pass.
+ * The head and tail of the log are kept, as well as a window of context around every line matching one of the error
+ * patterns. Runs of identical lines are collapsed into a count and the output respects a byte budget. Every original
+ * line that is not part of the output is reported as a dropped line range, up to {@link #MAX_DROPPED_RANGES} ranges.
+ */
+class LogReducer {
+
+    /**
+     * Receives the lines kept by the reducer, in log order
+     */
+    interface Sink {
+        void line(String line) throws IOException;
+    }
+
+    /**
+     * Settings of the log reduction, with the error patterns compiled once.
+     * Settings are sent to agents exporting their own builds, the patterns are compiled again there.
+     */
+    static final class Settings implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Patterns of non-zero exit codes, the literals cannot tell a step that succeeded from one that failed */
+        private static final String NON_ZERO_EXIT_CODES = Stream.of("exit code ", "exit status ", "Exit value: ")
+                .flatMap(prefix -> IntStream.rangeClosed(1, 9).mapToObj(code -> prefix + code))
+                .collect(Collectors.joining("\n"));
+
+        /** Error patterns used when none are configured, escape sequences such as \t are supported */
+        static final String DEFAULT_PATTERNS = String.join(
+                "\n",
+                "ERROR",
+                "FAILED",
+                "FAILURE",
+                "Exception",
+                "Caused by:",
+                "\\tat ",
+                "Traceback (most recent call last)",
+                NON_ZERO_EXIT_CODES);
+
+        final int headLines;
+        final int tailLines;
+        final int contextLines;
+        final int repeatThreshold;
+        final long maxBytes;
+        final transient AhoCorasick matcher;
+        private final String patterns;
+
+        /**
+         * @param headLines Number of lines always kept at the start of the log
+         * @param tailLines Number of lines always kept at the end of the log
+         * @param contextLines Number of lines kept before and after each matching line
+         * @param repeatThreshold Identical consecutive lines beyond this count are collapsed, 0 disables collapsing
+         * @param maxBytes Maximum number of bytes of log content to keep, 0 for no limit
+         * @param patterns Error patterns, one literal per line
+         */
+        Settings(int headLines, int tailLines, int contextLines, int repeatThreshold, long maxBytes, String patterns) {
+            this.headLines = Math.max(0, headLines);
+            this.tailLines = Math.max(0, tailLines);
+            this.contextLines = Math.max(0, contextLines);
+            this.repeatThreshold = Math.max(0, repeatThreshold);
+            this.maxBytes = Math.max(0, maxBytes);
+            this.patterns = patterns;
+            this.matcher = AhoCorasick.compile(parsePatterns(patterns));
+        }
+
+        private Object readResolve() {
+            return new Settings(headLines, tailLines, contextLines, repeatThreshold, maxBytes, patterns);
+        }
+
+        /**
+         * Splits the configured patterns, one per line, and resolves the \t escape
+         * @param patterns Configured patterns
+         * @return List of non-empty literals
+         */
+        static List<String> parsePatterns(String patterns) {
+            if (patterns == null) {
+                return Collections.emptyList();
+            }
+            return Arrays.stream(patterns.split("\\R"))
+                    .map(pattern -> pattern.replace("\\t", "\t"))
+                    .filter(pattern -> !pattern.isEmpty())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** Upper bound of dropped ranges reported, further ranges are left out and reported as truncated */
+    static final int MAX_DROPPED_RANGES = 10_000;
+
+    private final Settings settings;
+    private final Sink sink;
+    private final long streamingBudget;
+
+    // Ring buffer holding the most recent lines, until they are known to be kept or dropped
+    private final String[] texts;
+    private final long[] firstLines;
+    private final long[] lastLines;
+    private final int[] sizes;
+    private final boolean[] kept;
+    private final boolean[] markers;
+    private int start;
+    private int count;
+
+    private long lineNumber;
+    private int afterRemaining;
+    private String previous;
+    private int repeatCount;
+    private long repeatedFrom;
+    private long repeatedTo;
+    private int repeatedSize;
+
+    private long keptLines;
+    private long keptBytes;
+    private final List<long[]> droppedRanges = new ArrayList<>();
+    private boolean droppedRangesTruncated;
+
+    LogReducer(Settings settings, Sink sink) {
+        this.settings = settings;
+        this.sink = sink;
+        // A quarter of the budget is reserved for the tail, which is only known at the end of the log
+        this.streamingBudget = settings.maxBytes - settings.maxBytes / 4;
+        int capacity = Math.max(1, Math.max(settings.tailLines, settings.contextLines));
+        texts = new String[capacity];
+        firstLines = new long[capacity];
+        lastLines = new long[capacity];
+        sizes = new int[capacity];
+        kept = new boolean[capacity];
+        markers = new boolean[capacity];
+    }
+
+    /**
+     * Processes the next line of the log
+     * @param line Line content
+     * @param bytes Size of the line in bytes
+     * @param matched Whether the line matches one of the error patterns
+     * @throws IOException If the sink fails
+     */
+    void accept(String line, int bytes, boolean matched) throws IOException {
+        lineNumber++;
+        if (settings.repeatThreshold > 0 && !matched && line.equals(previous)) {
+            if (repeatedTo > 0 || ++repeatCount > settings.repeatThreshold) {
+                if (repeatedTo == 0) {
+                    repeatedFrom = lineNumber;
+                }
+                repeatedTo = lineNumber;
+                repeatedSize = bytes;
+                return;
+            }
+        } else {
+            flushRepeated();
+            repeatCount = 1;
+        }
+        previous = line;
+        push(line, bytes, lineNumber, lineNumber, false, matched);
+    }
+
+    /**
+     * Flushes the lines still buffered, the tail of the log is kept
+     * @throws IOException If the sink fails
+     */
+    void finish() throws IOException {
+        flushRepeated();
+        int tailStart = count - settings.tailLines;
+        for (int i = 0; i < count; i++) {
+            int slot = (start + i) % texts.length;
+            evict(slot, kept[slot] || i >= tailStart, settings.maxBytes);
+        }
+        count = 0;
+    }
+
+    /**
+     * @return Number of lines of the original log
+     */
+    long getTotalLines() {
+        return lineNumber;
+    }
+
+    /**
+     * @return Number of lines written to the sink, including collapse markers
+     */
+    long getKeptLines() {
+        return keptLines;
+    }
+
+    /**
+     * @return Inclusive ranges of original line numbers (1-based) that are not part of the output
+     */
+    List<long[]> getDroppedRanges() {
+        return droppedRanges;
+    }
+
+    /**
+     * @return Whether dropped lines were left out of the ranges after {@link #MAX_DROPPED_RANGES} ranges
+     */
+    boolean isDroppedRangesTruncated() {
+        return droppedRangesTruncated;
+    }
+
+    private void flushRepeated() throws IOException {
+        if (repeatedTo == 0) {
+            return;
+        }
+        long repeated = repeatedTo - repeatedFrom + 1;
+        String marker = "[previous line repeated " + repeated + " more times]";
+        push(marker, repeatedSize, repeatedFrom, repeatedTo, true, false);
+        repeatedTo = 0;
+    }
+
+    private void push(String text, int bytes, long first, long last, boolean marker, boolean matched)
+            throws IOException {
+        boolean keep = first <= settings.headLines;
+        if (matched) {
+            keep = true;
+            afterRemaining = settings.contextLines;
+            // Keep the context before the match that is still buffered
+            for (int i = Math.max(0, count - settings.contextLines); i < count; i++) {
+                kept[(start + i) % texts.length] = true;
+            }
+        } else if (afterRemaining > 0) {
+            keep = true;
+            afterRemaining--;
+        }
+        if (count == texts.length) {
+            evict(start, kept[start], streamingBudget);
+            start = (start + 1) % texts.length;
+            count--;
+        }
+        int slot = (start + count) % texts.length;
+        texts[slot] = text;
+        firstLines[slot] = first;
+        lastLines[slot] = last;
+        sizes[slot] = bytes;
+        kept[slot] = keep;
+        markers[slot] = marker;
+        count++;
+    }
+
+    private void evict(int slot, boolean keep, long budget) throws IOException {
+        if (keep && (budget == 0 || keptBytes + sizes[slot] <= budget)) {
+            sink.line(texts[slot]);
+            keptLines++;
+            keptBytes += sizes[slot];
+            if (markers[slot]) {
+                // The marker stands in for the collapsed lines, which are not part of the output
+                drop(firstLines[slot], lastLines[slot]);
+            }
+        } else {
+            drop(firstLines[slot], lastLines[slot]);
+        }
+        texts[slot] = null;
+    }
+
+    private void drop(long first, long last) {
+        if (!droppedRanges.isEmpty()) {
+            long[] range = droppedRanges.get(droppedRanges.size() - 1);
+            if (range[1] + 1 >= first) {
+                range[1] = last;
+                return;
+            }
+        }
+        if (droppedRanges.size() >= MAX_DROPPED_RANGES) {
+            // Extending the last range would report the lines kept in between as dropped
+            droppedRangesTruncated = true;
+            return;
+        }
+        droppedRanges.add(new long[] {first, last});
+    }
+}
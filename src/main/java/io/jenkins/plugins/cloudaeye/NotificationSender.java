@@ -1,16 +1,32 @@
 package io.jenkins.plugins.cloudaeye;
 
+import com.codahale.metrics.Timer;
+import hudson.init.Terminator;
 import hudson.util.Secret;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.MessageFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
 /**
  * Sends given notification payload to the CloudAEye webhook endpoint
@@ -19,14 +35,238 @@ public class NotificationSender {
 
     private static final Logger LOGGER = Logger.getLogger(NotificationSender.class.getName());
 
+    /** Base url of the CloudAEye API, the system property points the plugin at a local endpoint for load tests */
+    static String baseUrl = SystemProperties.getString(
+            NotificationSender.class.getName() + ".baseUrl", "https://api.cloudaeye.com/rca/test/v1");
+
+    static final String ENDPOINT_PATH = "/tenants/{0}/jenkins/process-build";
+
+    static final String STAGE_ENDPOINT_PATH = "/tenants/{0}/jenkins/process-stage";
+
+    static final String BATCH_ENDPOINT_PATH = "/tenants/{0}/jenkins/process-builds";
+
+    /** Idle connections are closed after this many seconds */
+    static final int IDLE_CONNECTION_TIMEOUT = 30;
+
+    private static SharedClient sharedClient;
+
+    private static CircuitBreaker sharedCircuitBreaker;
+
+    /** Endpoints that rejected a compressed payload, exports are then sent uncompressed to them */
+    private static final Set<String> compressionRejected = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Response of the CloudAEye endpoint. The response entity is fully consumed before this is returned, so the
+     * connection is already back in the pool.
+     */
+    public static final class Response {
+        private final int statusCode;
+        private final String body;
+        private final long retryAfterMillis;
+
+        Response(int statusCode, String body) {
+            this(statusCode, body, -1);
+        }
+
+        Response(int statusCode, String body, long retryAfterMillis) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * @return Delay requested by the endpoint through Retry-After, -1 if none
+         */
+        long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    /**
+     * The plugin-wide client with the settings it was built from. Requests lease it, so that a client replaced by a
+     * configuration change is only closed once the requests running on it are done.
+     */
+    static final class SharedClient {
+        /** Pooled client the requests are sent with, closed once it is retired and no longer leased */
+        private final CloseableHttpClient client;
+        private final List<Object> settings;
+        private int leases;
+        private boolean retired;
+        private boolean closed;
+
+        SharedClient(CloseableHttpClient client, List<Object> settings) {
+            this.client = client;
+            this.settings = settings;
+        }
+
+        /**
+         * @return Whether the client can be used, false once it was replaced
+         */
+        synchronized boolean lease() {
+            if (retired) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            if (retired && leases == 0) {
+                close();
+            }
+        }
+
+        /**
+         * Stops leasing the client, it is closed once the last lease is released
+         */
+        synchronized void retire() {
+            retired = true;
+            if (leases == 0) {
+                close();
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                client.close();
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(
+                            MessageFormat.format("Error while closing CloudAEye http client : {0}", e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown instead of sending a request while the circuit breaker is open
+     */
+    static final class CircuitOpenException extends IOException {
+        CircuitOpenException(long remainingMillis) {
+            super(MessageFormat.format(
+                    "CloudAEye endpoint is failing, exports are skipped for the next {0} ms", remainingMillis));
+        }
+    }
+
+    /**
+     * @param e Failure of a request
+     * @return Whether the payload certainly did not reach the endpoint, so that sending it again cannot duplicate it
+     */
+    static boolean isUnsent(IOException e) {
+        // The failures that are retried, and the requests the circuit breaker did not let through
+        return e instanceof CircuitOpenException || RetryPolicy.isRetryable(e);
+    }
+
+    private final CloseableHttpClient client;
+    private final String endpointTemplate;
+    private final CompressingEntity.Compression compression;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+
+    public NotificationSender() {
+        this(ENDPOINT_PATH);
+    }
+
+    private NotificationSender(String endpointPath) {
+        this(
+                null,
+                baseUrl + endpointPath,
+                CloudAEyeGlobalKeyConfiguration.get().getCompression(),
+                CloudAEyeGlobalKeyConfiguration.get().getRetryPolicy(),
+                getSharedCircuitBreaker());
+    }
+
+    /**
+     * @param client Client used to send the requests
+     * @param endpointTemplate Endpoint url, {0} is replaced by the tenant key
+     * @param compression Compression applied to the payloads
+     */
+    NotificationSender(
+            CloseableHttpClient client, String endpointTemplate, CompressingEntity.Compression compression) {
+        this(client, endpointTemplate, compression, RetryPolicy.NONE, null);
+    }
+
+    /**
+     * @param client Client used to send the requests
+     * @param endpointTemplate Endpoint url, {0} is replaced by the tenant key
+     * @param compression Compression applied to the payloads
+     * @param retryPolicy Retries of failed requests
+     * @param circuitBreaker Circuit breaker guarding the endpoint, null for none
+     */
+    NotificationSender(
+            CloseableHttpClient client,
+            String endpointTemplate,
+            CompressingEntity.Compression compression,
+            RetryPolicy retryPolicy,
+            CircuitBreaker circuitBreaker) {
+        this.client = client;
+        this.endpointTemplate = endpointTemplate;
+        this.compression = compression;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return Sender posting to the pipeline stage endpoint
+     */
+    static NotificationSender forStages() {
+        return new NotificationSender(STAGE_ENDPOINT_PATH);
+    }
+
+    /**
+     * @return Sender posting to the batch endpoint, which accepts several builds as NDJSON
+     */
+    static NotificationSender forBatches() {
+        return new NotificationSender(BATCH_ENDPOINT_PATH);
+    }
+
+    /**
+     * @return Sender posting a single attempt to the build endpoint, whatever the state of the circuit breaker
+     */
+    static NotificationSender forConnectionTest() {
+        return new NotificationSender(
+                null,
+                baseUrl + ENDPOINT_PATH,
+                CloudAEyeGlobalKeyConfiguration.get().getCompression());
+    }
+
+    /**
+     * @param e Failure of an export
+     * @return Whether the export failed because the http client it used was closed
+     */
+    static boolean isClientClosed(Exception e) {
+        return e instanceof IllegalStateException && "Connection pool shut down".equals(e.getMessage());
+    }
+
+    /**
+     * @param tenantKey Unique key assigned to the tenant, null if not configured
+     * @return Url of the batch endpoint of the tenant
+     */
+    static String getBatchEndpoint(Secret tenantKey) {
+        return MessageFormat.format(baseUrl + BATCH_ENDPOINT_PATH, tenantKey == null ? "" : tenantKey.getPlainText());
+    }
+
     /**
      * The webhook endpoint to send the notifications to
      * @param tenantKey Unique key assigned to the tenant
      * @return url string
      */
     private String getEndpointByTenantKey(String tenantKey) {
-        return MessageFormat.format(
-                "https://api.cloudaeye.com/rca/test/v1/tenants/{0}/jenkins/process-build", tenantKey);
+        return MessageFormat.format(endpointTemplate, tenantKey);
     }
 
     /**
@@ -34,22 +274,288 @@ public class NotificationSender {
      * @param details Details to send as payload
      * @param tenantKey Unique key assigned to the tenant
      * @param token Secret token assigned to this user
-     * @return HttpResponse HttpResponse
+     * @return Response of the endpoint
+     * @throws IOException
+     */
+    Response sendDetailsToCloudAEye(String details, Secret tenantKey, Secret token) throws IOException {
+        // Convert the details to string
+        return sendDetailsToCloudAEye(new StringEntity(details, ContentType.APPLICATION_JSON), tenantKey, token);
+    }
+
+    /**
+     * Posts the given payload entity as webhook notification to the CloudAEye endpoint
+     * @param payload Payload entity, streaming entities are sent with chunked transfer encoding
+     * @param tenantKey Unique key assigned to the tenant
+     * @param token Secret token assigned to this user
+     * @return Response of the endpoint
      * @throws IOException
      */
-    HttpResponse sendDetailsToCloudAEye(String details, Secret tenantKey, Secret token) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            String endpoint = getEndpointByTenantKey(tenantKey.getPlainText());
-            // Set endpoint and respective auth headers
-            HttpPost httpPost = new HttpPost(endpoint);
-            httpPost.setHeader("Authorization", "Basic " + token.getPlainText());
-            httpPost.setHeader("Content-Type", "application/json");
-            // Convert the details to string
-            HttpEntity payload = new StringEntity(details, ContentType.APPLICATION_JSON);
-            httpPost.setEntity(payload);
-            // Send the post request and return the response
+    Response sendDetailsToCloudAEye(HttpEntity payload, Secret tenantKey, Secret token) throws IOException {
+        return send(payload, tenantKey.getPlainText(), token.getPlainText());
+    }
+
+    /**
+     * Posts the payload with plain credentials, retrying transient failures
+     * @param payload Payload entity
+     * @param tenantKey Unique key assigned to the tenant
+     * @param token Secret token assigned to this user
+     * @return Response of the endpoint
+     * @throws IOException If the request fails or the circuit breaker is open
+     */
+    Response send(HttpEntity payload, String tenantKey, String token) throws IOException {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new CircuitOpenException(circuitBreaker.getRemainingOpenMillis());
+        }
+        boolean success = false;
+        try {
+            // Streaming payloads that cannot be written twice are sent once
+            int maxRetries = payload.isRepeatable() ? retryPolicy.getMaxRetries() : 0;
+            for (int retry = 0; ; retry++) {
+                Response response;
+                try {
+                    response = sendOnce(payload, tenantKey, token);
+                } catch (IOException e) {
+                    if (retry < maxRetries && RetryPolicy.isRetryable(e)) {
+                        backOff(retry, -1, e.toString());
+                        continue;
+                    }
+                    throw e;
+                }
+                int statusCode = response.getStatusCode();
+                if (RetryPolicy.isRetryable(statusCode) && retry < maxRetries) {
+                    backOff(retry, response.getRetryAfterMillis(), "HTTP " + statusCode);
+                    continue;
+                }
+                success = statusCode < 500 && !RetryPolicy.isRetryable(statusCode);
+                return response;
+            }
+        } finally {
+            // Every other way out, an interrupted backoff included, counts as a failure, so that the probe of a
+            // half-open circuit is always released
+            recordOutcome(success);
+        }
+    }
+
+    private void backOff(int retry, long retryAfterMillis, String failure) throws IOException {
+        ExportMetrics.RETRIES.inc();
+        long delay = retryPolicy.getDelay(retry, retryAfterMillis);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format(
+                    "CloudAEye request failed ({0}), retrying in {1} ms", failure, delay));
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the CloudAEye request");
+        }
+    }
+
+    private void recordOutcome(boolean success) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        if (success) {
+            circuitBreaker.recordSuccess();
+        } else {
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    private Response sendOnce(HttpEntity payload, String tenantKey, String token) throws IOException {
+        String endpoint = getEndpointByTenantKey(tenantKey);
+        boolean compress =
+                compression != CompressingEntity.Compression.NONE && !compressionRejected.contains(endpoint);
+        Response response = post(compress ? new CompressingEntity(payload, compression) : payload, tenantKey, token);
+        if (compress && response.getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && payload.isRepeatable()) {
+            // The endpoint does not accept compressed payloads, fall back to plain requests to it from now on
+            LOGGER.warning(MessageFormat.format(
+                    "CloudAEye endpoint {0} rejected the compressed payload. Sending exports to it uncompressed",
+                    endpointTemplate));
+            compressionRejected.add(endpoint);
+            response = post(payload, tenantKey, token);
+        }
+        return response;
+    }
+
+    private Response post(HttpEntity payload, String tenantKey, String token) throws IOException {
+        String endpoint = getEndpointByTenantKey(tenantKey);
+        // Set endpoint and respective auth headers
+        HttpPost httpPost = new HttpPost(endpoint);
+        httpPost.setHeader("Authorization", "Basic " + token);
+        httpPost.setHeader(
+                "Content-Type",
+                payload.getContentType() == null ? "application/json" : payload.getContentType().getValue());
+        httpPost.setEntity(payload);
+        // Send the post request, the response is consumed so that the connection can be reused
+        if (LOGGER.isLoggable(Level.FINE)) {
             LOGGER.fine(MessageFormat.format("Sending captured build details to CloudAEye : {0}", tenantKey));
-            return client.execute(httpPost);
         }
+        SharedClient shared = client == null ? leaseSharedClient() : null;
+        try (Timer.Context ignored = ExportMetrics.HTTP.time()) {
+            return (shared == null ? client : shared.client)
+                    .execute(httpPost, response -> new Response(
+                            response.getStatusLine().getStatusCode(),
+                            response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity()),
+                            parseRetryAfter(response.getFirstHeader(HttpHeaders.RETRY_AFTER))));
+        } finally {
+            if (shared != null) {
+                shared.release();
+            }
+        }
+    }
+
+    /**
+     * @param header Retry-After header, either a number of seconds or an http date
+     * @return Requested delay in milliseconds, -1 if the header is missing or invalid
+     */
+    static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the plugin-wide client, creating it from the global configuration if needed
+     * @return Pooled http client
+     */
+    static synchronized SharedClient getSharedClient() {
+        if (sharedClient == null) {
+            sharedClient = createSharedClient(CloudAEyeGlobalKeyConfiguration.get());
+        }
+        return sharedClient;
+    }
+
+    /**
+     * @return The plugin-wide client, leased until {@link SharedClient#release()} is called
+     */
+    private static SharedClient leaseSharedClient() {
+        while (true) {
+            SharedClient shared = getSharedClient();
+            // A client replaced in the meantime is not leased again, the next one is
+            if (shared.lease()) {
+                return shared;
+            }
+        }
+    }
+
+    private static SharedClient createSharedClient(CloudAEyeGlobalKeyConfiguration config) {
+        return new SharedClient(
+                createClient(
+                        createConnectionManager(config.getMaxConnectionsPerRoute()),
+                        config.getConnectTimeout(),
+                        config.getSocketTimeout(),
+                        config.getConnectionRequestTimeout()),
+                clientSettings(config));
+    }
+
+    /**
+     * @param config Global configuration
+     * @return Settings the shared client is built from, the compression is included so that changing it also tries
+     * compressed payloads again
+     */
+    private static List<Object> clientSettings(CloudAEyeGlobalKeyConfiguration config) {
+        return List.of(
+                config.getMaxConnectionsPerRoute(),
+                config.getConnectTimeout(),
+                config.getSocketTimeout(),
+                config.getConnectionRequestTimeout(),
+                config.getCompression());
+    }
+
+    /**
+     * Applies a saved configuration. The shared client is only replaced when its settings changed, the new one is
+     * used by the next requests while the running ones finish on the previous client, which is closed afterwards.
+     * The circuit breaker keeps its state unless its own settings changed.
+     */
+    static synchronized void reconfigure() {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        if (sharedClient != null && !sharedClient.settings.equals(clientSettings(config))) {
+            SharedClient previous = sharedClient;
+            sharedClient = createSharedClient(config);
+            previous.retire();
+            compressionRejected.clear();
+        }
+        if (sharedCircuitBreaker != null
+                && (sharedCircuitBreaker.getFailureThreshold() != config.getCircuitBreakerThreshold()
+                        || sharedCircuitBreaker.getOpenMillis()
+                                != TimeUnit.SECONDS.toMillis(config.getCircuitBreakerOpenSeconds()))) {
+            sharedCircuitBreaker = null;
+        }
+    }
+
+    /**
+     * Returns the plugin-wide circuit breaker, so that every export sees the failures of the others
+     * @return Circuit breaker guarding the CloudAEye endpoints
+     */
+    static synchronized CircuitBreaker getSharedCircuitBreaker() {
+        if (sharedCircuitBreaker == null) {
+            CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+            sharedCircuitBreaker = new CircuitBreaker(
+                    config.getCircuitBreakerThreshold(),
+                    TimeUnit.SECONDS.toMillis(config.getCircuitBreakerOpenSeconds()));
+        }
+        return sharedCircuitBreaker;
+    }
+
+    /**
+     * Discards the shared client and circuit breaker so that the next request picks up the current configuration.
+     * A previous rejection of compressed payloads is forgotten as well.
+     */
+    @Terminator(requires = ExportQueue.STOPPED)
+    public static synchronized void resetSharedClient() {
+        if (sharedClient != null) {
+            sharedClient.retire();
+            sharedClient = null;
+        }
+        sharedCircuitBreaker = null;
+        compressionRejected.clear();
+        ExportBatch.resetRejection();
+    }
+
+    /**
+     * @param maxConnectionsPerRoute Maximum number of pooled connections to a single host
+     * @return Connection manager for the shared client
+     */
+    static PoolingHttpClientConnectionManager createConnectionManager(int maxConnectionsPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsPerRoute * 2);
+        connectionManager.setValidateAfterInactivity(2000);
+        return connectionManager;
+    }
+
+    /**
+     * @param connectionManager Connection pool
+     * @param connectTimeout Connect timeout in seconds
+     * @param socketTimeout Socket read timeout in seconds
+     * @param connectionRequestTimeout Maximum time in seconds to wait for a pooled connection
+     * @return Client with keep-alive and idle connection eviction
+     */
+    static CloseableHttpClient createClient(
+            PoolingHttpClientConnectionManager connectionManager,
+            int connectTimeout,
+            int socketTimeout,
+            int connectionRequestTimeout) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout))
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(socketTimeout))
+                .setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(connectionRequestTimeout))
+                .build();
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+                // Retries are left to the RetryPolicy, which knows which payloads can be written again
+                .disableAutomaticRetries()
+                .build();
     }
 }
@@ -0,0 +1,178 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Logs the payloads sent to CloudAEye without building them again.
+ * At FINE level only a summary of each payload is logged once it was sent, from the measurements of the write that
+ * sent it. In debug mode the full payloads are also appended to a rotating file. When both are off, recording a
+ * payload allocates nothing.
+ */
+final class PayloadLog {
+
+    private static final Logger LOGGER = Logger.getLogger(PayloadLog.class.getName());
+
+    /** Name of the file the payloads are written to in debug mode */
+    static final String FILE_NAME = "payloads.log";
+
+    /** Size from which the payload file is rotated */
+    static final long MAX_FILE_BYTES = 10 * 1024 * 1024;
+
+    /** Number of rotated payload files kept next to the current one */
+    static final int MAX_ROTATED_FILES = 5;
+
+    /** Directory of the payload file, null while debug mode is off */
+    private static volatile File directory;
+
+    private static volatile long maxFileBytes = MAX_FILE_BYTES;
+
+    private PayloadLog() {}
+
+    /**
+     * @param debugDirectory Directory the full payloads are written to, null to turn debug mode off
+     * @param rotateBytes Size from which the payload file is rotated
+     */
+    static void configure(File debugDirectory, long rotateBytes) {
+        maxFileBytes = rotateBytes;
+        directory = debugDirectory;
+    }
+
+    /**
+     * @return Whether the full payloads are written to the payload file
+     */
+    static boolean isDebugEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Writes a payload about to be sent to the payload file in debug mode, the payload is not read otherwise
+     * @param kind What the payload holds, a constant so that nothing is built when the payload is not recorded
+     * @param buildNumber Number of the build the payload belongs to
+     * @param payload Payload, it must be repeatable to be recorded
+     */
+    static void record(String kind, int buildNumber, HttpEntity payload) {
+        File debugDirectory = directory;
+        if (debugDirectory == null) {
+            return;
+        }
+        if (!payload.isRepeatable()) {
+            // Writing it here would consume it before it is sent
+            return;
+        }
+        try {
+            write(debugDirectory, kind, buildNumber, payload);
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Unable to record {1} payload : {2}", buildNumber, kind, e.getMessage()));
+        }
+    }
+
+    /**
+     * Records a payload about to be sent
+     * @param logger Logger the summary goes to, at FINE level
+     * @param kind What the payload holds
+     * @param buildNumber Number of the build the payload belongs to
+     * @param payload Serialized payload
+     */
+    static void record(Logger logger, String kind, int buildNumber, String payload) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(MessageFormat.format(
+                    "[#{0}] Sending {1} payload : {2} characters", buildNumber, kind, payload.length()));
+        }
+        if (directory != null) {
+            record(kind, buildNumber, new StringEntity(payload, ContentType.APPLICATION_JSON));
+        }
+    }
+
+    /**
+     * Logs the summary of a build payload once it was sent, from the measurements of the write that sent it
+     * @param logger Logger the summary goes to, at FINE level
+     * @param kind What the payload holds
+     * @param buildNumber Number of the build the payload belongs to
+     * @param payload Sent payload
+     */
+    static void sent(Logger logger, String kind, int buildNumber, BuildLogExporter payload) {
+        if (!logger.isLoggable(Level.FINE)) {
+            return;
+        }
+        BuildLogExporter.WriteStats stats = payload.getLastWrite();
+        if (stats == null) {
+            return;
+        }
+        logger.fine(MessageFormat.format(
+                "[#{0}] Sent {1} payload : {2} bytes, {3} log lines", buildNumber, kind, stats.bytes, stats.lines));
+    }
+
+    private static synchronized void write(File debugDirectory, String kind, int buildNumber, HttpEntity payload)
+            throws IOException {
+        if (!debugDirectory.isDirectory() && !debugDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + debugDirectory);
+        }
+        File file = new File(debugDirectory, FILE_NAME);
+        if (file.length() >= maxFileBytes) {
+            rotate(debugDirectory, file);
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+            String header = MessageFormat.format("# {0} {1} #{2}\n", Instant.now(), kind, buildNumber);
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            payload.writeTo(new KeepOpen(out));
+            out.write('\n');
+        }
+    }
+
+    private static void rotate(File debugDirectory, File file) throws IOException {
+        File oldest = rotated(debugDirectory, MAX_ROTATED_FILES);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Unable to delete " + oldest);
+        }
+        for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+            File older = rotated(debugDirectory, i);
+            if (older.exists() && !older.renameTo(rotated(debugDirectory, i + 1))) {
+                throw new IOException("Unable to rotate " + older);
+            }
+        }
+        if (!file.renameTo(rotated(debugDirectory, 1))) {
+            throw new IOException("Unable to rotate " + file);
+        }
+    }
+
+    /**
+     * @return Rotated payload file with the given index, 1 being the most recent one
+     */
+    static File rotated(File debugDirectory, int index) {
+        return new File(debugDirectory, FILE_NAME + "." + index);
+    }
+
+    /**
+     * Leaves the payload file open when the payload closes the stream it was written to
+     */
+    private static final class KeepOpen extends FilterOutputStream {
+
+        KeepOpen(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import org.apache.http.HttpEntity;
+
+/**
+ * Content of a payload that is produced by writing it, for the http client code paths that read entities through
+ * {@link HttpEntity#getContent()}, such as wire logging or entity buffering.
+ * The payload is written by a daemon thread into a pipe, a failure of the write is thrown by the reader once it
+ * reaches the end of what was written.
+ */
+final class PipedContent extends PipedInputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private volatile IOException failure;
+
+    private PipedContent() {
+        super(BUFFER_SIZE);
+    }
+
+    /**
+     * Starts writing the payload into a pipe
+     * @param payload Payload written through {@link HttpEntity#writeTo}
+     * @return Stream over the written payload, closing it stops the write
+     * @throws IOException If the pipe cannot be created
+     */
+    static InputStream open(HttpEntity payload) throws IOException {
+        PipedContent content = new PipedContent();
+        PipedOutputStream out = new PipedOutputStream(content);
+        Thread writer = new Thread(
+                () -> {
+                    try {
+                        payload.writeTo(out);
+                    } catch (IOException e) {
+                        content.failure = e;
+                    } catch (RuntimeException e) {
+                        content.failure = new IOException("Unable to write the CloudAEye payload", e);
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // The reader is gone
+                        }
+                    }
+                },
+                "CloudAEye payload writer");
+        writer.setDaemon(true);
+        writer.start();
+        return content;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            checkFailure();
+        }
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count < 0) {
+            checkFailure();
+        }
+        return count;
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.jenkins.plugins.cloudaeye;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+/**
+ * Exports pipelines without the {@code sendNotificationsToCloudAEye} step when pipeline tracking is enabled, for the
+ * jobs matching the tracked pipelines pattern. Every stage is exported as soon as it finishes and the run itself once
+ * it completes.
+ */
+@Extension
+public class PipelineExportListener extends FlowExecutionListener {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineExportListener.class.getName());
+
+    @Override
+    public void onRunning(@NonNull FlowExecution execution) {
+        attach(execution);
+    }
+
+    @Override
+    public void onResumed(@NonNull FlowExecution execution) {
+        attach(execution);
+    }
+
+    private void attach(FlowExecution execution) {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        if (!config.isPipelineTrackingEnabled()) {
+            return;
+        }
+        try {
+            Queue.Executable executable = execution.getOwner().getExecutable();
+            if (executable instanceof WorkflowRun && config.isPipelineTracked(((WorkflowRun) executable).getParent())) {
+                WorkflowRun run = (WorkflowRun) executable;
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format("[#{0}] Tracking pipeline stages", run.getNumber()));
+                }
+                // The pipeline thread only builds the stage details, the export is classified and written to disk
+                // by the queue
+                execution.addListener(new StageTracker(
+                        run,
+                        (result, endTime, stage) -> ExportQueue.get()
+                                .submitLater(() -> new StageExportTask(run, result, endTime, stage))));
+            }
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format("Unable to track pipeline stages : {0}", e.getMessage()));
+        }
+    }
+
+    /**
+     * Exports completed pipelines, which replaces the post-build step for the tracked pipelines
+     */
+    @Extension
+    public static class CompletionListener extends RunListener<WorkflowRun> {
+
+        @Override
+        public void onCompleted(WorkflowRun run, @NonNull TaskListener listener) {
+            if (!CloudAEyeGlobalKeyConfiguration.get().isPipelineTracked(run.getParent())) {
+                return;
+            }
+            Result buildResult = run.getResult();
+            if (!(buildResult == Result.SUCCESS || buildResult == Result.FAILURE)) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Build status is neither success nor failure. Further processing skipped",
+                            run.getNumber()));
+                }
+                return;
+            }
+            ExportQueue.get().submit(new ExportTask(run, buildResult, System.currentTimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Masks secrets and personal data in console lines before they leave the controller.
+ * Lines are redacted as raw bytes: every rule has a literal anchor and the anchors of all rules are found in a single
+ * pass of an Aho-Corasick automaton. A rule without a regex masks its anchor. A rule with a regex only runs it where
+ * its anchor occurs, over a view of the line bytes, and masks the match, or its first group if it has one.
+ * A regex may match from before its anchor. When it starts with a repeated character class, such as the local part of
+ * an email address, the match is only tried from the start of the run of that class before the anchor.
+ * Lines without any anchor are neither copied nor decoded.
+ */
+class Redactor {
+
+    /** Replacement of the masked text, as Jenkins masks build secrets */
+    static final byte[] MASK = "****".getBytes(StandardCharsets.US_ASCII);
+    /** Separates the anchor of a rule from its regex */
+    static final String REGEX_SEPARATOR = " ~ ";
+    /** Number of bytes before its anchor at which a match may start */
+    static final int MAX_LOOKBEHIND = 64;
+    /** Character class repeated at the start of a regex */
+    private static final Pattern LEADING_CLASS = Pattern.compile("^(\\[(?:\\\\.|[^\\]\\\\])+\\])[+*]");
+
+    /** Rules used when none are configured */
+    static final String DEFAULT_RULES = String.join(
+            "\n",
+            "AKIA ~ AKIA[0-9A-Z]{16}",
+            "ghp_ ~ ghp_[A-Za-z0-9]{36}",
+            "gho_ ~ gho_[A-Za-z0-9]{36}",
+            "github_pat_ ~ github_pat_[A-Za-z0-9_]{22,}",
+            "glpat- ~ glpat-[A-Za-z0-9_-]{20,}",
+            "xox ~ xox[abprs]-[A-Za-z0-9-]{10,}",
+            "eyJ ~ eyJ[A-Za-z0-9_-]{10,}\\.[A-Za-z0-9_-]{10,}\\.[A-Za-z0-9_-]*",
+            "Bearer  ~ Bearer ([A-Za-z0-9._~+/=-]{8,})",
+            "password= ~ password=([^\\s&\"']+)",
+            "PASSWORD= ~ PASSWORD=([^\\s&\"']+)",
+            "-----BEGIN ~ -----BEGIN [A-Z ]*PRIVATE KEY-----",
+            "@ ~ [A-Za-z0-9._%+-]+@[A-Za-z0-9-]+(?:\\.[A-Za-z0-9-]+)*\\.[A-Za-z]{2,}");
+
+    /**
+     * Redaction rules compiled once.
+     * Rules are sent to agents exporting their own builds, they are compiled again there.
+     */
+    static final class Rules implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String rules;
+        final transient AhoCorasick anchors;
+        /** Regex of each rule, null for a literal rule */
+        final transient Pattern[] patterns;
+        /** Whether the match of each rule may start before its anchor */
+        final transient boolean[] lookbehind;
+        /** Bytes of the character class repeated at the start of each regex, null if it does not start with one */
+        final transient boolean[][] leading;
+
+        /**
+         * @param rules Rules, one per line: a literal, or an anchor and a regex separated by " ~ "
+         * @throws PatternSyntaxException If a regex is invalid
+         */
+        Rules(String rules) {
+            this.rules = rules;
+            List<String> anchorList = new ArrayList<>();
+            List<Pattern> patternList = new ArrayList<>();
+            for (String rule : parse(rules)) {
+                int separator = rule.indexOf(REGEX_SEPARATOR);
+                if (separator <= 0) {
+                    anchorList.add(rule);
+                    patternList.add(null);
+                } else {
+                    anchorList.add(rule.substring(0, separator));
+                    patternList.add(Pattern.compile(rule.substring(separator + REGEX_SEPARATOR.length())));
+                }
+            }
+            this.anchors = AhoCorasick.compile(anchorList);
+            this.patterns = patternList.toArray(new Pattern[0]);
+            this.lookbehind = new boolean[patterns.length];
+            this.leading = new boolean[patterns.length][];
+            for (int i = 0; i < patterns.length; i++) {
+                lookbehind[i] = patterns[i] != null && !patterns[i].pattern().startsWith(anchorList.get(i));
+                if (lookbehind[i]) {
+                    leading[i] = leadingClass(patterns[i]);
+                }
+            }
+        }
+
+        /**
+         * @param pattern Regex of a rule
+         * @return Bytes matched by the character class repeated at the start of the regex, null if it does not start
+         * with one
+         */
+        private static boolean[] leadingClass(Pattern pattern) {
+            Matcher matcher = LEADING_CLASS.matcher(pattern.pattern());
+            if (!matcher.find()) {
+                return null;
+            }
+            Pattern characterClass = Pattern.compile(matcher.group(1));
+            boolean[] bytes = new boolean[256];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = characterClass.matcher(String.valueOf((char) i)).matches();
+            }
+            return bytes;
+        }
+
+        private Object readResolve() {
+            return new Rules(rules);
+        }
+
+        /**
+         * @param rules Configured rules
+         * @return Non-empty rules, with the \t escape resolved
+         */
+        static List<String> parse(String rules) {
+            return LogReducer.Settings.parsePatterns(rules);
+        }
+    }
+
+    /**
+     * View of the line bytes as characters, each byte being a character, so that regexes run without decoding
+     */
+    private static final class ByteSequence implements CharSequence {
+        private byte[] bytes;
+        private int length;
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private final Rules rules;
+    private final Matcher[] matchers;
+    private final ByteSequence view = new ByteSequence();
+    private byte[] output = new byte[512];
+    private long redactions;
+
+    /**
+     * @param rules Compiled rules, a redactor is used by a single thread
+     */
+    Redactor(Rules rules) {
+        this.rules = rules;
+        this.matchers = new Matcher[rules.patterns.length];
+    }
+
+    /**
+     * Masks the rules matched in the given line
+     * @param line Line content, left untouched
+     * @param length Number of valid bytes
+     * @return Length of the redacted line, available through {@link #swap(byte[])}, or -1 if nothing was masked
+     */
+    int redact(byte[] line, int length) {
+        AhoCorasick anchors = rules.anchors;
+        int state = 0;
+        int copied = 0;
+        int written = 0;
+        boolean masked = false;
+        int i = 0;
+        long found;
+        while ((found = anchors.next(line, i, length, state)) >= 0) {
+            int end = AhoCorasick.position(found);
+            state = AhoCorasick.state(found);
+            i = end;
+            // A longer anchor whose regex does not match leaves the place to the shorter anchors ending with it
+            long range = -1;
+            for (int rule : anchors.matches(state)) {
+                int start = end - anchors.length(rule);
+                range = rules.patterns[rule] == null
+                        ? range(start, end)
+                        : find(rule, line, length, copied, start, end);
+                if (range >= 0 && (int) range > (int) (range >>> 32)) {
+                    break;
+                }
+                range = -1;
+            }
+            if (range < 0) {
+                continue;
+            }
+            int maskStart = (int) (range >>> 32);
+            int maskEnd = (int) range;
+            written = copy(line, copied, maskStart - copied, written);
+            written = copy(MASK, 0, MASK.length, written);
+            copied = maskEnd;
+            masked = true;
+            redactions++;
+            // Scanning resumes after the masked text
+            i = Math.max(i, maskEnd);
+            state = 0;
+        }
+        if (!masked) {
+            return -1;
+        }
+        return copy(line, copied, length - copied, written);
+    }
+
+    /**
+     * Masks the rules matched in a text that is not part of the console log, such as an error message
+     * @param text Text to redact
+     * @return The redacted text, or the given text if nothing was masked
+     */
+    String redact(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = redact(bytes, bytes.length);
+        return length < 0 ? text : new String(output, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs the regex of a rule around one of its anchors, a match does not start in text already masked
+     * @return The masked range, packed as start and end, or -1 if the regex does not match over the anchor
+     */
+    private long find(int rule, byte[] line, int length, int copied, int start, int end) {
+        Matcher matcher = matchers[rule];
+        view.bytes = line;
+        view.length = length;
+        if (matcher == null) {
+            matcher = rules.patterns[rule].matcher(view);
+            matchers[rule] = matcher;
+        } else {
+            matcher.reset(view);
+        }
+        if (!rules.lookbehind[rule]) {
+            return lookingAt(matcher, start, length, end);
+        }
+        int from = Math.max(copied, start - MAX_LOOKBEHIND);
+        boolean[] leading = rules.leading[rule];
+        if (leading != null) {
+            // A match starting later in the run of the leading class would end at the same place, one attempt from
+            // the start of the run is enough
+            int runStart = start;
+            while (runStart > from && leading[line[runStart - 1] & 0xff]) {
+                runStart--;
+            }
+            return lookingAt(matcher, runStart, length, end);
+        }
+        for (; from <= start; from++) {
+            long range = lookingAt(matcher, from, length, end);
+            if (range >= 0) {
+                return range;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The masked range of a match starting at the given position and covering the anchor, or -1 if none
+     */
+    private static long lookingAt(Matcher matcher, int from, int length, int end) {
+        matcher.region(from, length);
+        if (matcher.lookingAt() && matcher.end() >= end) {
+            int group = matcher.groupCount() > 0 && matcher.start(1) >= 0 ? 1 : 0;
+            return range(matcher.start(group), matcher.end(group));
+        }
+        return -1;
+    }
+
+    private static long range(int start, int end) {
+        return ((long) start << 32) | end;
+    }
+
+    private int copy(byte[] bytes, int offset, int length, int written) {
+        if (written + length > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, written + length));
+        }
+        System.arraycopy(bytes, offset, output, written, length);
+        return written + length;
+    }
+
+    /**
+     * Hands over the redacted line, the given buffer is kept for the next redaction
+     * @param buffer Buffer of the original line
+     * @return Buffer holding the redacted line
+     */
+    byte[] swap(byte[] buffer) {
+        byte[] redacted = output;
+        output = buffer;
+        return redacted;
+    }
+
+    /**
+     * @return Number of masked occurrences so far
+     */
+    long getRedactions() {
+        return redactions;
+    }
+}
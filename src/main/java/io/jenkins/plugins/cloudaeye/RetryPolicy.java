@@ -0,0 +1,78 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides which failed requests are sent again and how long to wait before each attempt.
+ * Only failures after which the export was certainly not processed are retried, with a capped exponential backoff and
+ * jitter, or the delay requested by the endpoint through Retry-After. A gateway error or a dropped response may come
+ * after the endpoint processed the export, so they are not retried.
+ */
+final class RetryPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Policy sending every request once */
+    static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    private final int maxRetries;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxRetries Maximum number of attempts after the first one
+     * @param initialDelayMillis Delay before the first retry, doubled for every further one
+     * @param maxDelayMillis Upper bound of the delay between two attempts, including the one asked by Retry-After
+     */
+    RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialDelayMillis = Math.max(0, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param retry Number of the retry, starting at 0
+     * @param retryAfterMillis Delay requested by the endpoint, -1 if none
+     * @return Time to wait before the retry
+     */
+    long getDelay(int retry, long retryAfterMillis) {
+        if (retryAfterMillis >= 0) {
+            return Math.min(retryAfterMillis, maxDelayMillis);
+        }
+        long delay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(retry, 30));
+        // Equal jitter keeps half of the backoff and spreads the rest, so workers failing together do not retry
+        // together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @param statusCode Status of the response
+     * @return Whether the endpoint turned the export down without processing it and asked to try again later
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode == HttpStatus.SC_REQUEST_TIMEOUT
+                || statusCode == HttpStatus.SC_TOO_MANY_REQUESTS
+                || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Read timeouts and dropped responses are not retried since the endpoint may have processed the export
+     * @param e Failure of the request
+     * @return Whether the request certainly did not reach the endpoint
+     */
+    static boolean isRetryable(IOException e) {
+        return e instanceof ConnectException
+                || e instanceof ConnectTimeoutException
+                || e instanceof UnknownHostException;
+    }
+}
@@ -0,0 +1,314 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+/**
+ * Collects the metadata, change logs and console log of a completed run and exports them to CloudAEye
+ */
+public class RunExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(RunExporter.class.getName());
+    private final CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+
+    /**
+     * Exports the given run
+     * @param run The run to export
+     * @param buildResult Result of the run at the time the export was requested
+     * @param endTime Time at which the export was requested
+     * @param listener Listener used to resolve the run environment
+     * @return Outcome of the export, null if it was skipped because exports are over the rate limit
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ExportAction.Outcome export(Run<?, ?> run, Result buildResult, long endTime, TaskListener listener)
+            throws IOException, InterruptedException {
+        return export(
+                run,
+                buildResult,
+                endTime,
+                listener,
+                ExportLimiter.get().admit(ExportLimiter.Priority.of(run, buildResult), true));
+    }
+
+    /**
+     * Exports the given run as admitted by the rate limiter
+     * @param run The run to export
+     * @param buildResult Result of the run at the time the export was requested
+     * @param endTime Time at which the export was requested
+     * @param listener Listener used to resolve the run environment
+     * @param admission Decision of the rate limiter for this export
+     * @return Outcome of the export, null if it was skipped
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    ExportAction.Outcome export(
+            Run<?, ?> run, Result buildResult, long endTime, TaskListener listener, ExportLimiter.Admission admission)
+            throws IOException, InterruptedException {
+        if (admission == ExportLimiter.Admission.SKIPPED) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Exports are over the rate limit. Skipping export", run.getNumber()));
+            }
+            return null;
+        }
+        long start = System.nanoTime();
+        BuildLogExporter buildDetails =
+                prepare(run, buildResult, endTime, listener, admission == ExportLimiter.Admission.REDUCED);
+        ExportMetrics.PREPARE.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        // Export the extracted details to CloudAEye
+        return send(run, buildDetails);
+    }
+
+    /**
+     * Collects the details of the given run without sending them
+     * @param run The run to export
+     * @param buildResult Result of the run at the time the export was requested
+     * @param endTime Time at which the export was requested
+     * @param listener Listener used to resolve the run environment
+     * @return Payload of the run, the console log is streamed when the payload is written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    BuildLogExporter prepare(Run<?, ?> run, Result buildResult, long endTime, TaskListener listener)
+            throws IOException, InterruptedException {
+        return prepare(run, buildResult, endTime, listener, false);
+    }
+
+    /**
+     * Collects the details of the given run without sending them
+     * @param run The run to export
+     * @param buildResult Result of the run at the time the export was requested
+     * @param endTime Time at which the export was requested
+     * @param listener Listener used to resolve the run environment
+     * @param reduced Whether the log is reduced to the smaller size exported over the rate limit
+     * @return Payload of the run, the console log is streamed when the payload is written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    BuildLogExporter prepare(Run<?, ?> run, Result buildResult, long endTime, TaskListener listener, boolean reduced)
+            throws IOException, InterruptedException {
+        /*
+         JSON Structure:
+           {
+              "job": {
+                  "name":"rca-traces-api",
+                  "id":"job/rca-traces-api/",
+                  "buildNumber":17,
+                  "duration":0,
+                  "startTime": 1725957396354,
+                  "endTime": 1725957486343
+                  "url":"job/rca-traces-api/17/",
+                  "logs": [],
+                  "status: "failed"
+              },
+              "source": {
+                  "branch":"origin/dev",
+                  "commit":"b25947ba1290735eac9d34701fe85b2f5ca6d045",
+                  "url":"https://github.com/CloudAEye/rca-traces-api",
+                  "prId": "",
+                  "prTarget": "",
+                  "changeLog": {
+                      "message": "",
+                      "annotatedMessage": "",
+                      "filePaths": []
+                  }
+              }
+           }
+        */
+        /*
+         * Collect job metadata and logs
+         */
+        JsonObject job = new JsonObject();
+        // Read from the run actions, the whole environment is only built for sources no resolver knows
+        Map<String, String> envVars = SourceMetadataResolver.resolveAll(run, listener);
+        job.addProperty("startTime", run.getStartTimeInMillis());
+        long duration = (long) (Math.ceil(endTime - run.getStartTimeInMillis()) / 1000.0);
+        job.addProperty("endTime", endTime);
+        job.addProperty("name", run.getParent().getFullName());
+        job.addProperty("id", run.getParent().getUrl());
+        job.addProperty("buildNumber", run.getNumber());
+        job.addProperty("duration", duration);
+        job.addProperty("url", run.getUrl());
+        job.addProperty("status", buildResult == Result.SUCCESS ? "success" : "failure");
+
+        /*
+           Collect git source details
+        */
+        JsonObject source = new JsonObject();
+        source.addProperty("url", envVars.get("GIT_URL"));
+        /*
+        Collect PR details (if event is PR)
+        */
+        if (envVars.containsKey("CHANGE_ID") || envVars.containsKey("ghprbPullId")) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Identified git event: PR. Extracting details of the PR", run.getNumber()));
+            }
+            source.addProperty("eventType", "PR");
+            if (envVars.containsKey("CHANGE_ID")) {
+                source.addProperty("prId", envVars.get("CHANGE_ID"));
+                source.addProperty("prSourceBranch", envVars.get("CHANGE_BRANCH"));
+                source.addProperty("prTargetBranch", envVars.get("CHANGE_TARGET"));
+                source.addProperty("prLink", envVars.get("CHANGE_URL"));
+            } else {
+                source.addProperty("prId", envVars.get("ghprbPullId"));
+                source.addProperty("prSourceBranch", envVars.get("ghprbSourceBranch"));
+                source.addProperty("prTargetBranch", envVars.get("ghprbTargetBranch"));
+                source.addProperty("prLink", envVars.get("ghprbPullLink"));
+            }
+        } else if (envVars.containsKey("GIT_BRANCH")) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Identified git event: PUSH. Extracting details of the PR", run.getNumber()));
+            }
+            source.addProperty("eventType", "PUSH");
+            /*
+            Collect git commit and branch details (if git event is push)
+             */
+            source.addProperty("branch", envVars.get("GIT_BRANCH"));
+            source.addProperty("commit", envVars.get("GIT_COMMIT"));
+            source.addProperty("prevCommit", envVars.get("GIT_PREVIOUS_COMMIT"));
+        } else {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format("[#{0}] Unidentified git event", run.getNumber()));
+            }
+            source.addProperty("eventType", "OTHER");
+        }
+
+        /*
+           Collect file log changes
+        */
+        if (run instanceof WorkflowRun || run instanceof AbstractBuild<?, ?>) {
+            // Change logs of earlier runs of a failure streak are looked up in the cache
+            if (LOGGER.isLoggable(Level.FINE)) {
+                if (buildResult == Result.FAILURE) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Current build is a failure, collect all change logs till last successful build",
+                            run.getNumber()));
+                } else {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Current build is a success, collect change logs of current build",
+                            run.getNumber()));
+                }
+            }
+            JsonArray cumulativeChangeLogs = ChangeLogCache.get().collect(run, buildResult);
+            // Add change log details to the parent object
+            source.add("changeLog", cumulativeChangeLogs);
+        }
+
+        /*
+           Collect test results, failed tests are sent as records rather than left in the console
+        */
+        JsonObject testResults = TestResultCollector.collect(run, config.getMaxTestFailures());
+        if (testResults != null) {
+            job.add("testResults", testResults);
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format(
+                    "[#{0}] Build details successfully captured : {1} job properties, {2} source properties",
+                    run.getNumber(),
+                    job.size(),
+                    source.size()));
+        }
+
+        /*
+        Logs are streamed from the run console into the request body while it is being sent
+        */
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format("[#{0}] Streaming run logs", run.getNumber()));
+        }
+        return BuildLogExporter.forRun(run, job, source, reduced);
+    }
+
+    /**
+     * Sends a prepared payload on its own and records the outcome
+     * @param run The exported run
+     * @param details Payload of the run
+     * @return Outcome of the export
+     */
+    ExportAction.Outcome send(Run<?, ?> run, BuildLogExporter details) {
+        long start = System.nanoTime();
+        ExportAction.Outcome outcome = sendDetailsToCloudAEye(run, details, config.getTenantKey(), config.getToken());
+        if (outcome == ExportAction.Outcome.SENT) {
+            details.commitChunks();
+        }
+        ExportLimiter.get().consumed(details);
+        PayloadLog.sent(LOGGER, "build", run.getNumber(), details);
+        ExportMetrics.recordExport(run, details, System.nanoTime() - start, outcome);
+        return outcome;
+    }
+
+    /**
+     * Exports the run metadata and logs to CloudAEye, the details are spooled if the endpoint cannot take them
+     *
+     * @param run       The exported run
+     * @param details   Build details, streamed while the request is sent
+     * @param tenantKey Tenant key provided by CloudAEye
+     * @param token     Secret token provided by CloudAEye
+     * @return Outcome of the export
+     */
+    private ExportAction.Outcome sendDetailsToCloudAEye(
+            Run<?, ?> run, HttpEntity details, Secret tenantKey, Secret token) {
+        int buildNumber = run.getNumber();
+        PayloadLog.record("build", buildNumber, details);
+        try {
+            NotificationSender notificationSender = new NotificationSender();
+            NotificationSender.Response response =
+                    notificationSender.sendDetailsToCloudAEye(details, tenantKey, token);
+            if (response.getStatusCode() == 200) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(MessageFormat.format(
+                            "[#{0}] Success response received from CloudAEye endpoint : {1}",
+                            buildNumber, response.getBody()));
+                }
+                return ExportAction.Outcome.SENT;
+            }
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error response received from CloudAEye endpoint : {1}",
+                    buildNumber, response.getBody()));
+            // Only a payload the endpoint turned down without processing it is spooled, a gateway error may come after
+            // it was processed
+            if (RetryPolicy.isRetryable(response.getStatusCode())) {
+                return spool(run, details, ExportAction.Outcome.REJECTED);
+            }
+            return ExportAction.Outcome.REJECTED;
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error while trying to send run details to CloudAEye : {1}", buildNumber, e.getMessage()));
+            // A payload that may have been processed, such as one whose response timed out, is not sent twice
+            if (NotificationSender.isUnsent(e)) {
+                return spool(run, details, ExportAction.Outcome.FAILED);
+            }
+            return ExportAction.Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Keeps details the endpoint could not take, to send them once the endpoint is back
+     * @param run The exported run
+     * @param details Build details
+     * @param failure Outcome of the export if the details cannot be spooled
+     * @return Outcome of the export
+     */
+    static ExportAction.Outcome spool(Run<?, ?> run, HttpEntity details, ExportAction.Outcome failure) {
+        if (ExportSpool.get().add(Spool.Kind.BUILD, run.getExternalizableId(), details)) {
+            return ExportAction.Outcome.SPOOLED;
+        }
+        return failure;
+    }
+}
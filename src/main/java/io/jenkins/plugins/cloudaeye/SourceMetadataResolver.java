@@ -0,0 +1,228 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.metadata.ObjectMetadataAction;
+import jenkins.scm.api.mixin.ChangeRequestSCMHead;
+import jenkins.scm.api.mixin.ChangeRequestSCMHead2;
+
+/**
+ * Reads the source metadata of a run, such as the repository, commit and pull request, from where it is cheapest.
+ * Resolvers read the actions stored with the run or its job instead of building the whole run environment, which
+ * calls every environment contributor. The first resolvers by ordinal take precedence, and the whole environment is
+ * only built when no resolver found the source of the run.
+ * Other plugins contribute resolvers for their SCM or pull request builder by extending this class.
+ */
+public abstract class SourceMetadataResolver implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(SourceMetadataResolver.class.getName());
+
+    /** Environment variables exported as source metadata */
+    public static final List<String> KEYS = List.of(
+            "GIT_URL",
+            "GIT_BRANCH",
+            "GIT_COMMIT",
+            "GIT_PREVIOUS_COMMIT",
+            "CHANGE_ID",
+            "CHANGE_BRANCH",
+            "CHANGE_TARGET",
+            "CHANGE_URL",
+            "ghprbPullId",
+            "ghprbSourceBranch",
+            "ghprbTargetBranch",
+            "ghprbPullLink");
+
+    /**
+     * Adds the source metadata known to this resolver, under the names of the environment variables in {@link #KEYS}.
+     * Values already present were added by a resolver with a higher ordinal and are kept.
+     * @param run The exported run
+     * @param metadata Metadata resolved so far
+     * @return Whether the source of the run was found, the whole environment is built if no resolver found it
+     */
+    public abstract boolean resolve(Run<?, ?> run, Map<String, String> metadata);
+
+    /**
+     * Resolves the source metadata of the given run
+     * @param run The exported run
+     * @param listener Listener used to build the environment when no resolver found the source
+     * @return Source metadata, by environment variable name
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static Map<String, String> resolveAll(Run<?, ?> run, TaskListener listener)
+            throws IOException, InterruptedException {
+        Map<String, String> metadata = new HashMap<>();
+        if (runResolvers(run, metadata)) {
+            return metadata;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format(
+                    "[#{0}] Source not found in the run actions, reading the run environment", run.getNumber()));
+        }
+        return fromEnvironment(run.getEnvironment(listener), metadata);
+    }
+
+    /**
+     * Resolves the source metadata of the given run from its actions only, never building the environment
+     * @param run The run
+     * @return Source metadata found by the resolvers, by environment variable name
+     */
+    static Map<String, String> resolveFromActions(Run<?, ?> run) {
+        Map<String, String> metadata = new HashMap<>();
+        runResolvers(run, metadata);
+        return metadata;
+    }
+
+    /**
+     * Runs every resolver
+     * @param run The run
+     * @param metadata Metadata completed by the resolvers
+     * @return Whether a resolver found the source of the run
+     */
+    private static boolean runResolvers(Run<?, ?> run, Map<String, String> metadata) {
+        boolean found = false;
+        for (SourceMetadataResolver resolver : ExtensionList.lookup(SourceMetadataResolver.class)) {
+            try {
+                found |= resolver.resolve(run, metadata);
+            } catch (RuntimeException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        MessageFormat.format(
+                                "[#{0}] Error while resolving source metadata with {1}",
+                                run.getNumber(),
+                                resolver.getClass().getName()),
+                        e);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param env Run environment
+     * @param metadata Metadata resolved so far, kept
+     * @return The metadata completed with the environment
+     */
+    static Map<String, String> fromEnvironment(EnvVars env, Map<String, String> metadata) {
+        for (String key : KEYS) {
+            String value = env.get(key);
+            if (value != null) {
+                metadata.putIfAbsent(key, value);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata passed as build parameters, as the GitHub pull request builder does
+     */
+    @Extension(ordinal = 300)
+    public static class Parameters extends SourceMetadataResolver {
+        @Override
+        public boolean resolve(Run<?, ?> run, Map<String, String> metadata) {
+            ParametersAction parameters = run.getAction(ParametersAction.class);
+            if (parameters == null) {
+                return false;
+            }
+            for (String key : KEYS) {
+                ParameterValue parameter = parameters.getParameter(key);
+                if (parameter != null && parameter.getValue() != null) {
+                    metadata.putIfAbsent(key, String.valueOf(parameter.getValue()));
+                }
+            }
+            // Parameters hold the pull request but not the repository, which the other resolvers find
+            return false;
+        }
+    }
+
+    /**
+     * Reads the pull request of a multibranch job from its branch source head
+     */
+    @Extension(ordinal = 200)
+    public static class ChangeRequest extends SourceMetadataResolver {
+        @Override
+        public boolean resolve(Run<?, ?> run, Map<String, String> metadata) {
+            SCMHead head = SCMHead.HeadByItem.findHead(run.getParent());
+            if (!(head instanceof ChangeRequestSCMHead)) {
+                return false;
+            }
+            ChangeRequestSCMHead change = (ChangeRequestSCMHead) head;
+            metadata.putIfAbsent("CHANGE_ID", change.getId());
+            metadata.putIfAbsent("CHANGE_TARGET", change.getTarget().getName());
+            if (change instanceof ChangeRequestSCMHead2) {
+                metadata.putIfAbsent("CHANGE_BRANCH", ((ChangeRequestSCMHead2) change).getOriginName());
+            }
+            ObjectMetadataAction job = run.getParent().getAction(ObjectMetadataAction.class);
+            if (job != null && job.getObjectUrl() != null) {
+                metadata.putIfAbsent("CHANGE_URL", job.getObjectUrl());
+            }
+            // The repository and commit are recorded by the SCM checkout
+            return false;
+        }
+    }
+
+    /**
+     * Reads the repository, branch and commits recorded by the git plugin on checkout
+     */
+    @Extension(ordinal = 100)
+    public static class Git extends SourceMetadataResolver {
+        private static final String REMOTES_PREFIX = "refs/remotes/";
+
+        @Override
+        public boolean resolve(Run<?, ?> run, Map<String, String> metadata) {
+            BuildData data = lastBuildData(run);
+            if (data == null) {
+                return false;
+            }
+            Revision revision = data.getLastBuiltRevision();
+            if (!data.getRemoteUrls().isEmpty()) {
+                metadata.putIfAbsent("GIT_URL", data.getRemoteUrls().iterator().next());
+            }
+            metadata.putIfAbsent("GIT_COMMIT", revision.getSha1String());
+            if (!revision.getBranches().isEmpty()) {
+                Branch branch = revision.getBranches().iterator().next();
+                String name = branch.getName();
+                // Named as the git plugin names it in the environment
+                metadata.putIfAbsent(
+                        "GIT_BRANCH",
+                        name.startsWith(REMOTES_PREFIX) ? name.substring(REMOTES_PREFIX.length()) : name);
+                BuildData previous = run.getPreviousBuild() == null ? null : lastBuildData(run.getPreviousBuild());
+                Build previousBuild = previous == null ? null : previous.getLastBuildOfBranch(name);
+                if (previousBuild != null && previousBuild.getSHA1() != null) {
+                    metadata.putIfAbsent("GIT_PREVIOUS_COMMIT", previousBuild.getSHA1().name());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return Data of the last checkout of the run, whose variables end up in the run environment
+         */
+        private static BuildData lastBuildData(Run<?, ?> run) {
+            BuildData last = null;
+            for (BuildData data : run.getActions(BuildData.class)) {
+                if (data.getLastBuiltRevision() != null) {
+                    last = data;
+                }
+            }
+            return last;
+        }
+    }
+}
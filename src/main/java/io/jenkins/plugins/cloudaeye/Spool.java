@@ -0,0 +1,624 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Append-only log of export payloads kept on disk while the endpoint cannot take them.
+ * Records are appended to segment files named after the offset of their first byte, offsets keep growing from one
+ * segment to the next. A record is first written to a pending file without holding the lock of the spool, then large
+ * records become a segment of their own and small ones are copied to the last segment. The header of a record holds
+ * a checksum of the record and is completed last, so a record torn by a crash is detected and cut off when the spool
+ * is opened again.
+ * The replay position is stored next to the segments, replay resumes from it after a restart. Segments are deleted
+ * once replayed, or by retention when the spool grows beyond its size or age limits.
+ */
+final class Spool implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Spool.class.getName());
+
+    /**
+     * Endpoint a record is sent to
+     */
+    enum Kind {
+        BUILD,
+        STAGE
+    }
+
+    /** Marks a complete record, a record without it was torn while being written */
+    static final int MAGIC = 0x43414553;
+
+    /** Magic, checksum and payload length, written once the payload is complete */
+    static final int COMPLETION_BYTES = 4 + 4 + 8;
+
+    /** Completion, creation time, kind and id length */
+    static final int HEADER_BYTES = COMPLETION_BYTES + 8 + 1 + 2;
+
+    /** Records from this size on are renamed into a segment of their own instead of being copied */
+    static final long LINK_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String POSITION_FILE = "replay.position";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileChannel active;
+    private long end;
+    private long position;
+    private long pendingRecords;
+
+    /**
+     * Opens the spool, cutting off the record the last segment may end with if it was torn
+     * @param directory Directory of the segments, created if needed
+     * @param segmentBytes Size after which a new segment is started
+     * @throws IOException If the directory cannot be read
+     */
+    Spool(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory.toPath());
+        File[] pending = directory.listFiles((dir, name) -> name.endsWith(PENDING_SUFFIX));
+        if (pending != null) {
+            // Records that were still being written when Jenkins stopped
+            for (File file : pending) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    segments.put(Long.parseLong(file.getName().replace(SEGMENT_SUFFIX, "")), file);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unexpected file in the CloudAEye spool : " + file);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            end = readPosition(0);
+        } else {
+            Map.Entry<Long, File> last = segments.lastEntry();
+            end = last.getKey() + recover(last.getValue());
+        }
+        position = Math.min(end, Math.max(segments.isEmpty() ? end : segments.firstKey(), readPosition(0)));
+        pendingRecords = countRecords();
+    }
+
+    /**
+     * Writes a payload at the end of the spool. The payload is written once, then streamed from disk when replayed.
+     * Replay and status calls are not held up while the payload is written.
+     * @param kind Endpoint of the payload
+     * @param id Id of the exported run
+     * @param payload Payload, written through {@link HttpEntity#writeTo(OutputStream)}
+     * @return Offset of the record
+     * @throws IOException If the payload cannot be written, nothing is kept then
+     */
+    long append(Kind kind, String id, HttpEntity payload) throws IOException {
+        Path pending = Files.createTempFile(directory.toPath(), "append-", PENDING_SUFFIX);
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(pending, StandardOpenOption.WRITE)) {
+                size = writeRecord(channel, kind, id, payload);
+            }
+            return link(pending, size);
+        } finally {
+            Files.deleteIfExists(pending);
+        }
+    }
+
+    /**
+     * Writes a complete record at the start of the given channel
+     * @return Size of the record
+     */
+    private static long writeRecord(FileChannel channel, Kind kind, String id, HttpEntity payload)
+            throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + idBytes.length);
+        header.putInt(0).putInt(0).putLong(0);
+        header.putLong(System.currentTimeMillis())
+                .put((byte) kind.ordinal())
+                .putShort((short) idBytes.length)
+                .put(idBytes);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), COMPLETION_BYTES, header.capacity() - COMPLETION_BYTES);
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.position(header.capacity());
+        // The channel is closed by the caller, the streams are only flushed
+        CountingStream counting = new CountingStream(Channels.newOutputStream(channel));
+        OutputStream out = new CheckedOutputStream(new BufferedOutputStream(counting, BUFFER_SIZE), crc);
+        payload.writeTo(out);
+        out.flush();
+        ByteBuffer completion = ByteBuffer.allocate(COMPLETION_BYTES)
+                .putInt(MAGIC)
+                .putInt((int) crc.getValue())
+                .putLong(counting.count);
+        completion.flip();
+        writeFully(channel, completion, 0);
+        channel.force(false);
+        return header.capacity() + counting.count;
+    }
+
+    /**
+     * Adds a complete record at the end of the spool
+     * @param pending File holding the record, moved or copied into a segment
+     * @param size Size of the record
+     * @return Offset of the record
+     */
+    private synchronized long link(Path pending, long size) throws IOException {
+        long offset = end;
+        if (size >= Math.min(segmentBytes, LINK_BYTES)) {
+            closeActive();
+            File file = segmentFile(offset);
+            move(pending, file.toPath());
+            segments.put(offset, file);
+        } else {
+            if (active == null || active.size() >= segmentBytes) {
+                roll();
+            }
+            long start = active.size();
+            try (FileChannel source = FileChannel.open(pending, StandardOpenOption.READ)) {
+                long copied = 0;
+                while (copied < size) {
+                    long transferred = active.transferFrom(source, start + copied, size - copied);
+                    if (transferred <= 0) {
+                        throw new EOFException("Pending CloudAEye spool record was truncated : " + pending);
+                    }
+                    copied += transferred;
+                }
+                active.force(false);
+            } catch (IOException | RuntimeException e) {
+                active.truncate(start);
+                throw e;
+            }
+        }
+        end = offset + size;
+        pendingRecords++;
+        return offset;
+    }
+
+    /**
+     * Reads the header of the record at the replay position, skipping the rest of a segment whose records are
+     * unreadable
+     * @return The next record to replay, null if every record was replayed
+     * @throws IOException If the segment cannot be read
+     */
+    synchronized Record next() throws IOException {
+        while (position < end) {
+            Map.Entry<Long, File> segment = segments.floorEntry(position);
+            Long following = segments.higherKey(position);
+            long segmentEnd = following == null ? end : following;
+            if (segment == null) {
+                // Dropped by retention, replay continues with the oldest segment left
+                position = segmentEnd;
+                continue;
+            }
+            Record record = readRecord(segment.getValue(), segment.getKey(), position - segment.getKey());
+            if (record != null && record.next <= segmentEnd) {
+                return record;
+            }
+            LOGGER.warning("Skipping unreadable records of CloudAEye spool segment " + segment.getValue());
+            pendingRecords = Math.max(0, pendingRecords - 1);
+            position = segmentEnd;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the replay position past the given record, once it was sent or can never be sent.
+     * Segments left behind by the replay position are deleted.
+     * @param record The record returned by {@link #next()}
+     * @throws IOException If the replay position cannot be saved
+     */
+    synchronized void commit(Record record) throws IOException {
+        if (record.next <= position) {
+            return;
+        }
+        position = record.next;
+        pendingRecords = Math.max(0, pendingRecords - 1);
+        writePosition();
+        while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= position) {
+            delete(segments.firstEntry());
+        }
+    }
+
+    /**
+     * Drops the oldest segments while the spool is larger or older than allowed
+     * @param maxBytes Maximum size of the records not replayed yet
+     * @param maxAgeMillis Maximum age of a segment, measured from its last record
+     * @return Number of records dropped before they were replayed
+     * @throws IOException If the replay position cannot be saved
+     */
+    synchronized long applyRetention(long maxBytes, long maxAgeMillis) throws IOException {
+        long dropped = 0;
+        long now = System.currentTimeMillis();
+        while (!segments.isEmpty()) {
+            Map.Entry<Long, File> oldest = segments.firstEntry();
+            Long following = segments.higherKey(oldest.getKey());
+            long segmentEnd = following == null ? end : following;
+            boolean tooLarge = end - position > maxBytes;
+            boolean tooOld = now - oldest.getValue().lastModified() > maxAgeMillis;
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            long records = countRecords(oldest.getValue(), oldest.getKey(), Math.max(position, oldest.getKey()));
+            dropped += records;
+            pendingRecords = Math.max(0, pendingRecords - records);
+            delete(oldest);
+            position = Math.max(position, segmentEnd);
+        }
+        if (dropped > 0) {
+            writePosition();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return Number of records not replayed yet
+     */
+    synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return Size of the records not replayed yet
+     */
+    synchronized long getPendingBytes() {
+        return end - position;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeActive();
+    }
+
+    private void closeActive() throws IOException {
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+    }
+
+    /**
+     * Starts a new segment at the end of the spool, the last one is reopened if it still has room
+     */
+    private void roll() throws IOException {
+        closeActive();
+        Map.Entry<Long, File> last = segments.lastEntry();
+        File file;
+        if (last != null
+                && last.getKey() + last.getValue().length() == end
+                && last.getValue().length() < segmentBytes) {
+            file = last.getValue();
+        } else {
+            file = segmentFile(end);
+            segments.put(end, file);
+        }
+        active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private File segmentFile(long offset) {
+        return new File(directory, String.format("%020d%s", offset, SEGMENT_SUFFIX));
+    }
+
+    private void delete(Map.Entry<Long, File> segment) throws IOException {
+        if (segment.getKey().equals(segments.lastKey())) {
+            closeActive();
+        }
+        segments.remove(segment.getKey());
+        Files.deleteIfExists(segment.getValue().toPath());
+    }
+
+    /**
+     * Checks every record of the given segment and cuts off the segment at the first invalid one
+     * @return Size of the valid part of the segment
+     */
+    private static long recover(File segment) throws IOException {
+        long valid = 0;
+        Record record;
+        while ((record = readRecord(segment, 0, valid)) != null && record.isIntact()) {
+            valid = record.next;
+        }
+        if (valid < segment.length()) {
+            LOGGER.warning("Cutting off a torn record at the end of CloudAEye spool segment " + segment);
+            try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(false);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @return Number of records from the replay position to the end of the spool
+     */
+    private long countRecords() throws IOException {
+        long count = 0;
+        Long first = segments.floorKey(position);
+        for (Map.Entry<Long, File> segment :
+                (first == null ? segments : segments.tailMap(first, true)).entrySet()) {
+            count += countRecords(segment.getValue(), segment.getKey(), Math.max(position, segment.getKey()));
+        }
+        return count;
+    }
+
+    /**
+     * Counts records by hopping from header to header, without reading the payloads
+     */
+    private static long countRecords(File segment, long base, long from) throws IOException {
+        long count = 0;
+        long relative = from - base;
+        Record record;
+        while ((record = readRecord(segment, base, relative)) != null) {
+            count++;
+            relative = record.next - base;
+        }
+        return count;
+    }
+
+    /**
+     * @param segment Segment file
+     * @param base Offset of the segment
+     * @param relative Position of the record in the segment
+     * @return The record header, null at the end of the segment or if the header is invalid
+     */
+    private static Record readRecord(File segment, long base, long relative) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (relative + HEADER_BYTES > size) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, relative);
+            header.flip();
+            int magic = header.getInt();
+            int checksum = header.getInt();
+            long length = header.getLong();
+            long createdAt = header.getLong();
+            int kind = header.get();
+            int idLength = header.getShort() & 0xFFFF;
+            long payloadPosition = relative + HEADER_BYTES + idLength;
+            if (magic != MAGIC || length < 0 || kind < 0 || kind >= Kind.values().length
+                    || payloadPosition + length > size) {
+                return null;
+            }
+            ByteBuffer id = ByteBuffer.allocate(idLength);
+            readFully(channel, id, relative + HEADER_BYTES);
+            return new Record(
+                    segment,
+                    base + relative,
+                    Kind.values()[kind],
+                    new String(id.array(), StandardCharsets.UTF_8),
+                    createdAt,
+                    payloadPosition,
+                    length,
+                    checksum);
+        }
+    }
+
+    private long readPosition(long defaultPosition) {
+        Path file = new File(directory, POSITION_FILE).toPath();
+        try {
+            return Long.parseLong(Files.readString(file, StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            return defaultPosition;
+        }
+    }
+
+    private void writePosition() throws IOException {
+        Path file = new File(directory, POSITION_FILE).toPath();
+        Path temp = new File(directory, POSITION_FILE + ".tmp").toPath();
+        Files.writeString(temp, Long.toString(position), StandardCharsets.US_ASCII);
+        move(temp, file);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, at);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of CloudAEye spool segment");
+            }
+            at += read;
+        }
+    }
+
+    /**
+     * A record of the spool, its payload is read from the segment when needed
+     */
+    static final class Record {
+        final long offset;
+        final long next;
+        final Kind kind;
+        final String id;
+        final long createdAt;
+        final long length;
+        private final File segment;
+        private final long payloadPosition;
+        private final int checksum;
+
+        Record(
+                File segment,
+                long offset,
+                Kind kind,
+                String id,
+                long createdAt,
+                long payloadPosition,
+                long length,
+                int checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.kind = kind;
+            this.id = id;
+            this.createdAt = createdAt;
+            this.payloadPosition = payloadPosition;
+            this.length = length;
+            this.checksum = checksum;
+            this.next = offset + HEADER_BYTES + id.getBytes(StandardCharsets.UTF_8).length + length;
+        }
+
+        /**
+         * Reads the record again and compares its checksum
+         * @return Whether the record is complete and unchanged
+         * @throws IOException If the segment cannot be read
+         */
+        boolean isIntact() throws IOException {
+            byte[] id = this.id.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(11 + id.length)
+                    .putLong(createdAt)
+                    .put((byte) kind.ordinal())
+                    .putShort((short) id.length)
+                    .put(id)
+                    .array());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                long at = payloadPosition;
+                long remaining = length;
+                while (remaining > 0) {
+                    buffer.clear().limit((int) Math.min(BUFFER_SIZE, remaining));
+                    int read = channel.read(buffer, at);
+                    if (read < 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    crc.update(buffer);
+                    at += read;
+                    remaining -= read;
+                }
+            }
+            return (int) crc.getValue() == checksum;
+        }
+
+        /**
+         * @return The payload, streamed from the segment into the request body
+         */
+        HttpEntity toEntity() {
+            return new PayloadEntity(segment, payloadPosition, length);
+        }
+    }
+
+    /**
+     * Payload of a record, transferred from the segment file to the request body without being parsed
+     */
+    static final class PayloadEntity extends AbstractHttpEntity {
+
+        private final File segment;
+        private final long start;
+        private final long length;
+
+        PayloadEntity(File segment, long start, long length) {
+            this.segment = segment;
+            this.start = start;
+            this.length = length;
+            setContentType("application/json");
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+            channel.position(start);
+            return ByteStreams.limit(Channels.newInputStream(channel), length);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = start;
+                long end = start + length;
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0 && position >= channel.size()) {
+                        throw new EOFException("CloudAEye spool segment was truncated : " + segment);
+                    }
+                    position += transferred;
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it
+     */
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
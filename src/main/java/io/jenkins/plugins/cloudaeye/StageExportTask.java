@@ -0,0 +1,203 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import hudson.console.AnnotatedLargeText;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.jenkinsci.plugins.workflow.actions.LogAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+/**
+ * A pending export of a finished pipeline stage.
+ * The stage timings are captured when the stage ends, the log of each failed step is read when the task is processed.
+ */
+public class StageExportTask extends ExportTask {
+
+    private static final Logger LOGGER = Logger.getLogger(StageExportTask.class.getName());
+
+    /** Maximum number of bytes read from the end of the log of a failed step */
+    static final int STEP_LOG_BYTES = 64 * 1024;
+
+    private final String stage;
+
+    /**
+     * @param run The run the stage belongs to
+     * @param result Result of the stage
+     * @param endTime Time at which the stage ended
+     * @param stage Stage details
+     */
+    StageExportTask(Run<?, ?> run, Result result, long endTime, JsonObject stage) {
+        super(run, result, endTime);
+        this.stage = stage.toString();
+    }
+
+    /**
+     * @return Stage details captured when the stage ended
+     */
+    JsonObject getStage() {
+        return JsonParser.parseString(stage).getAsJsonObject();
+    }
+
+    @Override
+    boolean isBatchable() {
+        return false;
+    }
+
+    @Override
+    void execute() throws IOException, InterruptedException {
+        Run<?, ?> run = Run.fromExternalizableId(getRunId());
+        if (!(run instanceof WorkflowRun)) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format("[{0}] Run no longer exists. Skipping stage export", getRunId()));
+            }
+            return;
+        }
+        ExportLimiter.Admission admission = ExportLimiter.get().admit(getPriority(), true);
+        if (admission == ExportLimiter.Admission.SKIPPED) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[{0}] Exports are over the rate limit. Skipping stage export", getRunId()));
+            }
+            return;
+        }
+        JsonObject details = getStage();
+        redactErrors(details);
+        FlowExecution execution = ((WorkflowRun) run).getExecution();
+        // A reduced stage export only holds the timings and the failed steps, without their logs
+        if (execution != null && admission == ExportLimiter.Admission.FULL) {
+            for (JsonElement failed : details.getAsJsonArray("failedSteps")) {
+                JsonObject step = failed.getAsJsonObject();
+                FlowNode node = execution.getNode(step.get("id").getAsString());
+                step.add("logs", node == null ? new JsonArray() : readLogTail(node, run.getCharset()));
+            }
+        }
+
+        JsonObject job = new JsonObject();
+        job.addProperty("name", run.getParent().getFullName());
+        job.addProperty("id", run.getParent().getUrl());
+        job.addProperty("buildNumber", run.getNumber());
+        job.addProperty("url", run.getUrl());
+        JsonObject payload = new JsonObject();
+        payload.add("job", job);
+        payload.add("stage", details);
+
+        String serialized = payload.toString();
+        PayloadLog.record(LOGGER, "stage", run.getNumber(), serialized);
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        NotificationSender.Response response;
+        try {
+            response = NotificationSender.forStages()
+                    .sendDetailsToCloudAEye(serialized, config.getTenantKey(), config.getToken());
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error while trying to send stage details to CloudAEye : {1}",
+                    run.getNumber(), e.getMessage()));
+            if (NotificationSender.isUnsent(e) && spool(serialized)) {
+                return;
+            }
+            throw e;
+        } finally {
+            ExportLimiter.get().consumed(serialized.length());
+        }
+        int status = response.getStatusCode();
+        if (status == 200) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(MessageFormat.format(
+                        "[#{0}] Stage {1} exported to CloudAEye", run.getNumber(), details.get("name")));
+            }
+        } else {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Error response received from CloudAEye stage endpoint : {1}",
+                    run.getNumber(), response.getBody()));
+            // As for the builds, a stage that may have been processed is not spooled
+            if (RetryPolicy.isRetryable(status)) {
+                spool(serialized);
+            }
+        }
+    }
+
+    /**
+     * Masks secrets in the error messages of the stage and its failed steps, with the rules applied to the build log
+     * @param details Stage details
+     */
+    static void redactErrors(JsonObject details) {
+        Redactor.Rules rules = CloudAEyeGlobalKeyConfiguration.get().getCompiledRedactionRules();
+        if (rules == null) {
+            return;
+        }
+        Redactor redactor = new Redactor(rules);
+        redactError(details, redactor);
+        for (JsonElement failed : details.getAsJsonArray("failedSteps")) {
+            redactError(failed.getAsJsonObject(), redactor);
+        }
+        if (redactor.getRedactions() > 0) {
+            ExportMetrics.REDACTIONS.inc(redactor.getRedactions());
+        }
+    }
+
+    private static void redactError(JsonObject json, Redactor redactor) {
+        JsonElement error = json.get("error");
+        if (error != null && !error.isJsonNull()) {
+            json.addProperty("error", redactor.redact(error.getAsString()));
+        }
+    }
+
+    /**
+     * Keeps a stage the endpoint could not take, to send it once the endpoint is back
+     * @param serialized Stage payload
+     * @return Whether the stage was spooled
+     */
+    private boolean spool(String serialized) {
+        return ExportSpool.get()
+                .add(Spool.Kind.STAGE, getRunId(), new StringEntity(serialized, ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Reads the last lines of the log of the given step
+     * @param node Step node
+     * @param charset Charset of the log
+     * @return Lines without console notes, a partial first line is skipped
+     * @throws IOException
+     */
+    static JsonArray readLogTail(FlowNode node, Charset charset) throws IOException {
+        JsonArray lines = new JsonArray();
+        LogAction log = node.getAction(LogAction.class);
+        if (log == null) {
+            return lines;
+        }
+        AnnotatedLargeText<? extends FlowNode> text = log.getLogText();
+        long start = Math.max(0, text.length() - STEP_LOG_BYTES);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        text.writeRawLogTo(start, raw);
+        try (LogLineReader reader = new LogLineReader(
+                new ByteArrayInputStream(raw.toByteArray()),
+                charset,
+                new BuildLogExporter.Settings(
+                        null, null, CloudAEyeGlobalKeyConfiguration.get().getCompiledRedactionRules()))) {
+            boolean partial = start > 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (partial) {
+                    partial = false;
+                    continue;
+                }
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,200 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.model.Result;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.actions.ErrorAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.StepNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+/**
+ * Follows the flow graph of a running pipeline and reports every stage as soon as it finishes.
+ * Only the innermost open stage of each flow head and the steps still running are tracked, so the work per node is a
+ * few map operations and the memory held does not grow with the size of the pipeline.
+ */
+class StageTracker implements GraphListener {
+
+    /**
+     * Receives every finished stage, on the thread running the pipeline
+     */
+    interface Sink {
+        /**
+         * @param result Result of the stage
+         * @param endTime Time at which the stage ended
+         * @param stage Stage details
+         */
+        void stageFinished(Result result, long endTime, JsonObject stage);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(StageTracker.class.getName());
+
+    /** Maximum number of steps listed per stage, the remaining ones are only counted */
+    static final int MAX_STEPS_PER_STAGE = 500;
+
+    /** Maximum number of failed steps reported per stage */
+    static final int MAX_FAILED_STEPS_PER_STAGE = 20;
+
+    private final WorkflowRun run;
+    private final Sink sink;
+
+    /** Innermost open stage of each node that can still get children */
+    private final Map<String, StageState> stageAt = new HashMap<>();
+
+    /** Steps started but not finished yet */
+    private final Map<String, StepState> openSteps = new HashMap<>();
+
+    /**
+     * @param run The tracked run
+     * @param sink Receives the details of every finished stage
+     */
+    StageTracker(WorkflowRun run, Sink sink) {
+        this.run = run;
+        this.sink = sink;
+    }
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        try {
+            track(node);
+        } catch (RuntimeException e) {
+            LOGGER.log(
+                    Level.FINE,
+                    MessageFormat.format("[#{0}] Unable to track flow node {1}", run.getNumber(), node.getId()),
+                    e);
+        }
+    }
+
+    private void track(FlowNode node) {
+        long time = TimingAction.getStartTime(node);
+        StageState stage = null;
+        for (FlowNode parent : node.getParents()) {
+            String parentId = parent.getId();
+            StageState parentStage;
+            if (parent instanceof BlockStartNode) {
+                // Block starts keep their entry until the block ends, since parallel branches share the same parent
+                parentStage = stageAt.get(parentId);
+                if ((parentStage == null || !parentStage.id.equals(parentId)) && isStage(parent)) {
+                    // The label of a stage is added once the step starts, so it is only checked for its first child
+                    parentStage = new StageState(parent, TimingAction.getStartTime(parent), parentStage);
+                    stageAt.put(parentId, parentStage);
+                }
+            } else {
+                parentStage = stageAt.remove(parentId);
+            }
+            if (stage == null) {
+                stage = parentStage;
+            }
+            StepState step = openSteps.remove(parentId);
+            if (step != null) {
+                step.finish(parent, time);
+            }
+        }
+
+        if (node instanceof BlockEndNode) {
+            BlockStartNode start = ((BlockEndNode<?>) node).getStartNode();
+            stageAt.remove(start.getId());
+            if (stage != null && start.getId().equals(stage.id)) {
+                finish(stage, node, time);
+                stage = stage.parent;
+            } else if (isStage(start)) {
+                // Stage started before the tracker was attached, e.g. before a restart
+                finish(new StageState(start, TimingAction.getStartTime(start), stage), node, time);
+            }
+        } else if (node instanceof StepNode && !(node instanceof BlockStartNode) && stage != null) {
+            openSteps.put(node.getId(), new StepState(stage, node, time));
+        }
+        if (stage != null || node instanceof BlockStartNode) {
+            stageAt.put(node.getId(), stage);
+        }
+    }
+
+    /**
+     * A stage is a labelled block, parallel branches are labelled as well but also carry a thread name
+     */
+    private static boolean isStage(FlowNode node) {
+        return node.getPersistentAction(LabelAction.class) != null
+                && node.getPersistentAction(ThreadNameAction.class) == null;
+    }
+
+    private void finish(StageState stage, FlowNode end, long time) {
+        ErrorAction error = end.getError();
+        JsonObject json = new JsonObject();
+        json.addProperty("id", stage.id);
+        json.addProperty("name", stage.name);
+        json.addProperty("parentId", stage.parent == null ? null : stage.parent.id);
+        json.addProperty("startTime", stage.startTime);
+        json.addProperty("duration", time - stage.startTime);
+        json.addProperty("status", error == null ? "success" : "failure");
+        json.addProperty("error", error == null ? null : String.valueOf(error.getError().getMessage()));
+        json.addProperty("stepCount", stage.stepCount);
+        json.add("steps", stage.steps);
+        json.add("failedSteps", stage.failedSteps);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format("[#{0}] Stage finished : {1}", run.getNumber(), stage.name));
+        }
+        sink.stageFinished(error == null ? Result.SUCCESS : Result.FAILURE, time, json);
+    }
+
+    private static final class StageState {
+        final String id;
+        final String name;
+        final long startTime;
+        final StageState parent;
+        final JsonArray steps = new JsonArray();
+        final JsonArray failedSteps = new JsonArray();
+        int stepCount;
+
+        StageState(FlowNode start, long startTime, StageState parent) {
+            this.id = start.getId();
+            this.name = start.getPersistentAction(LabelAction.class).getDisplayName();
+            this.startTime = startTime;
+            this.parent = parent;
+        }
+    }
+
+    private static final class StepState {
+        final StageState stage;
+        final String name;
+        final long startTime;
+
+        StepState(StageState stage, FlowNode node, long startTime) {
+            this.stage = stage;
+            this.name = node.getDisplayFunctionName();
+            this.startTime = startTime;
+        }
+
+        void finish(FlowNode node, long endTime) {
+            ErrorAction error = node.getError();
+            stage.stepCount++;
+            if (stage.steps.size() < MAX_STEPS_PER_STAGE) {
+                JsonObject step = new JsonObject();
+                step.addProperty("id", node.getId());
+                step.addProperty("name", name);
+                step.addProperty("startTime", startTime);
+                step.addProperty("duration", endTime - startTime);
+                step.addProperty("status", error == null ? "success" : "failure");
+                stage.steps.add(step);
+            }
+            if (error != null && stage.failedSteps.size() < MAX_FAILED_STEPS_PER_STAGE) {
+                // The log of the step is only read once the stage is exported, away from the pipeline thread
+                JsonObject failed = new JsonObject();
+                failed.addProperty("id", node.getId());
+                failed.addProperty("name", name);
+                failed.addProperty("error", String.valueOf(error.getError().getMessage()));
+                stage.failedSteps.add(failed);
+            }
+        }
+    }
+}
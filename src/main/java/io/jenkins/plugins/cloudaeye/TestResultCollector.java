@@ -0,0 +1,379 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResultAction;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Collects the failed tests of a run as compact records, so that CloudAEye does not have to find them in the console.
+ * The test results stored with the run are streamed case by case and only the failures are kept, up to a limit, with
+ * shortened stack traces. Suites of any size are read with a bounded amount of memory.
+ * Each failure is classified against the previous builds: a regression fails for the first time, a flaky test fails
+ * again after passing in between and a failing test has been failing since an earlier build.
+ */
+final class TestResultCollector {
+
+    private static final Logger LOGGER = Logger.getLogger(TestResultCollector.class.getName());
+
+    /** File in which the JUnit plugin stores the test results of a run */
+    static final String RESULT_FILE = "junitResult.xml";
+    /** Number of stack trace lines kept for a failure */
+    static final int MAX_STACK_TRACE_LINES = 20;
+    /** Number of characters kept from the error message or stack trace of a failure */
+    static final int MAX_TEXT_CHARS = 4096;
+    /** Number of previous builds searched for earlier failures of a regression */
+    static final int FLAKY_LOOKBACK_BUILDS = 5;
+
+    private static final XMLInputFactory XML = XMLInputFactory.newInstance();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Status of a failed test compared with the previous builds
+     */
+    enum Status {
+        REGRESSION,
+        FLAKY,
+        FAILING
+    }
+
+    /**
+     * Receives the failed cases of a test result file
+     */
+    interface FailureVisitor {
+        void failed(String className, String name, float duration, int failedSince, String details, String stackTrace)
+                throws IOException;
+    }
+
+    /**
+     * A failed test case
+     */
+    static final class Failure {
+        final String className;
+        final String name;
+        final float duration;
+        final int failedSince;
+        final String details;
+        final String stackTrace;
+        Status status;
+
+        Failure(String className, String name, float duration, int failedSince, String details, String stackTrace) {
+            this.className = className;
+            this.name = name;
+            this.duration = duration;
+            this.failedSince = failedSince;
+            this.details = details;
+            this.stackTrace = stackTrace;
+        }
+
+        String getFullName() {
+            return className + '.' + name;
+        }
+    }
+
+    /**
+     * Keeps the first failures of a run, regressions being kept in preference to tests that were already failing
+     */
+    static final class Failures implements FailureVisitor {
+        private final int buildNumber;
+        private final int maxFailures;
+        private final List<Failure> failures = new ArrayList<>();
+        private int omitted;
+
+        /**
+         * @param buildNumber Number of the run, a test failing since this build is a regression
+         * @param maxFailures Maximum number of failures kept
+         */
+        Failures(int buildNumber, int maxFailures) {
+            this.buildNumber = buildNumber;
+            this.maxFailures = maxFailures;
+        }
+
+        @Override
+        public void failed(
+                String className, String name, float duration, int failedSince, String details, String stackTrace) {
+            Failure failure = new Failure(className, name, duration, failedSince, details, stackTrace);
+            failure.status = failedSince == buildNumber ? Status.REGRESSION : Status.FAILING;
+            if (failures.size() < maxFailures) {
+                failures.add(failure);
+                return;
+            }
+            omitted++;
+            if (failure.status == Status.REGRESSION) {
+                for (int i = failures.size() - 1; i >= 0; i--) {
+                    if (failures.get(i).status == Status.FAILING) {
+                        failures.set(i, failure);
+                        return;
+                    }
+                }
+            }
+        }
+
+        List<Failure> getFailures() {
+            return failures;
+        }
+
+        int getOmitted() {
+            return omitted;
+        }
+    }
+
+    private TestResultCollector() {}
+
+    /**
+     * Collects the test results of the given run
+     * @param run The exported run
+     * @param maxFailures Maximum number of failures exported
+     * @return The test result summary and failures, null if the run has no test results
+     */
+    static JsonObject collect(Run<?, ?> run, int maxFailures) {
+        TestResultAction action = run.getAction(TestResultAction.class);
+        if (action == null) {
+            return null;
+        }
+        JsonObject tests = new JsonObject();
+        tests.addProperty("total", action.getTotalCount());
+        tests.addProperty("failed", action.getFailCount());
+        tests.addProperty("skipped", action.getSkipCount());
+        if (action.getFailCount() == 0 || maxFailures <= 0) {
+            return tests;
+        }
+        Failures failures = new Failures(run.getNumber(), maxFailures);
+        try {
+            File file = new File(run.getRootDir(), RESULT_FILE);
+            if (file.isFile()) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+                    scan(in, failures, true);
+                }
+            } else {
+                // Results kept in another storage are only available through the action
+                for (CaseResult result : action.getFailedTests()) {
+                    failures.failed(
+                            result.getClassName(),
+                            result.getName(),
+                            result.getDuration(),
+                            result.getFailedSince(),
+                            shorten(result.getErrorDetails(), Integer.MAX_VALUE),
+                            shorten(result.getErrorStackTrace(), MAX_STACK_TRACE_LINES));
+                }
+            }
+            markFlaky(run, failures.getFailures());
+        } catch (IOException e) {
+            LOGGER.warning(MessageFormat.format(
+                    "[#{0}] Unable to read the test results : {1}", run.getNumber(), e.getMessage()));
+            return tests;
+        }
+        JsonArray records = new JsonArray();
+        for (Failure failure : failures.getFailures()) {
+            JsonObject record = new JsonObject();
+            record.addProperty("className", failure.className);
+            record.addProperty("name", failure.name);
+            record.addProperty("duration", failure.duration);
+            record.addProperty("status", failure.status.name().toLowerCase(Locale.ROOT));
+            record.addProperty("failedSince", failure.failedSince);
+            record.addProperty("errorDetails", failure.details);
+            record.addProperty("stackTrace", failure.stackTrace);
+            records.add(record);
+        }
+        tests.add("failures", records);
+        tests.addProperty("omittedFailures", failures.getOmitted());
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(MessageFormat.format(
+                    "[#{0}] Test failures captured : {1}, {2} omitted",
+                    run.getNumber(), records.size(), failures.getOmitted()));
+        }
+        return tests;
+    }
+
+    /**
+     * Marks the regressions that already failed in one of the previous builds, and passed since
+     * @param run The exported run
+     * @param failures Failures of the run
+     */
+    private static void markFlaky(Run<?, ?> run, List<Failure> failures) throws IOException {
+        Set<String> regressions = new HashSet<>();
+        for (Failure failure : failures) {
+            if (failure.status == Status.REGRESSION) {
+                regressions.add(failure.getFullName());
+            }
+        }
+        Set<String> failedBefore = new HashSet<>();
+        Run<?, ?> previous = run.getPreviousCompletedBuild();
+        for (int i = 0; i < FLAKY_LOOKBACK_BUILDS && previous != null && !regressions.isEmpty(); i++) {
+            File file = new File(previous.getRootDir(), RESULT_FILE);
+            if (file.isFile()) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+                    scan(in, (className, name, duration, failedSince, details, stackTrace) -> {
+                        String fullName = className + '.' + name;
+                        if (regressions.remove(fullName)) {
+                            failedBefore.add(fullName);
+                        }
+                    }, false);
+                }
+            } else {
+                TestResultAction action = previous.getAction(TestResultAction.class);
+                if (action != null) {
+                    for (CaseResult result : action.getFailedTests()) {
+                        String fullName = result.getClassName() + '.' + result.getName();
+                        if (regressions.remove(fullName)) {
+                            failedBefore.add(fullName);
+                        }
+                    }
+                }
+            }
+            previous = previous.getPreviousCompletedBuild();
+        }
+        for (Failure failure : failures) {
+            if (failedBefore.contains(failure.getFullName())) {
+                failure.status = Status.FLAKY;
+            }
+        }
+    }
+
+    /**
+     * Streams a test result file and reports its failed cases
+     * @param in Content of the test result file
+     * @param visitor Visitor of the failed cases
+     * @param withText Whether error messages and stack traces are read, they are reported empty otherwise
+     * @throws IOException If the file cannot be read or parsed
+     */
+    static void scan(InputStream in, FailureVisitor visitor, boolean withText) throws IOException {
+        try {
+            XMLStreamReader xml = XML.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamConstants.START_ELEMENT && "case".equals(xml.getLocalName())) {
+                        readCase(xml, visitor, withText);
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid test result file", e);
+        }
+    }
+
+    private static void readCase(XMLStreamReader xml, FailureVisitor visitor, boolean withText)
+            throws XMLStreamException, IOException {
+        String className = "";
+        String name = "";
+        float duration = 0;
+        int failedSince = 0;
+        boolean skipped = false;
+        String details = null;
+        String stackTrace = null;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (xml.getLocalName()) {
+                case "className":
+                    className = xml.getElementText();
+                    break;
+                case "testName":
+                    name = xml.getElementText();
+                    break;
+                case "duration":
+                    duration = parseFloat(xml.getElementText());
+                    break;
+                case "failedSince":
+                    failedSince = (int) parseFloat(xml.getElementText());
+                    break;
+                case "skipped":
+                    skipped = Boolean.parseBoolean(xml.getElementText().trim());
+                    break;
+                case "errorDetails":
+                    details = readText(xml, withText ? MAX_TEXT_CHARS : 0, Integer.MAX_VALUE);
+                    break;
+                case "errorStackTrace":
+                    stackTrace = readText(xml, withText ? MAX_TEXT_CHARS : 0, MAX_STACK_TRACE_LINES);
+                    break;
+                default:
+                    // Standard output and other large properties are skipped without being read into memory
+                    readText(xml, 0, 0);
+            }
+        }
+        if (!skipped && (details != null || stackTrace != null)) {
+            visitor.failed(className, name, duration, failedSince, details, stackTrace);
+        }
+    }
+
+    /**
+     * Reads the text of the current element, keeping only its beginning
+     * @param xml Reader positioned on the start of the element, left on its end
+     * @param maxChars Maximum number of characters kept
+     * @param maxLines Maximum number of lines kept
+     * @return The beginning of the text
+     */
+    private static String readText(XMLStreamReader xml, int maxChars, int maxLines) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int lines = 0;
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && xml.isCharacters() && text.length() < maxChars && lines < maxLines) {
+                char[] chars = xml.getTextCharacters();
+                int end = xml.getTextStart() + xml.getTextLength();
+                for (int i = xml.getTextStart(); i < end && text.length() < maxChars; i++) {
+                    if (chars[i] == '\n' && ++lines >= maxLines) {
+                        break;
+                    }
+                    text.append(chars[i]);
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param text Error message or stack trace
+     * @param maxLines Maximum number of lines kept
+     * @return The beginning of the text, null if there is none
+     */
+    static String shorten(String text, int maxLines) {
+        if (text == null) {
+            return null;
+        }
+        int end = Math.min(text.length(), MAX_TEXT_CHARS);
+        int lines = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n' && ++lines >= maxLines) {
+                end = i;
+                break;
+            }
+        }
+        return text.substring(0, end);
+    }
+
+    private static float parseFloat(String value) {
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter handing out permits at a steady rate, with bursts of up to one second worth of permits.
+ * Waiting callers sleep outside of the lock, so a slow caller does not hold up the others.
+ * Permits whose count is only known afterwards, such as the bytes of a streamed request, are consumed once known and
+ * may leave the bucket in debt, later callers then wait until it is paid back.
+ */
+final class TokenBucket {
+
+    private double permitsPerSecond;
+    private double available;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond Sustained rate, at least one permit per minute is handed out
+     */
+    TokenBucket(double permitsPerSecond) {
+        this.permitsPerSecond = Math.max(1 / 60.0, permitsPerSecond);
+        this.available = this.permitsPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate, permits already available are kept within the new burst
+     * @param permitsPerSecond Sustained rate
+     */
+    synchronized void setRate(double permitsPerSecond) {
+        refill();
+        this.permitsPerSecond = Math.max(1 / 60.0, permitsPerSecond);
+        available = Math.min(available, Math.max(1, this.permitsPerSecond));
+    }
+
+    synchronized double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * @return Permits currently available, negative while the bucket is in debt
+     */
+    synchronized double getAvailable() {
+        refill();
+        return available;
+    }
+
+    /**
+     * Takes the given number of permits without waiting, even if fewer are available
+     * @param permits Number of permits used
+     */
+    synchronized void consume(double permits) {
+        refill();
+        available -= permits;
+    }
+
+    /**
+     * Takes a permit if one is available
+     * @return Whether a permit was taken
+     */
+    synchronized boolean tryAcquire() {
+        return reserve() == 0;
+    }
+
+    /**
+     * Takes a permit, waiting for it if needed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = reserve()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @return 0 if a permit was taken, otherwise the time in nanoseconds until the next permit
+     */
+    private synchronized long reserve() {
+        refill();
+        if (available >= 1) {
+            available--;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - available) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(
+                Math.max(1, permitsPerSecond), available + (now - refilledAt) * permitsPerSecond / 1e9);
+        refilledAt = now;
+    }
+}
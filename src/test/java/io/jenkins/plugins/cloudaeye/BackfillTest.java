@@ -0,0 +1,153 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import hudson.XmlFile;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.UnstableBuilder;
+
+public class BackfillTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private HttpServer server;
+    private String baseUrl;
+    /** Build numbers received by the endpoint */
+    private final List<Integer> received = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                received.add(JsonParser.parseString(new String(in.readAllBytes(), StandardCharsets.UTF_8))
+                        .getAsJsonObject()
+                        .getAsJsonObject("job")
+                        .get("buildNumber")
+                        .getAsInt());
+            }
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        baseUrl = NotificationSender.baseUrl;
+        NotificationSender.baseUrl = "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort();
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setTenantKey(Secret.fromString("tenant"));
+        config.setToken(Secret.fromString("token"));
+        config.setBackfillBuildsPerSecond(100);
+        NotificationSender.resetSharedClient();
+    }
+
+    @After
+    public void stopServer() {
+        NotificationSender.baseUrl = baseUrl;
+        NotificationSender.resetSharedClient();
+        server.stop(0);
+    }
+
+    @Test
+    public void exportsBuildRangeOnce() throws Exception {
+        FreeStyleProject project = createProject(5);
+
+        Backfill range = BackfillManager.get().start(List.of(project.getFullName()), 2, 4, 0, 0);
+        awaitCompletion(range);
+        assertEquals(List.of(2, 3, 4), sorted(received));
+        assertEquals(3, range.getExported());
+        assertEquals(5, (int) range.getCheckpoints().get(project.getFullName()));
+
+        // Builds already exported are skipped
+        received.clear();
+        Backfill all = BackfillManager.get().start(List.of(project.getFullName()), 0, 0, 0, 0);
+        awaitCompletion(all);
+        assertEquals(List.of(1, 5), sorted(received));
+        assertEquals(2, all.getExported());
+        assertEquals(3, all.getSkipped());
+    }
+
+    @Test
+    public void skipsBuildsThatNeitherSucceededNorFailed() throws Exception {
+        FreeStyleProject project = createProject(1);
+        project.getBuildersList().add(new UnstableBuilder());
+        j.buildAndAssertStatus(Result.UNSTABLE, project);
+        project.getBuildersList().clear();
+        project.getBuildersList().add(new FailureBuilder());
+        j.buildAndAssertStatus(Result.FAILURE, project);
+
+        Backfill backfill = BackfillManager.get().start(List.of(project.getFullName()), 0, 0, 0, 0);
+        awaitCompletion(backfill);
+        // As for live exports, only successful and failed builds are sent
+        assertEquals(List.of(1, 3), sorted(received));
+        assertEquals(2, backfill.getExported());
+        assertEquals(1, backfill.getSkipped());
+    }
+
+    @Test
+    public void resumesFromCheckpointAfterRestart() throws Exception {
+        FreeStyleProject project = createProject(5);
+        // Builds 1 and 2 were exported and build 3 was in flight when Jenkins stopped
+        Backfill backfill = new Backfill("42", List.of(project.getFullName()), 0, 0, 0, 0);
+        backfill.complete(backfill.next(), ExportAction.Outcome.SENT, 0);
+        backfill.complete(backfill.next(), ExportAction.Outcome.SENT, 0);
+        backfill.next();
+        File directory = new File(Jenkins.get().getRootDir(), "cloudaeye/backfill");
+        directory.mkdirs();
+        new XmlFile(Jenkins.XSTREAM2, new File(directory, "42.xml")).write(backfill);
+
+        BackfillManager.restore();
+        Backfill resumed = BackfillManager.get().getBackfill("42");
+        awaitCompletion(resumed);
+        assertEquals(List.of(3, 4, 5), sorted(received));
+        assertEquals(5, resumed.getExported());
+    }
+
+    private FreeStyleProject createProject(int builds) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        for (int i = 0; i < builds; i++) {
+            j.buildAndAssertSuccess(project);
+        }
+        return project;
+    }
+
+    private static void awaitCompletion(Backfill backfill) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (backfill.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(Backfill.State.COMPLETED, backfill.getState());
+    }
+
+    private static List<Integer> sorted(List<Integer> numbers) {
+        List<Integer> copy = new ArrayList<>(numbers);
+        Collections.sort(copy);
+        return copy;
+    }
+}
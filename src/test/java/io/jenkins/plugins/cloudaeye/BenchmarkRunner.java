@@ -0,0 +1,43 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the {@code @JmhBenchmark} classes of the plugin.
+ * Skipped during regular builds, run the benchmarks with {@code mvn test -Pbenchmark}.
+ * Results are written to {@code target/jmh-report.json}.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        assumeTrue("Benchmarks only run with -Dbenchmark", System.getProperty("benchmark") != null);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .warmupIterations(2)
+                .measurementIterations(3)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .addProfiler("gc")
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+        String include = System.getProperty("benchmark.include");
+        if (include != null && !include.isEmpty()) {
+            options.include(include);
+        } else {
+            new BenchmarkFinder(getClass()).findBenchmarks(options);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -1,3 +1,215 @@
 package io.jenkins.plugins.cloudaeye;
 
-public class BuildLogExporterTest {}
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import hudson.console.HyperlinkNote;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class BuildLogExporterTest {
+
+    /**
+     * Size of the synthetic log exported by {@link #exportsMultiGigabyteLogWithSmallHeap()}, a few megabytes in regular
+     * builds and two gigabytes with {@code mvn test -Pload}
+     */
+    private static final long SYNTHETIC_LOG_BYTES =
+            Long.getLong("cloudaeye.test.syntheticLogBytes", 16L * 1024 * 1024);
+
+    @Test
+    public void writesMetadataLogsAndSource() throws IOException {
+        JsonObject job = new JsonObject();
+        job.addProperty("name", "demo");
+        job.addProperty("buildNumber", 7);
+        JsonObject source = new JsonObject();
+        source.addProperty("eventType", "OTHER");
+        source.addProperty("url", (String) null);
+        byte[] log = "first\r\nsecond \"quoted\"\n\nlast".getBytes(StandardCharsets.UTF_8);
+
+        JsonObject payload = export(new BuildLogExporter(
+                7, job, source, () -> new ByteArrayInputStream(log), StandardCharsets.UTF_8));
+
+        JsonObject exportedJob = payload.getAsJsonObject("job");
+        assertEquals("demo", exportedJob.get("name").getAsString());
+        assertEquals(7, exportedJob.get("buildNumber").getAsInt());
+        JsonArray logs = exportedJob.getAsJsonArray("logs");
+        assertEquals(4, logs.size());
+        assertEquals("first", logs.get(0).getAsString());
+        assertEquals("second \"quoted\"", logs.get(1).getAsString());
+        assertEquals("", logs.get(2).getAsString());
+        assertEquals("last", logs.get(3).getAsString());
+        assertEquals("OTHER", payload.getAsJsonObject("source").get("eventType").getAsString());
+        assertTrue(payload.getAsJsonObject("source").get("url").isJsonNull());
+    }
+
+    @Test
+    public void stripsConsoleNotes() throws IOException {
+        String annotated = "Started by " + HyperlinkNote.encodeTo("/user/admin", "admin") + " at noon\n";
+        List<String> lines = readLines(annotated.getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of("Started by admin at noon"), lines);
+    }
+
+    @Test
+    public void truncatesOverlyLongLines() throws IOException {
+        byte[] log = new byte[LogLineReader.MAX_LINE_BYTES * 3 + 1];
+        Arrays.fill(log, (byte) 'x');
+        log[log.length - 1] = '\n';
+        List<String> lines = readLines(log);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("xxx"));
+        assertTrue(lines.get(0).endsWith("[line truncated]"));
+        assertTrue(lines.get(0).length() < LogLineReader.MAX_LINE_BYTES + 100);
+    }
+
+    @Test
+    public void repeatsPayloadOnEveryWrite() throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new ByteArrayInputStream("a\nb\n".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        assertTrue(exporter.isRepeatable());
+        assertEquals(export(exporter), export(exporter));
+    }
+
+    @Test
+    public void measuresEveryWrite() throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new ByteArrayInputStream("a\nb\nc\n".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        assertNull(exporter.getLastWrite());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+
+        BuildLogExporter.WriteStats stats = exporter.getLastWrite();
+        assertEquals(out.size(), stats.bytes);
+        assertEquals(3, stats.lines);
+        assertTrue(stats.readNanos >= 0);
+        assertTrue(stats.serializationNanos >= 0);
+    }
+
+    @Test
+    public void readsPayloadThroughContent() throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new SyntheticConsoleLog(1024 * 1024),
+                StandardCharsets.UTF_8);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        exporter.writeTo(written);
+        try (InputStream content = exporter.getContent()) {
+            assertArrayEquals(written.toByteArray(), content.readAllBytes());
+        }
+        try (InputStream content = new GZIPInputStream(
+                new CompressingEntity(exporter, CompressingEntity.Compression.GZIP_FAST).getContent())) {
+            assertArrayEquals(written.toByteArray(), content.readAllBytes());
+        }
+    }
+
+    @Test
+    public void failsContentWhenTheLogCannotBeRead() throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> {
+                    throw new IOException("Console log is gone");
+                },
+                StandardCharsets.UTF_8);
+        try (InputStream content = exporter.getContent()) {
+            assertThrows(IOException.class, content::readAllBytes);
+        }
+    }
+
+    /**
+     * Exports a synthetic log in a separate JVM with a small heap, multi-gigabyte with {@code mvn test -Pload}.
+     * The child process runs out of memory if the exporter buffers the log.
+     */
+    @Test
+    public void exportsMultiGigabyteLogWithSmallHeap() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(
+                        java,
+                        "-Xmx48m",
+                        "-cp",
+                        System.getProperty("java.class.path"),
+                        SyntheticExport.class.getName(),
+                        Long.toString(SYNTHETIC_LOG_BYTES))
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue("Export did not finish in time", process.waitFor(10, TimeUnit.MINUTES));
+        assertEquals(output, 0, process.exitValue());
+        String[] lines = output.trim().split("\\R");
+        long written = Long.parseLong(lines[lines.length - 1]);
+        assertTrue("Only " + written + " bytes were exported", written > SYNTHETIC_LOG_BYTES);
+    }
+
+    private static List<String> readLines(byte[] log) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LogLineReader reader = new LogLineReader(new ByteArrayInputStream(log), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static JsonObject export(BuildLogExporter exporter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+        return JsonParser.parseString(out.toString(StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    /**
+     * Child process entry point: streams a synthetic log of the requested size and prints the payload size
+     */
+    public static final class SyntheticExport {
+        public static void main(String[] args) throws IOException {
+            long size = Long.parseLong(args[0]);
+            CountingOutputStream out = new CountingOutputStream();
+            BuildLogExporter exporter = new BuildLogExporter(
+                    1, new JsonObject(), new JsonObject(), () -> new SyntheticConsoleLog(size), StandardCharsets.UTF_8);
+            exporter.writeTo(out);
+            System.out.println(out.count);
+        }
+    }
+
+    static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.FakeChangeLogSCM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the change log walk of a failed build at the end of a long failure streak.
+ * A cold walk extracts the change log of every build of the streak, a warm one finds the earlier builds in the cache,
+ * as a failure whose predecessors were already exported does.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ChangeLogBenchmark {
+
+    public static class StreakState extends JmhBenchmarkState {
+
+        @Param({"10", "200"})
+        public int streak;
+
+        /** Change log entries per build */
+        @Param({"5"})
+        public int changes;
+
+        FreeStyleBuild last;
+        ChangeLogCache warmCache;
+
+        @Override
+        public void setup() throws Exception {
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "streak");
+            FakeChangeLogSCM scm = new FakeChangeLogSCM();
+            project.setScm(scm);
+            scm.addChange().withAuthor("alice").withMsg("green");
+            project.scheduleBuild2(0).get();
+            project.getBuildersList().add(new FailureBuilder());
+            for (int i = 0; i < streak; i++) {
+                for (int c = 0; c < changes; c++) {
+                    scm.addChange().withAuthor("bob").withMsg("red " + i + "." + c);
+                }
+                last = project.scheduleBuild2(0).get();
+            }
+            warmCache = new ChangeLogCache(1000, 60, 0);
+            warmCache.collect(last, Result.FAILURE);
+        }
+    }
+
+    @Benchmark
+    public int collectCold(StreakState state) {
+        return new ChangeLogCache(1000, 60, 0)
+                .collect(state.last, Result.FAILURE)
+                .size();
+    }
+
+    @Benchmark
+    public int collectWarm(StreakState state) {
+        return state.warmCache.collect(state.last, Result.FAILURE).size();
+    }
+}
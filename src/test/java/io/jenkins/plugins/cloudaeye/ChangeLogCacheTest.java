@@ -0,0 +1,106 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.gson.JsonArray;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.FakeChangeLogSCM;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ChangeLogCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void collectsFailureStreakFromCache() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FakeChangeLogSCM scm = new FakeChangeLogSCM();
+        project.setScm(scm);
+        ChangeLogCache cache = new ChangeLogCache(100, 60, 0);
+
+        scm.addChange().withAuthor("alice").withMsg("green");
+        FreeStyleBuild success = j.buildAndAssertSuccess(project);
+        assertEquals(List.of("green"), messages(cache.collect(success, Result.SUCCESS)));
+
+        project.getBuildersList().add(new FailureBuilder());
+        scm.addChange().withAuthor("bob").withMsg("first red");
+        FreeStyleBuild firstFailure = j.buildAndAssertStatus(Result.FAILURE, project);
+        assertEquals(List.of("first red", "green"), messages(cache.collect(firstFailure, Result.FAILURE)));
+
+        scm.addChange().withAuthor("bob").withMsg("second red");
+        FreeStyleBuild secondFailure = j.buildAndAssertStatus(Result.FAILURE, project);
+        List<String> expected = List.of("second red", "first red", "green");
+        assertEquals(expected, messages(cache.collect(secondFailure, Result.FAILURE)));
+
+        // The streak is served from the cache, even once the earlier builds are gone
+        firstFailure.delete();
+        success.delete();
+        assertEquals(expected, messages(cache.collect(secondFailure, Result.FAILURE)));
+    }
+
+    @Test
+    public void limitsNumberOfBuildsWalked() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FakeChangeLogSCM scm = new FakeChangeLogSCM();
+        project.setScm(scm);
+        j.buildAndAssertSuccess(project);
+        project.getBuildersList().add(new FailureBuilder());
+        FreeStyleBuild last = null;
+        for (int i = 1; i <= 5; i++) {
+            scm.addChange().withAuthor("bob").withMsg("red " + i);
+            last = j.buildAndAssertStatus(Result.FAILURE, project);
+        }
+
+        assertEquals(List.of("red 5", "red 4"), messages(new ChangeLogCache(100, 60, 2).collect(last, Result.FAILURE)));
+    }
+
+    @Test
+    public void forgetsTheChangeLogsOfARenamedJob() throws Exception {
+        ChangeLogCache.reset();
+        FreeStyleProject project = j.createFreeStyleProject("app");
+        FakeChangeLogSCM scm = new FakeChangeLogSCM();
+        project.setScm(scm);
+        scm.addChange().withAuthor("alice").withMsg("old app");
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        assertEquals(List.of("old app"), messages(ChangeLogCache.get().collect(build, Result.SUCCESS)));
+
+        // A new job takes the name of the renamed one, its first build has its own change logs
+        project.renameTo("moved");
+        FreeStyleProject replacement = j.createFreeStyleProject("app");
+        FakeChangeLogSCM replacementScm = new FakeChangeLogSCM();
+        replacement.setScm(replacementScm);
+        replacementScm.addChange().withAuthor("bob").withMsg("new app");
+        FreeStyleBuild replacementBuild = j.buildAndAssertSuccess(replacement);
+        assertEquals(List.of("new app"), messages(ChangeLogCache.get().collect(replacementBuild, Result.SUCCESS)));
+    }
+
+    @Test
+    public void keepsTheCacheWhenTheConfigurationIsSavedUnchanged() {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        ChangeLogCache cache = ChangeLogCache.get();
+        config.setChangeLogCacheSize(config.getChangeLogCacheSize());
+        config.setChangeLogCacheMinutes(config.getChangeLogCacheMinutes());
+        config.setMaxChangeLogBuilds(config.getMaxChangeLogBuilds());
+        assertSame(cache, ChangeLogCache.get());
+
+        config.setMaxChangeLogBuilds(config.getMaxChangeLogBuilds() + 1);
+        assertNotSame(cache, ChangeLogCache.get());
+    }
+
+    private static List<String> messages(JsonArray changeLogs) {
+        List<String> messages = new ArrayList<>();
+        changeLogs.forEach(changeLog ->
+                messages.add(changeLog.getAsJsonObject().get("message").getAsString()));
+        return messages;
+    }
+}
@@ -0,0 +1,82 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the payload write of a console log split into content-defined chunks, against the plain payload write.
+ * Every chunk is already known, as for an unchanged build, so the time goes to hashing rather than to writing lines.
+ * The throughput in MB of console log per second is printed at the end of each trial.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class ChunkingBenchmark {
+
+    @Param({"67108864"})
+    public long logBytes;
+
+    @Param({"false", "true"})
+    public boolean chunking;
+
+    private ChunkIndex.Job index;
+    private long payloadBytes;
+    private long operations;
+    private long totalNanos;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (chunking) {
+            index = new ChunkIndex.Job(1 << 20);
+            BuildLogExporter exporter = exporter();
+            exporter.writeTo(new BuildLogExporterTest.CountingOutputStream());
+            exporter.commitChunks();
+        }
+    }
+
+    @Benchmark
+    public long writePayload() throws IOException {
+        long start = System.nanoTime();
+        BuildLogExporterTest.CountingOutputStream out = new BuildLogExporterTest.CountingOutputStream();
+        exporter().writeTo(out);
+        totalNanos += System.nanoTime() - start;
+        operations++;
+        payloadBytes = out.count;
+        return out.count;
+    }
+
+    private BuildLogExporter exporter() {
+        return new BuildLogExporter(
+                42,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new SyntheticConsoleLog(logBytes),
+                StandardCharsets.UTF_8,
+                new BuildLogExporter.Settings(null, index, null));
+    }
+
+    @TearDown
+    public void report() {
+        double seconds = totalNanos / 1e9;
+        System.out.printf(
+                "%n%d log bytes, chunking %s: %d payload bytes, %.1f MB of log per second%n",
+                logBytes, chunking, payloadBytes, operations * logBytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,61 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CloudAEyeGlobalKeyConfigurationTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @After
+    public void resetClient() {
+        NotificationSender.resetSharedClient();
+    }
+
+    @Test
+    public void replacesTheClientOnlyWhenItsSettingsChange() throws Exception {
+        NotificationSender.SharedClient client = NotificationSender.getSharedClient();
+        j.configRoundtrip();
+        assertSame(client, NotificationSender.getSharedClient());
+
+        // A request is running on the client while its timeout is changed
+        assertTrue(client.lease());
+        CloudAEyeGlobalKeyConfiguration.get().setSocketTimeout(5);
+        j.configRoundtrip();
+        NotificationSender.SharedClient replaced = NotificationSender.getSharedClient();
+        assertNotSame(client, replaced);
+        assertFalse(client.isClosed());
+        assertFalse(client.lease());
+
+        client.release();
+        assertTrue(client.isClosed());
+        assertFalse(replaced.isClosed());
+    }
+
+    @Test
+    public void keepsTheCircuitStateWhenItsSettingsDoNotChange() throws Exception {
+        CloudAEyeGlobalKeyConfiguration.get().setCircuitBreakerThreshold(1);
+        NotificationSender.resetSharedClient();
+        CircuitBreaker circuitBreaker = NotificationSender.getSharedCircuitBreaker();
+        circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        j.configRoundtrip();
+        assertSame(circuitBreaker, NotificationSender.getSharedCircuitBreaker());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        CloudAEyeGlobalKeyConfiguration.get().setCircuitBreakerThreshold(3);
+        j.configRoundtrip();
+        assertNotSame(circuitBreaker, NotificationSender.getSharedCircuitBreaker());
+        assertEquals(CircuitBreaker.State.CLOSED, NotificationSender.getSharedCircuitBreaker().getState());
+    }
+}
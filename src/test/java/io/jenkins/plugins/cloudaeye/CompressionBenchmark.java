@@ -0,0 +1,75 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the CPU cost and the bytes on the wire of each payload compression for a typical and a huge console log.
+ * The time per operation is the cost of streaming the payload, the compressed size is printed at the end of each
+ * trial.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class CompressionBenchmark {
+
+    /** 1 MiB is a typical console, 256 MiB a huge one */
+    @Param({"1048576", "268435456"})
+    public long logBytes;
+
+    @Param({"NONE", "GZIP", "GZIP_FAST"})
+    public CompressingEntity.Compression compression;
+
+    private HttpEntity payload;
+    private long uncompressedBytes;
+    private long wireBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1, new JsonObject(), new JsonObject(), () -> new SyntheticConsoleLog(logBytes), StandardCharsets.UTF_8);
+        BuildLogExporterTest.CountingOutputStream plain = new BuildLogExporterTest.CountingOutputStream();
+        exporter.writeTo(plain);
+        uncompressedBytes = plain.count;
+        payload = compression == CompressingEntity.Compression.NONE
+                ? exporter
+                : new CompressingEntity(exporter, compression);
+    }
+
+    @Benchmark
+    public long writePayload() throws IOException {
+        BuildLogExporterTest.CountingOutputStream out = new BuildLogExporterTest.CountingOutputStream();
+        payload.writeTo(out);
+        wireBytes = out.count;
+        return out.count;
+    }
+
+    @TearDown
+    public void report() {
+        System.out.printf(
+                "%n%s, %d log bytes: %d payload bytes, %d bytes on the wire (%.1f%%)%n",
+                compression,
+                logBytes,
+                uncompressedBytes,
+                wireBytes,
+                100.0 * wireBytes / uncompressedBytes);
+    }
+}
@@ -0,0 +1,139 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExportBatchTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private HttpServer server;
+    private String baseUrl;
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    /** Status of the batch endpoint, which does not exist on this server by default */
+    private volatile int batchStatus = 404;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            paths.add(path);
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            int status = path.endsWith("/process-builds") ? batchStatus : 200;
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        baseUrl = NotificationSender.baseUrl;
+        NotificationSender.baseUrl = "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort();
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setTenantKey(Secret.fromString("tenant"));
+        config.setToken(Secret.fromString("token"));
+        config.setMaxRetries(0);
+        config.setCircuitBreakerThreshold(0);
+        NotificationSender.resetSharedClient();
+    }
+
+    @After
+    public void stopServer() {
+        NotificationSender.baseUrl = baseUrl;
+        NotificationSender.resetSharedClient();
+        server.stop(0);
+    }
+
+    @Test
+    public void stopsBatchingOnlyForTheEndpointThatRejectedABatch() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ExportBatch batch = new ExportBatch(2, Long.MAX_VALUE);
+        batch.add(new ExportTask(j.buildAndAssertSuccess(project), Result.SUCCESS, System.currentTimeMillis()));
+        batch.add(new ExportTask(j.buildAndAssertSuccess(project), Result.SUCCESS, System.currentTimeMillis()));
+        batch.send(ExportBatch.FlushReason.SIZE);
+
+        // The builds were sent one by one after the rejection
+        assertEquals(
+                List.of(
+                        "/tenants/tenant/jenkins/process-builds",
+                        "/tenants/tenant/jenkins/process-build",
+                        "/tenants/tenant/jenkins/process-build"),
+                paths);
+        assertTrue(ExportBatch.isRejected());
+
+        // Another endpoint still takes batches
+        String rejectingUrl = NotificationSender.baseUrl;
+        NotificationSender.baseUrl = "http://localhost:1";
+        assertFalse(ExportBatch.isRejected());
+        NotificationSender.baseUrl = rejectingUrl;
+        assertTrue(ExportBatch.isRejected());
+
+        // Saving the form unchanged keeps the rejection
+        j.configRoundtrip();
+        assertTrue(ExportBatch.isRejected());
+
+        // Changing the batch settings tries batches again
+        CloudAEyeGlobalKeyConfiguration.get().setBatchSize(3);
+        assertFalse(ExportBatch.isRejected());
+    }
+
+    @Test
+    public void takesAnySuccessfulStatusAsSent() throws Exception {
+        batchStatus = 202;
+        FreeStyleProject project = j.createFreeStyleProject();
+        List<FreeStyleBuild> builds = List.of(j.buildAndAssertSuccess(project), j.buildAndAssertSuccess(project));
+        ExportBatch batch = new ExportBatch(2, Long.MAX_VALUE);
+        for (FreeStyleBuild build : builds) {
+            batch.add(new ExportTask(build, Result.SUCCESS, System.currentTimeMillis()));
+        }
+        batch.send(ExportBatch.FlushReason.SIZE);
+
+        assertEquals(List.of("/tenants/tenant/jenkins/process-builds"), paths);
+        assertFalse(ExportBatch.isRejected());
+    }
+
+    @Test
+    public void doesNotSendTheBuildsAgainWhenTheEndpointIsFailing() throws Exception {
+        batchStatus = 503;
+        // Without a spool the outcome of each build tells that it was not sent
+        CloudAEyeGlobalKeyConfiguration.get().setSpoolEnabled(false);
+        FreeStyleProject project = j.createFreeStyleProject();
+        List<FreeStyleBuild> builds = List.of(j.buildAndAssertSuccess(project), j.buildAndAssertSuccess(project));
+        ExportBatch batch = new ExportBatch(2, Long.MAX_VALUE);
+        for (FreeStyleBuild build : builds) {
+            batch.add(new ExportTask(build, Result.SUCCESS, System.currentTimeMillis()));
+        }
+        batch.send(ExportBatch.FlushReason.SIZE);
+
+        assertEquals(List.of("/tenants/tenant/jenkins/process-builds"), paths);
+        assertFalse(ExportBatch.isRejected());
+        for (FreeStyleBuild build : builds) {
+            assertEquals(ExportAction.Outcome.REJECTED, build.getAction(ExportAction.class).getOutcome());
+        }
+    }
+}
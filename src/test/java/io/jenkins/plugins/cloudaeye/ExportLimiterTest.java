@@ -0,0 +1,92 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExportLimiterTest {
+
+    private static final String COMMIT = "3333333333333333333333333333333333333333";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private ExportLimiter limiter;
+
+    @Before
+    public void enableRateLimit() {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setRateLimitEnabled(true);
+        config.setMaxRequestsPerSecond(1);
+        config.setMaxKilobytesPerSecond(1);
+        limiter = ExportLimiter.get();
+    }
+
+    @Test
+    public void classifiesRunsByResultAndBranch() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild release = j.buildAndAssertSuccess(project);
+        SourceMetadataResolverTest.checkout(release, COMMIT, "release/2.1");
+        FreeStyleBuild feature = j.buildAndAssertSuccess(project);
+        SourceMetadataResolverTest.checkout(feature, COMMIT, "feature/login");
+
+        assertEquals(ExportLimiter.Priority.RELEASE_FAILURE, ExportLimiter.Priority.of(release, Result.FAILURE));
+        assertEquals(ExportLimiter.Priority.RELEASE_SUCCESS, ExportLimiter.Priority.of(release, Result.SUCCESS));
+        assertEquals(ExportLimiter.Priority.BRANCH_FAILURE, ExportLimiter.Priority.of(feature, Result.UNSTABLE));
+        assertEquals(ExportLimiter.Priority.BRANCH_SUCCESS, ExportLimiter.Priority.of(feature, Result.SUCCESS));
+
+        FreeStyleProject pullRequests = j.createFreeStyleProject();
+        pullRequests.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("ghprbPullId", "")));
+        FreeStyleBuild pullRequest = j.assertBuildStatusSuccess(
+                pullRequests.scheduleBuild2(0, new ParametersAction(new StringParameterValue("ghprbPullId", "42"))));
+        SourceMetadataResolverTest.checkout(pullRequest, COMMIT, "release/2.1");
+        assertEquals(
+                ExportLimiter.Priority.CHANGE_REQUEST_SUCCESS,
+                ExportLimiter.Priority.of(pullRequest, Result.SUCCESS));
+        assertTrue(ExportLimiter.Priority.BRANCH_FAILURE.compareTo(ExportLimiter.Priority.RELEASE_SUCCESS) < 0);
+    }
+
+    @Test
+    public void skipsSuccessesButDelaysFailuresOverTheLimit() throws Exception {
+        ExportLimiter.Admission first =
+                limiter.admit(ExportLimiter.Priority.BRANCH_SUCCESS, true, ExportLimiter.OverLimitPolicy.SKIP);
+        assertEquals(ExportLimiter.Admission.FULL, first);
+
+        ExportLimiter.Admission success =
+                limiter.admit(ExportLimiter.Priority.BRANCH_SUCCESS, true, ExportLimiter.OverLimitPolicy.SKIP);
+        assertEquals(ExportLimiter.Admission.SKIPPED, success);
+        assertEquals(1, limiter.getSkipped());
+
+        long start = System.nanoTime();
+        ExportLimiter.Admission failure =
+                limiter.admit(ExportLimiter.Priority.BRANCH_FAILURE, true, ExportLimiter.OverLimitPolicy.SKIP);
+        assertEquals(ExportLimiter.Admission.FULL, failure);
+        assertEquals(1, limiter.getDelayed());
+        assertTrue("The failure waited for a request permit", System.nanoTime() - start > 500_000_000L);
+    }
+
+    @Test
+    public void reducesExportsOverTheByteLimit() throws Exception {
+        limiter.consumed(64 * 1024);
+        assertTrue(limiter.getAvailableBytes() < 0);
+
+        // Joining a batch needs no request permit, only the byte budget is exceeded
+        ExportLimiter.Admission admission =
+                limiter.admit(ExportLimiter.Priority.RELEASE_FAILURE, false, ExportLimiter.OverLimitPolicy.DEGRADE);
+        assertEquals(ExportLimiter.Admission.REDUCED, admission);
+        assertEquals(1, limiter.getDegraded());
+        assertTrue(CloudAEyeGlobalKeyConfiguration.get().getRateLimitStatus().contains("1 reduced"));
+    }
+}
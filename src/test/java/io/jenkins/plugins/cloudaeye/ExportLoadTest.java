@@ -0,0 +1,253 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpServer;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.BuildStepListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.BuildStep;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Fires many concurrent synthetic builds at a local endpoint and reports the cost of exporting them.
+ * Skipped during regular builds, run it with {@code mvn test -Pload}. The number of builds, the
+ * number of executors and the console size are set with {@code -Dload.builds}, {@code -Dload.concurrency} and
+ * {@code -Dload.logBytes}.
+ */
+public class ExportLoadTest {
+
+    private static final int BUILDS = Integer.getInteger("load.builds", 200);
+    private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 20);
+    private static final long LOG_BYTES = Long.getLong("load.logBytes", 1024 * 1024);
+
+    /** Time spent in the post-build step of each build, in nanoseconds */
+    private static final Map<String, Long> publisherNanos = new ConcurrentHashMap<>();
+
+    private static final Map<String, Long> publisherStarts = new ConcurrentHashMap<>();
+
+    /** Time at which the post-build step of each build returned */
+    private static final Map<String, Long> publisherEnds = new ConcurrentHashMap<>();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private String baseUrl;
+    /** Time at which the export of each job was received */
+    private final Map<String, Long> received = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public static void requireLoadProperty() {
+        assumeTrue("Load test only runs with -Dload", System.getProperty("load") != null);
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String job;
+            try (InputStream in = exchange.getRequestBody()) {
+                job = readJobName(in);
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            received.put(job, System.currentTimeMillis());
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        serverThreads = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverThreads);
+        server.start();
+        baseUrl = NotificationSender.baseUrl;
+        NotificationSender.baseUrl = "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        NotificationSender.baseUrl = baseUrl;
+        NotificationSender.resetSharedClient();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void exportsConcurrentBuilds() throws Exception {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setTenantKey(Secret.fromString("tenant"));
+        config.setToken(Secret.fromString("token"));
+        config.setQueueCapacity(BUILDS);
+        NotificationSender.resetSharedClient();
+        j.jenkins.setNumExecutors(CONCURRENCY);
+
+        List<FreeStyleProject> projects = new ArrayList<>();
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("load-" + i);
+            project.getBuildersList().add(new TestBuilder() {
+                @Override
+                public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                        throws IOException {
+                    new SyntheticConsoleLog(LOG_BYTES).transferTo(listener.getLogger());
+                    return true;
+                }
+            });
+            project.getPublishersList().add(new CloudAEyeNotifications(true));
+            projects.add(project);
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+        long allocatedBefore = allocatedBytes();
+
+        List<Future<FreeStyleBuild>> futures = new ArrayList<>();
+        for (FreeStyleProject project : projects) {
+            futures.add(project.scheduleBuild2(0));
+        }
+        List<FreeStyleBuild> builds = new ArrayList<>();
+        for (Future<FreeStyleBuild> future : futures) {
+            builds.add(j.assertBuildStatus(Result.SUCCESS, future));
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10);
+        while (received.size() < BUILDS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        long allocated = allocatedBytes() - allocatedBefore;
+        sampler.interrupt();
+        sampler.join();
+        assertEquals(BUILDS, received.size());
+
+        List<Long> publisher = new ArrayList<>();
+        List<Long> delivery = new ArrayList<>();
+        for (FreeStyleBuild build : builds) {
+            publisher.add(TimeUnit.NANOSECONDS.toMillis(publisherNanos.get(build.getExternalizableId())));
+            delivery.add(received.get(build.getParent().getFullName())
+                    - publisherEnds.get(build.getExternalizableId()));
+        }
+        System.out.printf(
+                "%n%d builds, %d executors, %d log bytes per build%n"
+                        + "post-build step: p50 %d ms, p99 %d ms%n"
+                        + "post-build step to export received: p50 %d ms, p99 %d ms%n"
+                        + "peak controller heap: %d MB%n"
+                        + "allocated per build by live threads: %d KB%n",
+                BUILDS,
+                CONCURRENCY,
+                LOG_BYTES,
+                percentile(publisher, 0.5),
+                percentile(publisher, 0.99),
+                percentile(delivery, 0.5),
+                percentile(delivery, 0.99),
+                peakHeap.get() / (1024 * 1024),
+                allocated / BUILDS / 1024);
+    }
+
+    /**
+     * Reads the job name from the start of the payload, leaving the logs unparsed
+     */
+    private static String readJobName(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("job")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("name")) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            reader.endObject();
+        }
+        throw new IOException("Payload without job name");
+    }
+
+    private static long percentile(List<Long> values, double percentile) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.max(0, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    /**
+     * Times the CloudAEye post-build step of every build
+     */
+    @TestExtension("exportsConcurrentBuilds")
+    public static class PublisherTimer extends BuildStepListener {
+
+        @Override
+        public void started(AbstractBuild build, BuildStep bs, BuildListener listener) {
+            if (bs instanceof CloudAEyeNotifications) {
+                publisherStarts.put(build.getExternalizableId(), System.nanoTime());
+            }
+        }
+
+        @Override
+        public void finished(AbstractBuild build, BuildStep bs, BuildListener listener, boolean canContinue) {
+            if (bs instanceof CloudAEyeNotifications) {
+                long start = publisherStarts.remove(build.getExternalizableId());
+                publisherNanos.put(build.getExternalizableId(), System.nanoTime() - start);
+                publisherEnds.put(build.getExternalizableId(), System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.gson.JsonObject;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExportMetricsTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void recordsExportOnRunAndMetrics() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        BuildLogExporter payload = BuildLogExporter.forRun(build, new JsonObject(), new JsonObject());
+        BuildLogExporterTest.CountingOutputStream out = new BuildLogExporterTest.CountingOutputStream();
+        payload.writeTo(out);
+        long succeeded = ExportMetrics.SUCCEEDED.getCount();
+        long failed = ExportMetrics.FAILED.getCount();
+
+        ExportMetrics.recordExport(build, payload, TimeUnit.MILLISECONDS.toNanos(250), ExportAction.Outcome.SENT);
+        ExportMetrics.recordExport(build, payload, TimeUnit.MILLISECONDS.toNanos(40), ExportAction.Outcome.FAILED);
+
+        assertEquals(succeeded + 1, ExportMetrics.SUCCEEDED.getCount());
+        assertEquals(failed + 1, ExportMetrics.FAILED.getCount());
+        // Only the last export is kept, and it survives a reload of the run
+        assertEquals(1, build.getActions(ExportAction.class).size());
+        ExportAction action = reload(build).getAction(ExportAction.class);
+        assertNotNull(action);
+        assertEquals(ExportAction.Outcome.FAILED, action.getOutcome());
+        assertEquals(out.count, action.getPayloadBytes());
+        assertEquals(40, action.getDurationMillis());
+    }
+
+    @Test
+    public void countsSpooledExportsApartAndSavesOnlyNewOutcomes() throws Exception {
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        BuildLogExporter.WriteStats unwritten = null;
+        long failed = ExportMetrics.FAILED.getCount();
+
+        ExportMetrics.recordExport(build, unwritten, TimeUnit.MILLISECONDS.toNanos(10), ExportAction.Outcome.SPOOLED);
+        ExportMetrics.recordExport(build, unwritten, TimeUnit.MILLISECONDS.toNanos(20), ExportAction.Outcome.SPOOLED);
+
+        assertEquals(failed, ExportMetrics.FAILED.getCount());
+        assertEquals(20, build.getAction(ExportAction.class).getDurationMillis());
+        // The second summary only changed the duration, build.xml still holds the first one
+        FreeStyleBuild reloaded = reload(build);
+        assertEquals(10, reloaded.getAction(ExportAction.class).getDurationMillis());
+
+        ExportMetrics.recordExport(reloaded, unwritten, TimeUnit.MILLISECONDS.toNanos(30), ExportAction.Outcome.SENT);
+        assertEquals(ExportAction.Outcome.SENT, reload(reloaded).getAction(ExportAction.class).getOutcome());
+    }
+
+    private FreeStyleBuild reload(FreeStyleBuild build) throws Exception {
+        j.jenkins.reload();
+        return j.jenkins
+                .getItemByFullName(build.getParent().getFullName(), FreeStyleProject.class)
+                .getBuildByNumber(build.getNumber());
+    }
+}
@@ -0,0 +1,199 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExportQueueTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    /** Holds the exports until the test lets them finish */
+    private static volatile CountDownLatch gate;
+    /** Files of the exports the workers started */
+    private static final List<String> started = new CopyOnWriteArrayList<>();
+    /** Files of the exports the workers finished */
+    private static final List<String> completed = new CopyOnWriteArrayList<>();
+    /** Whether the next export fails as if its http client had been closed */
+    private static final AtomicBoolean closeOnce = new AtomicBoolean();
+
+    private FreeStyleBuild build;
+
+    @Before
+    public void setUp() throws Exception {
+        gate = new CountDownLatch(1);
+        started.clear();
+        completed.clear();
+        closeOnce.set(false);
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setWorkerThreads(1);
+        config.setOverflowPolicy(ExportQueue.OverflowPolicy.SPILL);
+        build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+    }
+
+    @After
+    public void release() {
+        gate.countDown();
+    }
+
+    @Test
+    public void restoresPendingExportsAfterARestart() throws Exception {
+        ExportQueue queue = ExportQueue.get();
+        for (int i = 0; i < 3; i++) {
+            queue.submit(new GatedTask(build));
+        }
+        await(() -> started.size() == 1);
+        assertEquals(3, pendingFiles());
+
+        // The export in progress is interrupted, every export is still on disk after the restart
+        ExportQueue.shutdown();
+        assertEquals(0, queue.getDepth());
+        assertEquals(3, pendingFiles());
+        gate.countDown();
+        ExportQueue.restore();
+        await(() -> completed.size() == 3 && pendingFiles() == 0);
+        assertEquals(3, completed.stream().distinct().count());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void keepsExportsFailingWhileStopping() throws Exception {
+        ExportQueue.get().submit(new ClientClosedTask(build));
+        await(() -> started.size() == 1);
+
+        // The export in progress fails once its client is closed, it is still on disk after the restart
+        ExportQueue.shutdown();
+        assertEquals(1, pendingFiles());
+        gate.countDown();
+        ExportQueue.restore();
+        await(() -> completed.size() == 1 && pendingFiles() == 0);
+    }
+
+    @Test
+    public void retriesExportsWhoseClientWasClosed() throws Exception {
+        closeOnce.set(true);
+        gate.countDown();
+        ExportQueue.get().submit(new ClientClosedTask(build));
+        await(() -> completed.size() == 1 && pendingFiles() == 0);
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    public void spillsWhenFullAndRefillsOnceThereIsRoom() throws Exception {
+        CloudAEyeGlobalKeyConfiguration.get().setQueueCapacity(1);
+        ExportQueue queue = ExportQueue.get();
+        queue.submit(new GatedTask(build));
+        await(() -> started.size() == 1);
+        queue.submit(new GatedTask(build));
+        queue.submit(new GatedTask(build));
+        assertEquals(2, queue.getSpilled());
+        assertEquals(2, queue.getDepth());
+        assertEquals(3, pendingFiles());
+        // Only spilled tasks are waiting, their age is still reported
+        Thread.sleep(20);
+        assertTrue(queue.getOldestAge() >= 20);
+
+        gate.countDown();
+        await(() -> completed.size() == 3 && pendingFiles() == 0);
+        assertEquals(0, queue.getSpilled());
+        assertEquals(0, queue.getDepth());
+        assertEquals(0, queue.getOldestAge());
+    }
+
+    @Test
+    public void resizesTheWorkerPool() throws Exception {
+        ExportQueue queue = ExportQueue.get();
+        queue.submit(new GatedTask(build));
+        queue.submit(new GatedTask(build));
+        await(() -> started.size() == 1);
+        Thread.sleep(200);
+        assertEquals(1, started.size());
+
+        CloudAEyeGlobalKeyConfiguration.get().setWorkerThreads(2);
+        await(() -> started.size() == 2);
+        assertEquals(2, queue.getInFlight());
+        gate.countDown();
+        await(() -> completed.size() == 2);
+    }
+
+    private int pendingFiles() {
+        File[] files =
+                new File(j.jenkins.getRootDir(), "cloudaeye/queue").listFiles((dir, name) -> name.endsWith(".xml"));
+        return files == null ? 0 : files.length;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Export that waits for the test to let it finish
+     */
+    static final class GatedTask extends ExportTask {
+
+        GatedTask(Run<?, ?> run) {
+            super(run, Result.SUCCESS, System.currentTimeMillis());
+        }
+
+        @Override
+        boolean isBatchable() {
+            return false;
+        }
+
+        @Override
+        void execute() throws InterruptedException {
+            started.add(getFileName());
+            gate.await();
+            completed.add(getFileName());
+        }
+    }
+
+    /**
+     * Export that fails like a request on a closed http client when it is interrupted, or once if asked to
+     */
+    static final class ClientClosedTask extends ExportTask {
+
+        ClientClosedTask(Run<?, ?> run) {
+            super(run, Result.SUCCESS, System.currentTimeMillis());
+        }
+
+        @Override
+        boolean isBatchable() {
+            return false;
+        }
+
+        @Override
+        void execute() {
+            started.add(getFileName());
+            if (closeOnce.getAndSet(false)) {
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            completed.add(getFileName());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExportSpoolTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private HttpServer server;
+    private String baseUrl;
+    /** Whether the endpoint answers as an overloaded service */
+    private final AtomicBoolean down = new AtomicBoolean();
+    /** Status answered while the endpoint is down */
+    private volatile int downStatus = 503;
+    /** Build numbers received by the endpoint while it was up */
+    private final List<Integer> received = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String payload;
+            try (InputStream in = exchange.getRequestBody()) {
+                payload = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (down.get()) {
+                exchange.sendResponseHeaders(downStatus, -1);
+                exchange.close();
+                return;
+            }
+            received.add(JsonParser.parseString(payload)
+                    .getAsJsonObject()
+                    .getAsJsonObject("job")
+                    .get("buildNumber")
+                    .getAsInt());
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        baseUrl = NotificationSender.baseUrl;
+        NotificationSender.baseUrl = "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort();
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        config.setTenantKey(Secret.fromString("tenant"));
+        config.setToken(Secret.fromString("token"));
+        config.setMaxRetries(0);
+        config.setRetryInitialDelayMillis(100);
+        config.setCircuitBreakerThreshold(0);
+        NotificationSender.resetSharedClient();
+    }
+
+    @After
+    public void stopServer() {
+        NotificationSender.baseUrl = baseUrl;
+        NotificationSender.resetSharedClient();
+        server.stop(0);
+    }
+
+    @Test
+    public void sendsBuildsSpooledWhileTheEndpointWasDown() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getPublishersList().add(new CloudAEyeNotifications(true));
+        down.set(true);
+        List<FreeStyleBuild> builds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            builds.add(j.buildAndAssertSuccess(project));
+        }
+        for (FreeStyleBuild build : builds) {
+            awaitOutcome(build, ExportAction.Outcome.SPOOLED);
+        }
+        assertTrue(received.isEmpty());
+        assertEquals(3, ExportSpool.get().getPendingRecords());
+
+        // Jenkins restarts once the endpoint is back, the replay resumes from the spool on disk
+        ExportSpool.shutdown();
+        down.set(false);
+        ExportSpool.restore();
+        for (FreeStyleBuild build : builds) {
+            awaitOutcome(build, ExportAction.Outcome.SENT);
+        }
+        assertEquals(List.of(1, 2, 3), sorted(received));
+        assertEquals(0, ExportSpool.get().getPendingRecords());
+    }
+
+    @Test
+    public void doesNotSpoolBuildsTheEndpointMayHaveProcessed() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getPublishersList().add(new CloudAEyeNotifications(true));
+        down.set(true);
+        // A gateway error may come after the endpoint processed the build
+        downStatus = 502;
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        awaitOutcome(build, ExportAction.Outcome.REJECTED);
+        assertEquals(0, ExportSpool.get().getPendingRecords());
+    }
+
+    private static void awaitOutcome(FreeStyleBuild build, ExportAction.Outcome outcome) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (System.currentTimeMillis() < deadline) {
+            ExportAction action = build.getAction(ExportAction.class);
+            if (action != null && action.getOutcome() == outcome) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(outcome, build.getAction(ExportAction.class).getOutcome());
+    }
+
+    private static List<Integer> sorted(List<Integer> numbers) {
+        List<Integer> copy = new ArrayList<>(numbers);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,171 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class LogChunkerTest {
+
+    private static final int LOG_BYTES = 4 * 1024 * 1024;
+
+    /** Chunks stored by the receiver, by id */
+    private final Map<String, List<String>> store = new HashMap<>();
+
+    @Test
+    public void receiverRebuildsConsecutiveBuilds() throws Exception {
+        ChunkIndex.Job index = new ChunkIndex.Job(4096);
+        byte[] first = new SyntheticConsoleLog(LOG_BYTES).readAllBytes();
+        // The next build prints the same log with a few lines changed, inserted and removed
+        String text = new String(first, StandardCharsets.UTF_8);
+        int third = text.indexOf('\n', text.length() / 3);
+        int twoThirds = text.indexOf('\n', text.length() * 2 / 3);
+        byte[] second = (text.substring(0, 100).replace("INFO", "WARN")
+                        + text.substring(100, third + 1)
+                        + "[INFO] Inserted line\n[INFO] Another inserted line\n"
+                        + text.substring(third + 1, twoThirds + 1)
+                        + text.substring(text.indexOf('\n', twoThirds + 1) + 1))
+                .getBytes(StandardCharsets.UTF_8);
+
+        BuildLogExporter firstBuild = exporter(first, index);
+        JsonArray firstChunks = export(firstBuild);
+        assertEquals(plainLines(first), receive(firstChunks));
+        assertEquals(firstChunks.size(), newChunks(firstChunks));
+        firstBuild.commitChunks();
+
+        JsonArray secondChunks = export(exporter(second, index));
+        assertEquals(plainLines(second), receive(secondChunks));
+        // Only the chunks around the three edits are sent again
+        assertTrue(newChunks(secondChunks) <= 6);
+        assertTrue(secondChunks.size() > 100);
+    }
+
+    @Test
+    public void resendsChunksOfFailedExports() throws Exception {
+        ChunkIndex.Job index = new ChunkIndex.Job(4096);
+        byte[] log = new SyntheticConsoleLog(LOG_BYTES / 4).readAllBytes();
+
+        // The first export is never committed, as when the endpoint rejects it
+        JsonArray first = export(exporter(log, index));
+        JsonArray second = export(exporter(log, index));
+
+        assertEquals(first.size(), newChunks(second));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void sendsRepeatedChunksOnce() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            log.append("[INFO] Waiting for the database to start\n");
+        }
+        JsonArray chunks = export(exporter(log.toString().getBytes(StandardCharsets.UTF_8), new ChunkIndex.Job(16)));
+
+        // The repeated chunk and the shorter last one
+        assertEquals(2, newChunks(chunks));
+        assertTrue(chunks.size() > 1);
+        assertEquals(20_000, receive(chunks).size());
+    }
+
+    @Test
+    public void cutsChunksAtLineEnds() throws Exception {
+        byte[] log = new SyntheticConsoleLog(LOG_BYTES / 4).readAllBytes();
+        JsonArray chunks = export(exporter(log, new ChunkIndex.Job(4096)));
+
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            long bytes = 0;
+            for (JsonElement line : chunks.get(i).getAsJsonObject().getAsJsonArray("lines")) {
+                bytes += line.getAsString().getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+            assertTrue(bytes >= LogChunker.MIN_CHUNK_BYTES);
+            assertTrue(bytes < LogChunker.MAX_CHUNK_BYTES + LogLineReader.MAX_LINE_BYTES);
+        }
+        assertFalse(chunks.isEmpty());
+    }
+
+    private static BuildLogExporter exporter(byte[] log, ChunkIndex.Job index) {
+        return new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new ByteArrayInputStream(log),
+                StandardCharsets.UTF_8,
+                new BuildLogExporter.Settings(null, index, null));
+    }
+
+    private static JsonArray export(BuildLogExporter exporter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+        return JsonParser.parseString(out.toString(StandardCharsets.UTF_8))
+                .getAsJsonObject()
+                .getAsJsonObject("job")
+                .getAsJsonArray("logChunks");
+    }
+
+    private static List<String> plainLines(byte[] log) throws IOException {
+        BuildLogExporter exporter = new BuildLogExporter(
+                1, new JsonObject(), new JsonObject(), () -> new ByteArrayInputStream(log), StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+        List<String> lines = new ArrayList<>();
+        JsonParser.parseString(out.toString(StandardCharsets.UTF_8))
+                .getAsJsonObject()
+                .getAsJsonObject("job")
+                .getAsJsonArray("logs")
+                .forEach(line -> lines.add(line.getAsString()));
+        return lines;
+    }
+
+    /**
+     * Rebuilds the log as the receiver does: new chunks are verified against their id and stored, known chunks are
+     * read from the store
+     */
+    private List<String> receive(JsonArray chunks) throws Exception {
+        List<String> log = new ArrayList<>();
+        for (JsonElement element : chunks) {
+            JsonObject chunk = element.getAsJsonObject();
+            String id = chunk.get("id").getAsString();
+            if (chunk.has("lines")) {
+                List<String> lines = new ArrayList<>();
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                for (JsonElement line : chunk.getAsJsonArray("lines")) {
+                    lines.add(line.getAsString());
+                    digest.update((line.getAsString() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                assertEquals(hex.substring(0, 32), id);
+                store.put(id, lines);
+            }
+            assertTrue("Unknown chunk " + id, store.containsKey(id));
+            log.addAll(store.get(id));
+        }
+        return log;
+    }
+
+    private static int newChunks(JsonArray chunks) {
+        int count = 0;
+        for (JsonElement chunk : chunks) {
+            if (chunk.getAsJsonObject().has("lines")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
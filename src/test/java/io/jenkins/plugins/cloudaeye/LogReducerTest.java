@@ -0,0 +1,177 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class LogReducerTest {
+
+    @Test
+    public void keepsHeadTailAndContextAroundErrors() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            log.add(i == 50 ? "[ERROR] compilation failed" : "line " + i);
+        }
+
+        Result result = reduce(new LogReducer.Settings(3, 2, 2, 0, 0, "ERROR"), log);
+
+        assertEquals(
+                List.of(
+                        "line 1",
+                        "line 2",
+                        "line 3",
+                        "line 48",
+                        "line 49",
+                        "[ERROR] compilation failed",
+                        "line 51",
+                        "line 52",
+                        "line 99",
+                        "line 100"),
+                result.lines);
+        assertEquals(2, result.dropped.size());
+        assertArrayEquals(new long[] {4, 47}, result.dropped.get(0));
+        assertArrayEquals(new long[] {53, 98}, result.dropped.get(1));
+        assertEquals(100, result.reducer.getTotalLines());
+        assertEquals(10, result.reducer.getKeptLines());
+    }
+
+    @Test
+    public void collapsesRepeatedLines() throws IOException {
+        List<String> log = new ArrayList<>();
+        log.add("start");
+        for (int i = 0; i < 10; i++) {
+            log.add("waiting");
+        }
+        log.add("done");
+
+        Result result = reduce(new LogReducer.Settings(100, 0, 0, 2, 0, ""), log);
+
+        assertEquals(
+                List.of("start", "waiting", "waiting", "[previous line repeated 8 more times]", "done"), result.lines);
+        assertEquals(1, result.dropped.size());
+        assertArrayEquals(new long[] {4, 11}, result.dropped.get(0));
+    }
+
+    @Test
+    public void respectsByteBudgetAndKeepsTail() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            log.add(String.format("%09d", i));
+        }
+
+        // 10 bytes per line, 3/4 of the budget for the streamed part and the rest for the tail
+        Result result = reduce(new LogReducer.Settings(1000, 2, 0, 0, 100, ""), log);
+
+        assertEquals(9, result.lines.size());
+        assertEquals("000000000", result.lines.get(0));
+        assertEquals("000000999", result.lines.get(result.lines.size() - 1));
+        assertEquals(1, result.dropped.size());
+        assertArrayEquals(new long[] {8, 998}, result.dropped.get(0));
+    }
+
+    @Test
+    public void matchesPatternsAnywhereInLine() {
+        AhoCorasick matcher =
+                AhoCorasick.compile(LogReducer.Settings.parsePatterns(LogReducer.Settings.DEFAULT_PATTERNS));
+        assertTrue(find(matcher, "\tat com.example.Service.handle(Service.java:12)"));
+        assertTrue(find(matcher, "Caused by: java.io.IOException"));
+        assertTrue(find(matcher, "Process exited with exit code 2"));
+        assertTrue(find(matcher, "script returned exit code 137"));
+        assertFalse(find(matcher, "script returned exit code 0"));
+        assertTrue(find(matcher, "sh: exit status 1"));
+        assertFalse(find(matcher, "go: exit status 0"));
+        assertTrue(find(matcher, "Command execution failed. (Exit value: 2)"));
+        assertFalse(find(matcher, "Exit value: 0"));
+        assertTrue(find(matcher, "java.lang.IllegalStateException: boom"));
+        assertFalse(find(matcher, "[INFO] BUILD SUCCESS"));
+        assertFalse(find(matcher, "at the end"));
+
+        AhoCorasick overlapping = AhoCorasick.compile(List.of("abcd", "bce"));
+        assertTrue(find(overlapping, "xxabcexx"));
+        assertFalse(find(overlapping, "abcbcd"));
+    }
+
+    @Test
+    public void stopsRecordingDroppedRangesPastTheLimit() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 1; i <= 2 * LogReducer.MAX_DROPPED_RANGES + 10; i++) {
+            log.add(i % 2 == 0 ? "ERROR " + i : "line " + i);
+        }
+
+        Result result = reduce(new LogReducer.Settings(0, 0, 0, 0, 0, "ERROR"), log);
+
+        assertEquals(LogReducer.MAX_DROPPED_RANGES, result.dropped.size());
+        assertTrue(result.reducer.isDroppedRangesTruncated());
+        // The last recorded range does not cover the kept lines after it
+        long[] last = result.dropped.get(result.dropped.size() - 1);
+        assertEquals(last[0], last[1]);
+        assertFalse(reduce(new LogReducer.Settings(0, 0, 0, 0, 0, "ERROR"), List.of("a", "ERROR", "b"))
+                .reducer
+                .isDroppedRangesTruncated());
+    }
+
+    @Test
+    public void exportsReductionSummary() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            log.append(i == 10 ? "Caused by: timeout" : "step " + i).append('\n');
+        }
+        byte[] bytes = log.toString().getBytes(StandardCharsets.UTF_8);
+        BuildLogExporter exporter = new BuildLogExporter(
+                1,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new ByteArrayInputStream(bytes),
+                StandardCharsets.UTF_8,
+                new BuildLogExporter.Settings(
+                        new LogReducer.Settings(1, 1, 1, 0, 0, LogReducer.Settings.DEFAULT_PATTERNS), null, null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeTo(out);
+
+        JsonObject job = JsonParser.parseString(out.toString(StandardCharsets.UTF_8))
+                .getAsJsonObject()
+                .getAsJsonObject("job");
+        JsonArray logs = job.getAsJsonArray("logs");
+        assertEquals(5, logs.size());
+        assertEquals("Caused by: timeout", logs.get(2).getAsString());
+        JsonObject summary = job.getAsJsonObject("logReduction");
+        assertEquals(20, summary.get("totalLines").getAsLong());
+        assertEquals(5, summary.get("keptLines").getAsLong());
+        assertEquals("[[2,8],[12,19]]", summary.get("droppedLines").toString());
+    }
+
+    private static boolean find(AhoCorasick matcher, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return matcher.find(bytes, 0, bytes.length);
+    }
+
+    private static Result reduce(LogReducer.Settings settings, List<String> log) throws IOException {
+        Result result = new Result();
+        result.reducer = new LogReducer(settings, result.lines::add);
+        for (String line : log) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            result.reducer.accept(line, bytes.length + 1, settings.matcher.find(bytes, 0, bytes.length));
+        }
+        result.reducer.finish();
+        result.dropped = result.reducer.getDroppedRanges();
+        return result;
+    }
+
+    private static final class Result {
+        final List<String> lines = new ArrayList<>();
+        LogReducer reducer;
+        List<long[]> dropped;
+    }
+}
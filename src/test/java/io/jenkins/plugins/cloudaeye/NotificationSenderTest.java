@@ -0,0 +1,304 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationSenderTest {
+
+    private HttpServer server;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<String> encodings = new CopyOnWriteArrayList<>();
+    private final List<String> contentTypes = new CopyOnWriteArrayList<>();
+    private volatile String lastBody;
+    private volatile boolean rejectCompressed;
+    private final Queue<Integer> faults = new ConcurrentLinkedQueue<>();
+    private volatile String retryAfter;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            encodings.add(String.valueOf(encoding));
+            contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+            try (InputStream in = "gzip".equals(encoding)
+                    ? new GZIPInputStream(exchange.getRequestBody())
+                    : exchange.getRequestBody()) {
+                lastBody = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Integer fault = faults.poll();
+            if (fault != null) {
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                exchange.sendResponseHeaders(fault, -1);
+                exchange.close();
+                return;
+            }
+            if (rejectCompressed && "gzip".equals(encoding)) {
+                exchange.sendResponseHeaders(415, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void reusesPooledConnection() throws IOException {
+        PoolingHttpClientConnectionManager connectionManager = NotificationSender.createConnectionManager(4);
+        try (CloseableHttpClient client = NotificationSender.createClient(connectionManager, 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(client, endpoint(), CompressingEntity.Compression.NONE);
+            for (int i = 0; i < 20; i++) {
+                NotificationSender.Response response = sender.send(payload(), "tenant", "token");
+                assertEquals(200, response.getStatusCode());
+                assertEquals("{\"status\":\"ok\"}", response.getBody());
+            }
+            // All requests went over a single kept-alive connection that is back in the pool
+            assertEquals(1, clientPorts.size());
+            assertEquals(0, connectionManager.getTotalStats().getLeased());
+            assertEquals(1, connectionManager.getTotalStats().getAvailable());
+        }
+    }
+
+    @Test
+    public void sendsStreamingPayloadChunked() throws IOException {
+        PoolingHttpClientConnectionManager connectionManager = NotificationSender.createConnectionManager(4);
+        try (CloseableHttpClient client = NotificationSender.createClient(connectionManager, 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(client, endpoint(), CompressingEntity.Compression.NONE);
+            BuildLogExporter payload = new BuildLogExporter(
+                    1,
+                    new JsonObject(),
+                    new JsonObject(),
+                    () -> new SyntheticConsoleLog(1024 * 1024),
+                    StandardCharsets.UTF_8);
+            assertEquals(200, sender.send(payload, "tenant", "token").getStatusCode());
+            assertEquals(200, sender.send(payload, "tenant", "token").getStatusCode());
+            assertEquals(1, clientPorts.size());
+        }
+    }
+
+    @Test
+    public void compressesPayloadWithGzip() throws IOException {
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender =
+                    new NotificationSender(client, endpoint(), CompressingEntity.Compression.GZIP_FAST);
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(List.of("gzip"), encodings);
+            assertEquals("{\"ping\":true}", lastBody);
+        }
+    }
+
+    @Test
+    public void fallsBackToPlainPayloadWhenCompressionIsRejected() throws IOException {
+        rejectCompressed = true;
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(client, endpoint(), CompressingEntity.Compression.GZIP);
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(List.of("gzip", "null", "null"), encodings);
+            assertEquals("{\"ping\":true}", lastBody);
+
+            // Another endpoint is still sent compressed payloads until it rejects them too
+            encodings.clear();
+            NotificationSender stages = new NotificationSender(
+                    client, endpoint().replace("process-build", "process-stage"), CompressingEntity.Compression.GZIP);
+            assertEquals(200, stages.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(List.of("gzip", "null"), encodings);
+        } finally {
+            NotificationSender.resetSharedClient();
+        }
+    }
+
+    @Test
+    public void sendsBatchAsNdjson() throws IOException {
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(client, endpoint(), CompressingEntity.Compression.GZIP);
+            ExportBatch.NdjsonEntity batch = new ExportBatch.NdjsonEntity(List.of(payload(), payload(), payload()));
+            assertEquals(200, sender.send(batch, "tenant", "token").getStatusCode());
+            assertEquals(List.of("application/x-ndjson"), contentTypes);
+            assertEquals("{\"ping\":true}\n{\"ping\":true}\n{\"ping\":true}\n", lastBody);
+        }
+    }
+
+    @Test
+    public void retriesTransientFailuresWithBackoff() throws IOException {
+        faults.addAll(List.of(503, 429));
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client, endpoint(), CompressingEntity.Compression.NONE, new RetryPolicy(3, 10, 100), null);
+            long retries = ExportMetrics.RETRIES.getCount();
+            long requests = ExportMetrics.HTTP.getCount();
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(3, encodings.size());
+            assertEquals(retries + 2, ExportMetrics.RETRIES.getCount());
+            assertEquals(requests + 3, ExportMetrics.HTTP.getCount());
+        }
+    }
+
+    @Test
+    public void honorsRetryAfter() throws IOException {
+        faults.add(429);
+        retryAfter = "1";
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client, endpoint(), CompressingEntity.Compression.NONE, new RetryPolicy(1, 10, 5000), null);
+            long start = System.nanoTime();
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+            assertEquals(2, encodings.size());
+        }
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws IOException {
+        faults.add(400);
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client, endpoint(), CompressingEntity.Compression.NONE, new RetryPolicy(3, 10, 100), null);
+            assertEquals(400, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(1, encodings.size());
+        }
+    }
+
+    @Test
+    public void opensCircuitAfterConsecutiveFailures() throws Exception {
+        faults.addAll(List.of(500, 500, 500));
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 300);
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client, endpoint(), CompressingEntity.Compression.NONE, RetryPolicy.NONE, circuitBreaker);
+            assertEquals(500, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(500, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+            assertThrows(
+                    NotificationSender.CircuitOpenException.class, () -> sender.send(payload(), "tenant", "token"));
+            assertEquals(2, encodings.size());
+
+            // The probe fails and opens the circuit again, the next probe succeeds and closes it
+            Thread.sleep(350);
+            assertEquals(500, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+            Thread.sleep(350);
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            assertEquals(4, encodings.size());
+        }
+    }
+
+    @Test
+    public void releasesProbeInterruptedWhileBackingOff() throws Exception {
+        faults.addAll(List.of(500, 503));
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100);
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client,
+                    endpoint(),
+                    CompressingEntity.Compression.NONE,
+                    new RetryPolicy(3, 10_000, 10_000),
+                    circuitBreaker);
+            assertEquals(500, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+            // The probe gets a 503 and is interrupted while waiting to retry
+            Thread.sleep(150);
+            Thread caller = Thread.currentThread();
+            Thread interrupter = new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                caller.interrupt();
+            });
+            interrupter.start();
+            assertThrows(InterruptedIOException.class, () -> sender.send(payload(), "tenant", "token"));
+            assertTrue(Thread.interrupted());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+            Thread.sleep(150);
+            assertEquals(200, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        }
+    }
+
+    @Test
+    public void doesNotRetryGatewayErrors() throws IOException {
+        // The endpoint behind the gateway may have processed the export
+        faults.add(502);
+        try (CloseableHttpClient client =
+                NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 5, 5)) {
+            NotificationSender sender = new NotificationSender(
+                    client, endpoint(), CompressingEntity.Compression.NONE, new RetryPolicy(3, 10, 100), null);
+            assertEquals(502, sender.send(payload(), "tenant", "token").getStatusCode());
+            assertEquals(1, encodings.size());
+        }
+    }
+
+    @Test
+    public void onlyTellsFailuresBeforeTheRequestAsUnsent() {
+        assertTrue(NotificationSender.isUnsent(new ConnectTimeoutException()));
+        assertTrue(NotificationSender.isUnsent(new NotificationSender.CircuitOpenException(1000)));
+        // The endpoint may have taken a payload whose response timed out
+        assertFalse(NotificationSender.isUnsent(new SocketTimeoutException("Read timed out")));
+        assertFalse(NotificationSender.isUnsent(new NoHttpResponseException("No response")));
+    }
+
+    private static StringEntity payload() {
+        return new StringEntity("{\"ping\":true}", ContentType.APPLICATION_JSON);
+    }
+
+    private String endpoint() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort() + "/tenants/{0}/jenkins/process-build";
+    }
+}
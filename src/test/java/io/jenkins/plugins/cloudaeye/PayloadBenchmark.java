@@ -0,0 +1,98 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the assembly and serialization of a build payload, from a typical console log to a multi-gigabyte one,
+ * with and without log reduction. The throughput in MB of console log per second is printed at the end of each trial.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class PayloadBenchmark {
+
+    /** 1 MiB is a typical console, 4 GiB a pathological one */
+    @Param({"1048576", "67108864", "4294967296"})
+    public long logBytes;
+
+    @Param({"false", "true"})
+    public boolean reduction;
+
+    private LogReducer.Settings settings;
+    private JsonObject job;
+    private JsonObject source;
+    private long payloadBytes;
+    private long operations;
+    private long totalNanos;
+
+    @Setup
+    public void setUp() {
+        // Defaults of the global configuration
+        settings = reduction
+                ? new LogReducer.Settings(200, 500, 20, 3, 10240L * 1024, LogReducer.Settings.DEFAULT_PATTERNS)
+                : null;
+        job = new JsonObject();
+        job.addProperty("name", "folder/service");
+        job.addProperty("id", "job/folder/job/service/");
+        job.addProperty("buildNumber", 42);
+        job.addProperty("url", "job/folder/job/service/42/");
+        source = new JsonObject();
+        source.addProperty("eventType", "PUSH");
+        source.addProperty("branch", "origin/main");
+        JsonArray changeLogs = new JsonArray();
+        for (int i = 0; i < 20; i++) {
+            JsonObject changeLog = new JsonObject();
+            changeLog.addProperty("commitId", Integer.toHexString(i * 7919));
+            changeLog.addProperty("author", "author" + i);
+            changeLog.addProperty("message", "Change number " + i);
+            changeLogs.add(changeLog);
+        }
+        source.add("changeLog", changeLogs);
+    }
+
+    @Benchmark
+    public long writePayload() throws IOException {
+        long start = System.nanoTime();
+        // Every operation assembles a new payload, as every export does
+        BuildLogExporter exporter = new BuildLogExporter(
+                42,
+                job,
+                source,
+                () -> new SyntheticConsoleLog(logBytes),
+                StandardCharsets.UTF_8,
+                new BuildLogExporter.Settings(settings, null, null));
+        BuildLogExporterTest.CountingOutputStream out = new BuildLogExporterTest.CountingOutputStream();
+        exporter.writeTo(out);
+        totalNanos += System.nanoTime() - start;
+        operations++;
+        payloadBytes = out.count;
+        return out.count;
+    }
+
+    @TearDown
+    public void report() {
+        double seconds = totalNanos / 1e9;
+        System.out.printf(
+                "%n%d log bytes, reduction %s: %d payload bytes, %.1f MB of log per second%n",
+                logBytes, reduction, payloadBytes, operations * logBytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,167 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PayloadLogTest {
+
+    private final Logger logger = Logger.getLogger(PayloadLogTest.class.getName());
+    private final List<String> messages = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            messages.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        directory = Files.createTempDirectory("payloads");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        PayloadLog.configure(null, PayloadLog.MAX_FILE_BYTES);
+        logger.removeHandler(handler);
+        logger.setLevel(null);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void doesNotAllocateWhenNothingIsRecorded() {
+        logger.setLevel(Level.INFO);
+        UnreadPayload payload = new UnreadPayload();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < 100_000; i++) {
+            PayloadLog.record("build", i, payload);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1_000_000; i++) {
+            PayloadLog.record("build", i, payload);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Only the measurement itself may allocate, a single payload summary would already exceed this
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+        assertFalse(payload.read);
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    public void logsSummaryOfTheSentPayloadAtFineLevel() throws IOException {
+        logger.setLevel(Level.FINE);
+        UnreadPayload unread = new UnreadPayload();
+        PayloadLog.record("build", 12, unread);
+        assertFalse("The payload is only read to be sent", unread.read);
+
+        BuildLogExporter payload = new BuildLogExporter(
+                12,
+                new JsonObject(),
+                new JsonObject(),
+                () -> new ByteArrayInputStream("a\nb\nc\n".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        PayloadLog.sent(logger, "build", 12, payload);
+        assertTrue("Nothing is logged for a payload that was not sent", messages.isEmpty());
+        BuildLogExporterTest.CountingOutputStream sent = new BuildLogExporterTest.CountingOutputStream();
+        payload.writeTo(sent);
+        PayloadLog.sent(logger, "build", 12, payload);
+
+        assertEquals(List.of("[#12] Sent build payload : " + sent.count + " bytes, 3 log lines"), messages);
+        assertFalse(Files.exists(directory.resolve(PayloadLog.FILE_NAME)));
+    }
+
+    @Test
+    public void writesAndRotatesPayloadFileInDebugMode() throws IOException {
+        logger.setLevel(Level.INFO);
+        PayloadLog.configure(directory.toFile(), 100);
+
+        for (int i = 1; i <= 10; i++) {
+            PayloadLog.record(logger, "build", i, "{\"payload\":\"" + "x".repeat(80) + "\"}");
+        }
+
+        String current = Files.readString(directory.resolve(PayloadLog.FILE_NAME));
+        assertTrue(current, current.contains(" build #10\n{\"payload\":\"xxx"));
+        for (int i = 1; i <= PayloadLog.MAX_ROTATED_FILES; i++) {
+            assertTrue(PayloadLog.rotated(directory.toFile(), i).exists());
+        }
+        assertFalse(PayloadLog.rotated(directory.toFile(), PayloadLog.MAX_ROTATED_FILES + 1)
+                .exists());
+        String oldest = Files.readString(
+                PayloadLog.rotated(directory.toFile(), PayloadLog.MAX_ROTATED_FILES)
+                        .toPath());
+        assertTrue(oldest, oldest.contains(" build #5\n"));
+        assertTrue(messages.isEmpty());
+    }
+
+    /**
+     * Payload that records whether anything read it
+     */
+    private static final class UnreadPayload extends AbstractHttpEntity {
+
+        boolean read;
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            read = true;
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) {
+            read = true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the payload write of a console log with the default redaction rules, against the plain payload write.
+ * The synthetic Maven log carries no secret, so the time goes to finding rule anchors, which every exported line pays.
+ * The "@" log is full of scp and git URLs, npm scopes, annotations and shell prompts, whose "@" anchors run the email
+ * rule that may match before its anchor.
+ * The throughput in MB of console log per second is printed at the end of each trial.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class RedactionBenchmark {
+
+    /** Lines with many "@" and few email addresses */
+    private static final String AT_SIGNS = String.join(
+            "\n",
+            "+ git clone git@github.com:example-organization/very-long-repository-name_with_underscores.git",
+            "+ npm install @angular/core@17.2.0 @types/node@20.11.5 @babel/preset-env@7.24.0",
+            "    @Override @SuppressWarnings(\"unchecked\") @Deprecated(since = \"2.1\")",
+            "jenkins@build-agent-042:~/workspace/release_pipeline_payments$ scp dist.tgz deploy@10.0.0.7:",
+            "[INFO] Notifying release-managers@example.com",
+            "");
+
+    @Param({"67108864"})
+    public long logBytes;
+
+    @Param({"false", "true"})
+    public boolean redaction;
+
+    @Param({"maven", "at-signs"})
+    public String log;
+
+    private Redactor.Rules rules;
+    private long payloadBytes;
+    private long operations;
+    private long totalNanos;
+
+    @Setup
+    public void setUp() {
+        rules = redaction ? new Redactor.Rules(Redactor.DEFAULT_RULES) : null;
+    }
+
+    @Benchmark
+    public long writePayload() throws IOException {
+        long start = System.nanoTime();
+        BuildLogExporterTest.CountingOutputStream out = new BuildLogExporterTest.CountingOutputStream();
+        exporter().writeTo(out);
+        totalNanos += System.nanoTime() - start;
+        operations++;
+        payloadBytes = out.count;
+        return out.count;
+    }
+
+    private BuildLogExporter exporter() {
+        return new BuildLogExporter(
+                42,
+                new JsonObject(),
+                new JsonObject(),
+                () -> "maven".equals(log)
+                        ? new SyntheticConsoleLog(logBytes)
+                        : new SyntheticConsoleLog(logBytes, AT_SIGNS),
+                StandardCharsets.UTF_8,
+                new BuildLogExporter.Settings(null, null, rules));
+    }
+
+    @TearDown
+    public void report() {
+        double seconds = totalNanos / 1e9;
+        System.out.printf(
+                "%n%d bytes of %s log, redaction %s: %d payload bytes, %.1f MB of log per second%n",
+                logBytes, log, redaction, payloadBytes, operations * logBytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,93 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.http.HttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many build exports per second the pooled client sends to a local endpoint that discards them.
+ * Several threads send at once, as the export workers do, so connection pooling and compression are part of the cost.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Threads(4)
+public class SendBenchmark {
+
+    /** 64 KiB is a reduced console, 8 MiB a large one */
+    @Param({"65536", "8388608"})
+    public long logBytes;
+
+    @Param({"NONE", "GZIP_FAST"})
+    public CompressingEntity.Compression compression;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private CloseableHttpClient client;
+    private NotificationSender sender;
+    private HttpEntity payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        serverThreads = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverThreads);
+        server.start();
+        client = NotificationSender.createClient(NotificationSender.createConnectionManager(4), 5, 60, 5);
+        InetSocketAddress address = server.getAddress();
+        sender = new NotificationSender(
+                client,
+                "http://" + address.getHostString() + ":" + address.getPort() + NotificationSender.ENDPOINT_PATH,
+                compression);
+        payload = new BuildLogExporter(
+                1, new JsonObject(), new JsonObject(), () -> new SyntheticConsoleLog(logBytes), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        return sender.send(payload, "tenant", "token").getStatusCode();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+}
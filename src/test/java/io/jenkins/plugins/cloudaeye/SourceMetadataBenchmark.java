@@ -0,0 +1,52 @@
+package io.jenkins.plugins.cloudaeye;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the capture of the source metadata of a git build, from the whole run environment against the resolvers.
+ * The benchmark controller has few environment contributors, a controller with more plugins widens the gap.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class SourceMetadataBenchmark {
+
+    public static class GitBuildState extends JmhBenchmarkState {
+
+        FreeStyleBuild build;
+
+        @Override
+        public void setup() throws Exception {
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "git");
+            project.scheduleBuild2(0).get();
+            build = project.scheduleBuild2(0).get();
+            SourceMetadataResolverTest.checkout(build.getPreviousBuild(), "1111111111111111111111111111111111111111");
+            SourceMetadataResolverTest.checkout(build, "2222222222222222222222222222222222222222");
+        }
+    }
+
+    @Benchmark
+    public int environment(GitBuildState state) throws Exception {
+        return SourceMetadataResolver.fromEnvironment(state.build.getEnvironment(TaskListener.NULL), new HashMap<>())
+                .size();
+    }
+
+    @Benchmark
+    public int resolvers(GitBuildState state) throws Exception {
+        return SourceMetadataResolver.resolveAll(state.build, TaskListener.NULL).size();
+    }
+}
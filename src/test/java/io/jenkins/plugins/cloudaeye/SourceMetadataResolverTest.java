@@ -0,0 +1,102 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.model.EnvironmentContributor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class SourceMetadataResolverTest {
+
+    private static final String REPOSITORY = "https://github.com/example/service.git";
+    private static final String FIRST_COMMIT = "1111111111111111111111111111111111111111";
+    private static final String SECOND_COMMIT = "2222222222222222222222222222222222222222";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void readsGitCheckoutWithoutEnvironment() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild first = j.buildAndAssertSuccess(project);
+        FreeStyleBuild second = j.buildAndAssertSuccess(project);
+        checkout(first, FIRST_COMMIT);
+        checkout(second, SECOND_COMMIT);
+        CountingContributor.CALLS.set(0);
+
+        Map<String, String> metadata = SourceMetadataResolver.resolveAll(second, TaskListener.NULL);
+
+        assertEquals(REPOSITORY, metadata.get("GIT_URL"));
+        assertEquals("origin/main", metadata.get("GIT_BRANCH"));
+        assertEquals(SECOND_COMMIT, metadata.get("GIT_COMMIT"));
+        assertEquals(FIRST_COMMIT, metadata.get("GIT_PREVIOUS_COMMIT"));
+        assertEquals(0, CountingContributor.CALLS.get());
+    }
+
+    @Test
+    public void fallsBackToEnvironment() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("ghprbPullId", "")));
+        FreeStyleBuild build = j.assertBuildStatusSuccess(
+                project.scheduleBuild2(0, new ParametersAction(new StringParameterValue("ghprbPullId", "42"))));
+        CountingContributor.CALLS.set(0);
+
+        Map<String, String> metadata = SourceMetadataResolver.resolveAll(build, TaskListener.NULL);
+
+        assertEquals("42", metadata.get("ghprbPullId"));
+        assertEquals(CountingContributor.URL, metadata.get("GIT_URL"));
+        assertEquals(1, CountingContributor.CALLS.get());
+    }
+
+    /**
+     * Records a git checkout of the main branch, as the git plugin does
+     */
+    static void checkout(Run<?, ?> run, String commit) throws Exception {
+        checkout(run, commit, "main");
+    }
+
+    static void checkout(Run<?, ?> run, String commit, String branch) throws Exception {
+        BuildData data = new BuildData("git", List.of(new UserRemoteConfig(REPOSITORY, "origin", null, null)));
+        ObjectId sha1 = ObjectId.fromString(commit);
+        data.saveBuild(new Build(
+                new Revision(sha1, List.of(new Branch("refs/remotes/origin/" + branch, sha1))),
+                run.getNumber(),
+                Result.SUCCESS));
+        run.addAction(data);
+        run.save();
+    }
+
+    @TestExtension
+    public static class CountingContributor extends EnvironmentContributor {
+        static final String URL = "https://example.com/from-environment.git";
+        static final AtomicInteger CALLS = new AtomicInteger();
+
+        @Override
+        public void buildEnvironmentFor(@NonNull Run r, @NonNull EnvVars envs, @NonNull TaskListener listener) {
+            CALLS.incrementAndGet();
+            envs.put("GIT_URL", URL);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRecordsInOrderAcrossSegments() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 1024)) {
+            for (int i = 0; i < 20; i++) {
+                spool.append(Spool.Kind.BUILD, "job#" + i, new StringEntity(payload(i, 200)));
+            }
+            spool.append(Spool.Kind.STAGE, "job#20", new StringEntity(payload(20, 10)));
+            assertEquals(21, spool.getPendingRecords());
+            assertTrue("Payloads were split across segments", segments(directory) > 1);
+
+            for (int i = 0; i < 21; i++) {
+                Spool.Record record = spool.next();
+                assertEquals("job#" + i, record.id);
+                assertEquals(i == 20 ? Spool.Kind.STAGE : Spool.Kind.BUILD, record.kind);
+                assertTrue(record.isIntact());
+                assertEquals(payload(i, i == 20 ? 10 : 200), read(record));
+                spool.commit(record);
+            }
+            assertNull(spool.next());
+            assertEquals(0, spool.getPendingBytes());
+            assertEquals("Replayed segments are deleted", 1, segments(directory));
+        }
+    }
+
+    @Test
+    public void resumesFromTheCommittedRecordAfterRestart() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 4096)) {
+            for (int i = 0; i < 5; i++) {
+                spool.append(Spool.Kind.BUILD, "job#" + i, new StringEntity(payload(i, 100)));
+            }
+            spool.commit(spool.next());
+            spool.commit(spool.next());
+            // Read but not committed, it is replayed again after the restart
+            spool.next();
+        }
+        try (Spool spool = new Spool(directory, 4096)) {
+            assertEquals(3, spool.getPendingRecords());
+            List<String> ids = new ArrayList<>();
+            Spool.Record record;
+            while ((record = spool.next()) != null) {
+                ids.add(record.id);
+                spool.commit(record);
+            }
+            assertEquals(List.of("job#2", "job#3", "job#4"), ids);
+        }
+    }
+
+    @Test
+    public void cutsOffRecordTornByACrash() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 1 << 20)) {
+            spool.append(Spool.Kind.BUILD, "job#1", new StringEntity(payload(1, 100)));
+            spool.append(Spool.Kind.BUILD, "job#2", new StringEntity(payload(2, 100)));
+        }
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".segment"))[0];
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+
+        try (Spool spool = new Spool(directory, 1 << 20)) {
+            assertEquals(1, spool.getPendingRecords());
+            spool.append(Spool.Kind.BUILD, "job#3", new StringEntity(payload(3, 100)));
+            assertEquals("job#1", replayNext(spool));
+            assertEquals("job#3", replayNext(spool));
+            assertNull(spool.next());
+        }
+    }
+
+    @Test
+    public void dropsNothingWhenThePayloadFails() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 1 << 20)) {
+            spool.append(Spool.Kind.BUILD, "job#1", new StringEntity(payload(1, 100)));
+            try {
+                spool.append(Spool.Kind.BUILD, "job#2", new FailingEntity());
+            } catch (IOException expected) {
+                // The partial record is removed
+            }
+            spool.append(Spool.Kind.BUILD, "job#3", new StringEntity(payload(3, 100)));
+            assertEquals("job#1", replayNext(spool));
+            assertEquals("job#3", replayNext(spool));
+            assertNull(spool.next());
+        }
+    }
+
+    @Test
+    public void retentionDropsTheOldestSegments() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 1024)) {
+            for (int i = 0; i < 20; i++) {
+                spool.append(Spool.Kind.BUILD, "job#" + i, new StringEntity(payload(i, 200)));
+            }
+            long dropped = spool.applyRetention(2048, Long.MAX_VALUE);
+            assertTrue(dropped > 0);
+            assertTrue(spool.getPendingBytes() <= 2048);
+            assertEquals(20 - dropped, spool.getPendingRecords());
+            assertEquals("job#" + dropped, replayNext(spool));
+
+            assertEquals(19 - dropped, spool.applyRetention(Long.MAX_VALUE, -1));
+            assertNull(spool.next());
+        }
+    }
+
+    @Test
+    public void linksLargeRecordsAsSegments() throws Exception {
+        File directory = folder.newFolder();
+        String large = payload(2, (int) Spool.LINK_BYTES * 2);
+        try (Spool spool = new Spool(directory, 64 * 1024 * 1024)) {
+            spool.append(Spool.Kind.BUILD, "job#1", new StringEntity(payload(1, 100)));
+            spool.append(Spool.Kind.BUILD, "job#2", new StringEntity(large));
+            spool.append(Spool.Kind.BUILD, "job#3", new StringEntity(payload(3, 100)));
+            assertEquals("The large record starts a segment the next one is appended to", 2, segments(directory));
+        }
+        try (Spool spool = new Spool(directory, 64 * 1024 * 1024)) {
+            assertEquals(3, spool.getPendingRecords());
+            assertEquals("job#1", replayNext(spool));
+            Spool.Record record = spool.next();
+            assertEquals("job#2", record.id);
+            assertTrue(record.isIntact());
+            assertEquals(large, read(record));
+            spool.commit(record);
+            assertEquals("job#3", replayNext(spool));
+            assertNull(spool.next());
+        }
+    }
+
+    @Test
+    public void replaysWhileAPayloadIsWritten() throws Exception {
+        File directory = folder.newFolder();
+        try (Spool spool = new Spool(directory, 1 << 20)) {
+            spool.append(Spool.Kind.BUILD, "job#1", new StringEntity(payload(1, 100)));
+            CountDownLatch writing = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            StringEntity blocked = new StringEntity(payload(2, 100)) {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    super.writeTo(out);
+                }
+            };
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Long> append = executor.submit(() -> spool.append(Spool.Kind.BUILD, "job#2", blocked));
+                assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+                // The payload being written holds up neither the status nor the replay
+                assertEquals(1, spool.getPendingRecords());
+                assertEquals("job#1", replayNext(spool));
+                assertNull(spool.next());
+
+                release.countDown();
+                append.get(10, TimeUnit.SECONDS);
+                assertEquals("job#2", replayNext(spool));
+            } finally {
+                release.countDown();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static String replayNext(Spool spool) throws IOException {
+        Spool.Record record = spool.next();
+        spool.commit(record);
+        return record.id;
+    }
+
+    private static String read(Spool.Record record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record.toEntity().writeTo(out);
+        assertEquals(out.size(), record.toEntity().getContentLength());
+        try (InputStream content = record.toEntity().getContent()) {
+            assertEquals(
+                    out.toString(StandardCharsets.UTF_8), new String(content.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String payload(int number, int size) {
+        StringBuilder payload = new StringBuilder("{\"build\":" + number + ",\"log\":\"");
+        while (payload.length() < size) {
+            payload.append("line ").append(payload.length()).append(' ');
+        }
+        return payload.append("\"}").toString();
+    }
+
+    private static int segments(File directory) {
+        return directory.listFiles((dir, name) -> name.endsWith(".segment")).length;
+    }
+
+    /**
+     * Fails after writing part of the payload, as a console log that cannot be read any further
+     */
+    private static final class FailingEntity extends AbstractHttpEntity {
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(new byte[100_000]);
+            throw new IOException("Console log is gone");
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.jenkins.plugins.cloudaeye;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of stage tracking on large pipelines.
+ * A pipeline with tens of thousands of steps is run once, then its flow graph is replayed through a new tracker in
+ * every operation. The time per operation divided by the printed node count is the cost per flow node.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class StageTrackerBenchmark {
+
+    public static class PipelineState extends JmhBenchmarkState {
+
+        @Param({"100"})
+        public int stages;
+
+        @Param({"200"})
+        public int stepsPerStage;
+
+        WorkflowRun run;
+        List<FlowNode> nodes;
+
+        @Override
+        public void setup() throws Exception {
+            WorkflowJob job = getJenkins().createProject(WorkflowJob.class, "pipeline");
+            job.setDefinition(new CpsFlowDefinition(
+                    "for (int s = 0; s < " + stages + "; s++) {\n"
+                            + "  stage(\"stage ${s}\") {\n"
+                            + "    for (int i = 0; i < " + stepsPerStage + "; i++) { echo \"step ${i}\" }\n"
+                            + "  }\n"
+                            + "}\n",
+                    true));
+            run = job.scheduleBuild2(0).get();
+            nodes = StageTrackerTest.nodesInOrder(run);
+        }
+
+        @TearDown
+        public void report() {
+            System.out.printf("%n%d flow nodes replayed per operation%n", nodes.size());
+        }
+    }
+
+    @Benchmark
+    public int trackPipeline(PipelineState state) {
+        // Only the work done on the pipeline thread is measured, the tasks are created by the queue
+        List<JsonObject> stages = new ArrayList<>();
+        StageTracker tracker = new StageTracker(state.run, (result, endTime, stage) -> stages.add(stage));
+        for (FlowNode node : state.nodes) {
+            tracker.onNewHead(node);
+        }
+        return stages.size();
+    }
+}
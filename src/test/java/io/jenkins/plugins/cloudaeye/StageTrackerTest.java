@@ -0,0 +1,113 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class StageTrackerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void reportsStagesWithStepTimingsAndFailures() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition(
+                "stage('Build') { echo 'compiling'; echo 'packaging' }\n"
+                        + "stage('Test') {\n"
+                        + "  parallel unit: { echo 'unit' },\n"
+                        + "      integration: { echo 'integration'; error 'tests failed' }\n"
+                        + "}\n",
+                true));
+        WorkflowRun run = j.buildAndAssertStatus(Result.FAILURE, job);
+
+        List<StageExportTask> tasks = new ArrayList<>();
+        StageTracker tracker = new StageTracker(
+                run, (result, endTime, stage) -> tasks.add(new StageExportTask(run, result, endTime, stage)));
+        for (FlowNode node : nodesInOrder(run)) {
+            tracker.onNewHead(node);
+        }
+
+        assertEquals(2, tasks.size());
+        JsonObject build = tasks.get(0).getStage();
+        assertEquals("Build", build.get("name").getAsString());
+        assertEquals("success", build.get("status").getAsString());
+        assertEquals(Result.SUCCESS, tasks.get(0).getResult());
+        assertEquals(2, build.get("stepCount").getAsInt());
+        JsonArray steps = build.getAsJsonArray("steps");
+        assertEquals("echo", steps.get(0).getAsJsonObject().get("name").getAsString());
+        assertTrue(steps.get(0).getAsJsonObject().get("duration").getAsLong() >= 0);
+
+        JsonObject test = tasks.get(1).getStage();
+        assertEquals("Test", test.get("name").getAsString());
+        assertEquals("failure", test.get("status").getAsString());
+        assertEquals(Result.FAILURE, tasks.get(1).getResult());
+        assertEquals(3, test.get("stepCount").getAsInt());
+        JsonArray failedSteps = test.getAsJsonArray("failedSteps");
+        assertEquals(1, failedSteps.size());
+        assertEquals("error", failedSteps.get(0).getAsJsonObject().get("name").getAsString());
+        assertEquals("tests failed", failedSteps.get(0).getAsJsonObject().get("error").getAsString());
+    }
+
+    @Test
+    public void redactsErrorMessagesOfFailedSteps() throws Exception {
+        CloudAEyeGlobalKeyConfiguration.get().setRedactionEnabled(true);
+        WorkflowJob job = j.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(
+                new CpsFlowDefinition("stage('Deploy') { error 'login failed with password=hunter2' }", true));
+        WorkflowRun run = j.buildAndAssertStatus(Result.FAILURE, job);
+
+        List<StageExportTask> tasks = new ArrayList<>();
+        StageTracker tracker = new StageTracker(
+                run, (result, endTime, stage) -> tasks.add(new StageExportTask(run, result, endTime, stage)));
+        for (FlowNode node : nodesInOrder(run)) {
+            tracker.onNewHead(node);
+        }
+
+        JsonObject stage = tasks.get(0).getStage();
+        StageExportTask.redactErrors(stage);
+        assertEquals("login failed with password=****", stage.get("error").getAsString());
+        assertEquals(
+                "login failed with password=****",
+                stage.getAsJsonArray("failedSteps").get(0).getAsJsonObject().get("error").getAsString());
+    }
+
+    @Test
+    public void tracksOnlyPipelinesThatOptedIn() throws Exception {
+        CloudAEyeGlobalKeyConfiguration config = CloudAEyeGlobalKeyConfiguration.get();
+        WorkflowJob job = j.createProject(WorkflowJob.class, "team-a-pipeline");
+        config.setPipelineTrackingEnabled(true);
+        assertFalse(config.isPipelineTracked(job));
+        config.setPipelineTrackingJobs("team-b-.*");
+        assertFalse(config.isPipelineTracked(job));
+        config.setPipelineTrackingJobs("team-a-.*");
+        assertTrue(config.isPipelineTracked(job));
+        config.setPipelineTrackingEnabled(false);
+        assertFalse(config.isPipelineTracked(job));
+    }
+
+    /**
+     * @param run Completed pipeline run
+     * @return Every node of the flow graph in the order it was created
+     */
+    static List<FlowNode> nodesInOrder(WorkflowRun run) {
+        List<FlowNode> nodes = new ArrayList<>(new DepthFirstScanner().allNodes(run.getExecution()));
+        nodes.sort(Comparator.comparingInt(node -> Integer.parseInt(node.getId())));
+        return nodes;
+    }
+}
@@ -0,0 +1,112 @@
+package io.jenkins.plugins.cloudaeye;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates a console log that looks like a typical Maven build, with timestamps, varying module names, download
+ * progress, test output and occasional stack traces. Lines are drawn from a pool generated from a fixed seed, so any
+ * size can be streamed cheaply without being held in memory and two streams of the same size are identical.
+ * Tests that need a specific content repeat their own lines instead.
+ */
+class SyntheticConsoleLog extends InputStream {
+
+    private static final String[] MODULES = {"core", "api", "web", "auth", "billing", "search", "storage", "worker"};
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "INFO", "DEBUG", "WARNING"};
+
+    private static final int POOL_SIZE = 4096;
+
+    private final long size;
+    private final Random random = new Random(42);
+    private final byte[][] pool;
+    private byte[] line = new byte[0];
+    private int linePosition;
+    private long position;
+
+    /**
+     * @param size Number of bytes to generate
+     */
+    SyntheticConsoleLog(long size) {
+        this.size = size;
+        this.pool = new byte[POOL_SIZE][];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool[i] = generateLine(i);
+        }
+    }
+
+    /**
+     * @param size Number of bytes to generate
+     * @param lines Lines repeated until the size is reached
+     */
+    SyntheticConsoleLog(long size, String lines) {
+        this.size = size;
+        this.pool = new byte[][] {lines.getBytes(StandardCharsets.UTF_8)};
+    }
+
+    @Override
+    public int read() {
+        if (position >= size) {
+            return -1;
+        }
+        if (linePosition == line.length) {
+            nextLine();
+        }
+        position++;
+        return line[linePosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (position >= size) {
+            return -1;
+        }
+        int count = (int) Math.min(len, size - position);
+        int copied = 0;
+        while (copied < count) {
+            if (linePosition == line.length) {
+                nextLine();
+            }
+            int chunk = Math.min(count - copied, line.length - linePosition);
+            System.arraycopy(line, linePosition, b, off + copied, chunk);
+            linePosition += chunk;
+            copied += chunk;
+        }
+        position += count;
+        return count;
+    }
+
+    private void nextLine() {
+        line = pool[random.nextInt(pool.length)];
+        linePosition = 0;
+    }
+
+    private byte[] generateLine(long lineNumber) {
+        String module = MODULES[random.nextInt(MODULES.length)];
+        String text;
+        int kind = random.nextInt(100);
+        if (kind < 55) {
+            text = String.format(
+                    "[%s] Compiling %d source files to /workspace/%s/target/classes",
+                    LEVELS[random.nextInt(LEVELS.length)], random.nextInt(400), module);
+        } else if (kind < 75) {
+            text = String.format(
+                    "Downloaded from central: https://repo.maven.apache.org/maven2/org/%s/%s-%d.%d.jar (%d kB at %d"
+                            + " kB/s)",
+                    module, module, random.nextInt(9), random.nextInt(20), random.nextInt(5000), random.nextInt(900));
+        } else if (kind < 95) {
+            text = String.format(
+                    "[INFO] Tests run: %d, Failures: 0, Errors: 0, Skipped: %d, Time elapsed: %d.%03d s - in"
+                            + " com.example.%s.%sTest",
+                    random.nextInt(80), random.nextInt(3), random.nextInt(30), random.nextInt(1000), module, module);
+        } else if (kind < 98) {
+            text = String.format(
+                    "\tat com.example.%s.Service%d.handle(Service%d.java:%d)",
+                    module, random.nextInt(50), random.nextInt(50), random.nextInt(900));
+        } else {
+            text = String.format(
+                    "[ERROR] Failed to execute goal on project %s: build failed at line %d", module, lineNumber);
+        }
+        return String.format("%tT %s%n", lineNumber * 7000, text).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,181 @@
+package io.jenkins.plugins.cloudaeye;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+public class TestResultCollectorTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void streamsOnlyFailuresOfLargeSuites() throws IOException {
+        List<TestResultCollector.Failure> failures = new ArrayList<>();
+        TestResultCollector.scan(
+                resultFile(100_000, 1_000),
+                (className, name, duration, failedSince, details, stackTrace) -> failures.add(
+                        new TestResultCollector.Failure(className, name, duration, failedSince, details, stackTrace)),
+                true);
+
+        assertEquals(100, failures.size());
+        TestResultCollector.Failure failure = failures.get(0);
+        assertEquals("com.example.Suite0", failure.className);
+        assertEquals("test0", failure.name);
+        assertEquals(0.25f, failure.duration, 0.001);
+        assertEquals(7, failure.failedSince);
+        assertEquals("expected:<1> but was:<2>", failure.details);
+        assertEquals(TestResultCollector.MAX_STACK_TRACE_LINES, failure.stackTrace.split("\n").length);
+        assertTrue(failure.stackTrace.startsWith("java.lang.AssertionError"));
+    }
+
+    @Test
+    public void keepsRegressionsFirst() {
+        TestResultCollector.Failures failures = new TestResultCollector.Failures(10, 2);
+        failures.failed("A", "old1", 1, 4, "", "");
+        failures.failed("A", "old2", 1, 4, "", "");
+        failures.failed("A", "new", 1, 10, "", "");
+        failures.failed("A", "old3", 1, 4, "", "");
+
+        assertEquals(2, failures.getOmitted());
+        assertEquals("old1", failures.getFailures().get(0).name);
+        assertEquals("new", failures.getFailures().get(1).name);
+        assertEquals(TestResultCollector.Status.REGRESSION, failures.getFailures().get(1).status);
+    }
+
+    @Test
+    public void classifiesFailuresAgainstPreviousBuilds() throws Exception {
+        FreeStyleBuild build = buildWithFlakyTest();
+
+        assertClassified(TestResultCollector.collect(build, 100));
+    }
+
+    @Test
+    public void classifiesFailuresOfResultsKeptInAnotherStorage() throws Exception {
+        FreeStyleBuild build = buildWithFlakyTest();
+        // Results already loaded by the actions, and kept reachable, stand for a storage other than the result files
+        List<TestResult> loaded = new ArrayList<>();
+        for (FreeStyleBuild run : build.getParent().getBuilds()) {
+            loaded.add(run.getAction(TestResultAction.class).getResult());
+            Files.delete(new File(run.getRootDir(), TestResultCollector.RESULT_FILE).toPath());
+        }
+
+        assertClassified(TestResultCollector.collect(build, 100));
+        assertEquals(3, loaded.size());
+    }
+
+    private FreeStyleBuild buildWithFlakyTest() throws Exception {
+        AtomicBoolean flakyFails = new AtomicBoolean(true);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws IOException, InterruptedException {
+                build.getWorkspace()
+                        .child("report.xml")
+                        .write(
+                                "<testsuite name='Suite' tests='3'>"
+                                        + "<testcase classname='Suite' name='alwaysFails' time='0.1'>"
+                                        + "<failure message='boom'>java.lang.AssertionError: boom\n\tat Suite"
+                                        + "</failure></testcase>"
+                                        + "<testcase classname='Suite' name='flaky' time='0.2'>"
+                                        + (flakyFails.get() ? "<failure message='timeout'>timeout</failure>" : "")
+                                        + "</testcase>"
+                                        + "<testcase classname='Suite' name='passes' time='0.3'/>"
+                                        + "</testsuite>",
+                                "UTF-8");
+                return true;
+            }
+        });
+        project.getPublishersList().add(new JUnitResultArchiver("report.xml"));
+
+        j.buildAndAssertStatus(Result.UNSTABLE, project);
+        flakyFails.set(false);
+        j.buildAndAssertStatus(Result.UNSTABLE, project);
+        flakyFails.set(true);
+        return j.buildAndAssertStatus(Result.UNSTABLE, project);
+    }
+
+    private static void assertClassified(JsonObject tests) {
+        assertNotNull(tests);
+        assertEquals(3, tests.get("total").getAsInt());
+        assertEquals(2, tests.get("failed").getAsInt());
+        JsonArray failures = tests.getAsJsonArray("failures");
+        assertEquals(2, failures.size());
+        assertEquals("alwaysFails", failures.get(0).getAsJsonObject().get("name").getAsString());
+        assertEquals("failing", failures.get(0).getAsJsonObject().get("status").getAsString());
+        assertEquals(1, failures.get(0).getAsJsonObject().get("failedSince").getAsInt());
+        assertEquals("flaky", failures.get(1).getAsJsonObject().get("status").getAsString());
+    }
+
+    /**
+     * Streams a test result file in the format stored by the JUnit plugin, without holding it in memory
+     */
+    private static InputStream resultFile(int cases, int failureEvery) {
+        StringBuilder stackTrace = new StringBuilder("java.lang.AssertionError: expected:&lt;1&gt;");
+        for (int i = 0; i < 200; i++) {
+            stackTrace.append("\n\tat com.example.Frame").append(i).append(".call(Frame.java:").append(i).append(')');
+        }
+        List<InputStream> parts = new ArrayList<>();
+        parts.add(stream("<?xml version='1.1' encoding='UTF-8'?><result><suites><suite><name>suite</name><cases>"));
+        Enumeration<InputStream> body = new Enumeration<>() {
+            private int i;
+
+            @Override
+            public boolean hasMoreElements() {
+                return i < cases;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                boolean failed = i % failureEvery == 0;
+                String xml = "<case><duration>0.25</duration><className>com.example.Suite" + i / failureEvery
+                        + "</className><testName>test" + i + "</testName><skipped>false</skipped>"
+                        + "<stdout>" + "output line\n".repeat(50) + "</stdout>"
+                        + "<failedSince>" + (failed ? 7 : 0) + "</failedSince>"
+                        + (failed
+                                ? "<errorStackTrace>" + stackTrace + "</errorStackTrace>"
+                                        + "<errorDetails>expected:&lt;1&gt; but was:&lt;2&gt;</errorDetails>"
+                                : "")
+                        + "</case>";
+                i++;
+                return stream(xml);
+            }
+        };
+        parts.add(new SequenceInputStream(body));
+        parts.add(stream("</cases></suite></suites><duration>1.0</duration></result>"));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}